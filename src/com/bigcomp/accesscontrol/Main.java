@@ -1,10 +1,12 @@
 package com.bigcomp.accesscontrol;
 
 import com.bigcomp.accesscontrol.db.DB;
+import com.bigcomp.accesscontrol.db.ProfileWatcher;
 import com.bigcomp.accesscontrol.arp.AccessProcessor;
 import com.bigcomp.accesscontrol.log.CSVLogger;
 import com.bigcomp.accesscontrol.sim.Simulator;
 import com.bigcomp.accesscontrol.ui.MainWindow;
+import com.bigcomp.accesscontrol.util.AppConfig;
 
 import javax.swing.*;
 import java.awt.*;
@@ -26,6 +28,14 @@ public class Main {
 
             // ARP
             AccessProcessor arp = new AccessProcessor(db, csvLogger);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                arp.shutdown();
+                db.saveWarmSnapshot();
+                db.close();
+            }));
+
+            // Pick up profile files edited outside the editor
+            new ProfileWatcher(db, AppConfig.getLong("profiles.watch.debounceMs", 300)).start();
 
             // Simulator
             Simulator sim = new Simulator(db, arp);
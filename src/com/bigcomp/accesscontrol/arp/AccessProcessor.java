@@ -1,29 +1,116 @@
 package com.bigcomp.accesscontrol.arp;
 
+import com.bigcomp.accesscontrol.db.AccessLogBatchWriter;
+import com.bigcomp.accesscontrol.db.CacheSnapshot;
 import com.bigcomp.accesscontrol.db.DB;
+import com.bigcomp.accesscontrol.db.RecentAccessWindow;
+import com.bigcomp.accesscontrol.log.AccessLogPipeline;
 import com.bigcomp.accesscontrol.log.CSVLogger;
 import com.bigcomp.accesscontrol.model.*;
+import com.bigcomp.accesscontrol.util.AppConfig;
 
-import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class AccessProcessor {
+    private static final UsageTracker.Limits NO_LIMITS = new UsageTracker.Limits(0, 0, 0);
+
     private final DB db;
     private final CSVLogger csvLogger;
-    private final UsageTracker usageTracker = new UsageTracker();
+    private final UsageTracker usageTracker;
     private final Map<String, UsageTracker.Limits> limitConfig;
-    private final Map<String, Deque<AccessHistory>> histories = new ConcurrentHashMap<>();
     private final int precedenceWindowMinutes = 30;
-    private final List<AccessEventListener> listeners = new ArrayList<>();
+    private final ZonePresence presence = new ZonePresence(precedenceWindowMinutes);
+    private final List<AccessEventListener> listeners = new java.util.concurrent.CopyOnWriteArrayList<>();
     private final DateTimeFormatter timeFmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    // Compiled authorization data, swapped as a whole whenever the DB caches change
+    private volatile PolicySnapshot policy;
+    // Decided events are persisted and fanned out off the swipe path
+    private final AccessLogPipeline logPipeline;
+    private final AccessLogBatchWriter dbLogWriter;
+    // The last hours of events, for recent-activity questions
+    private final RecentAccessWindow recentWindow = new RecentAccessWindow(
+            AppConfig.getLong("hotwindow.memoryMB", 32) << 20, AppConfig.getInt("hotwindow.hours", 8));
 
     public AccessProcessor(DB db, CSVLogger csvLogger) {
         this.db = db;
         this.csvLogger = csvLogger;
         this.limitConfig = loadUsageLimits();
+        this.usageTracker = new UsageTracker(db);
+        recompilePolicy();
+        db.addChangeListener(new DB.ChangeListener() {
+            @Override public void onCacheChanged() { recompilePolicy(); }
+            @Override public void onProfilesChanged(Collection<String> profileNames) { recompileProfiles(profileNames); }
+            @Override public void onBadgeChanged(Badge badge) { recompileBadge(badge.getBadgeId()); }
+        });
+        this.dbLogWriter = new AccessLogBatchWriter(db, AppConfig.getInt("log.db.batch.size", 500),
+                AppConfig.getLong("log.db.batch.maxAgeMs", 200),
+                new java.io.File(AppConfig.getString("log.db.backlog", "data/access_log_db_backlog.tsv")),
+                new java.io.File(AppConfig.getString("log.db.rejected", "data/access_log_rejected.tsv")));
+        this.logPipeline = createLogPipeline();
+        logPipeline.start();
+    }
+
+    private AccessLogPipeline createLogPipeline() {
+        AccessLogPipeline.FullPolicy fullPolicy;
+        try {
+            fullPolicy = AccessLogPipeline.FullPolicy.valueOf(AppConfig.getString("log.queue.policy", "BLOCK").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            fullPolicy = AccessLogPipeline.FullPolicy.BLOCK;
+        }
+        AccessLogPipeline pipeline = new AccessLogPipeline(AppConfig.getInt("log.queue.capacity", 8192), fullPolicy,
+                new java.io.File(AppConfig.getString("log.queue.spill", "data/access_log_spill.tsv")));
+        // UI listeners first so the live view is not held up by disk and DB writes
+        pipeline.addSink(this::notifyListeners);
+        pipeline.addSink(recentWindow);
+        pipeline.addSink(new AccessLogPipeline.Sink() {
+            @Override public void accept(AccessLog log) { csvLogger.logAccess(log, userName(log)); }
+            @Override public void flush() { csvLogger.endBatch(); }
+            @Override public void close() { csvLogger.close(); }
+        });
+        pipeline.addSink(dbLogWriter);
+        return pipeline;
+    }
+
+    public AccessLogPipeline getLogPipeline() { return logPipeline; }
+    public AccessLogBatchWriter getDbLogWriter() { return dbLogWriter; }
+    public RecentAccessWindow getRecentWindow() { return recentWindow; }
+
+    /** Drains pending access events and usage counters to their stores; call on shutdown. */
+    public void shutdown() {
+        logPipeline.close();
+        usageTracker.close();
+    }
+
+    /** Rebuilds the authorization snapshot and zone tree from the current DB caches and publishes them atomically. */
+    public synchronized void recompilePolicy() {
+        CacheSnapshot cache = db.getSnapshot();
+        policy = PolicySnapshot.compile(cache);
+        presence.setZones(cache.getAllZones());
+    }
+
+    /** Recompiles only the badges holding the changed profiles when the policy is one version behind. */
+    public synchronized void recompileProfiles(Collection<String> profileNames) {
+        CacheSnapshot cache = db.getSnapshot();
+        PolicySnapshot p = policy;
+        if (p.cacheVersion == cache.getVersion()) return;
+        if (p.cacheVersion + 1 == cache.getVersion()) {
+            policy = p.withProfiles(cache, profileNames);
+        } else {
+            recompilePolicy();
+        }
+    }
+
+    /** Swaps in the cached copy of one badge when the policy is one version behind; its rights are unchanged. */
+    public synchronized void recompileBadge(String badgeId) {
+        CacheSnapshot cache = db.getSnapshot();
+        PolicySnapshot p = policy;
+        if (p.cacheVersion == cache.getVersion()) return;
+        Badge b = cache.findBadge(badgeId).orElse(null);
+        PolicySnapshot next = p.cacheVersion + 1 == cache.getVersion() && b != null ? p.withBadge(cache.getVersion(), b) : null;
+        if (next != null) policy = next;
+        else recompilePolicy();
     }
 
     public void addListener(AccessEventListener l) { listeners.add(l); }
@@ -35,38 +122,44 @@ public class AccessProcessor {
         log.setBadgeId(badgeId);
         log.setReaderId(readerId);
 
-        Optional<Badge> ob = db.findBadge(badgeId);
-        Optional<Reader> or = db.findReader(readerId);
+        PolicySnapshot p = policy;
+        int bi = p.badgeId(badgeId);
+        int ri = p.readerId(readerId);
 
-        if (!ob.isPresent()) {
+        if (bi == PolicySnapshot.NONE) {
             log.setResult("DENIED");
             log.setMessage("Badge not found");
             logAndNotify(log, null);
             return log;
         }
-        if (!or.isPresent()) {
+        if (ri == PolicySnapshot.NONE) {
             log.setResult("DENIED");
             log.setMessage("Reader not found");
             logAndNotify(log, null);
             return log;
         }
 
-        Badge b = ob.get();
-        Reader r = or.get();
-        Optional<Resource> osp = db.findResourceById(r.getResourceId());
-        if (!osp.isPresent()) {
+        Badge b = p.badges[bi];
+        if (db.isRevoked(badgeId)) {
+            log.setResult("DENIED");
+            log.setMessage("Badge revoked");
+            logAndNotify(log, b);
+            return log;
+        }
+        int si = p.readerResource[ri];
+        if (si == PolicySnapshot.NONE) {
             log.setResult("DENIED");
             log.setMessage("Resource missing");
             logAndNotify(log, b);
             return log;
         }
-        Resource res = osp.get();
+        Resource res = p.resources[si];
         log.setResourceId(res.getResourceId());
         log.setFromZoneId(res.getFromZoneId());
         log.setToZoneId(res.getToZoneId());
 
         // If resource is uncontrolled, allow immediately
-        if (!res.isControlled()) {
+        if (!p.resourceControlled[si]) {
             log.setResult("GRANTED");
             log.setMessage("Resource currently uncontrolled");
             logAndNotify(log, b);
@@ -80,14 +173,14 @@ public class AccessProcessor {
             logAndNotify(log, b);
             return log;
         }
-        if (b.getExpirationDate() != null && b.getExpirationDate().isBefore(LocalDate.now())) {
+        LocalDateTime now = log.getTimestamp();
+        if (b.getExpirationDate() != null && b.getExpirationDate().isBefore(now.toLocalDate())) {
             log.setResult("DENIED");
             log.setMessage("Badge expired");
             logAndNotify(log, b);
             return log;
         }
 
-        LocalDateTime now = log.getTimestamp();
         if (b.isRequiresUpdate()) {
             if (b.getUpdateGracePeriodEnd() != null && now.isAfter(b.getUpdateGracePeriodEnd())) {
                 log.setResult("DENIED");
@@ -100,18 +193,16 @@ public class AccessProcessor {
             }
         }
 
-        Optional<String> og = db.findGroupForResource(res.getResourceId());
-        if (!og.isPresent()) {
+        BitSet resGroups = p.resourceGroups[si];
+        if (resGroups.isEmpty()) {
             log.setResult("DENIED");
             log.setMessage("Resource not in any group");
             logAndNotify(log, b);
             return log;
         }
-        String group = og.get();
-        List<String> bProfiles = db.getProfilesForBadge(b.getBadgeId());
 
         // Zone check
-        String badgeZone = b.getCurrentZoneId() == null ? "Z_OUTSIDE" : b.getCurrentZoneId();
+        String badgeZone = db.getBadgeZone(b.getBadgeId());
         String fromZone = res.getFromZoneId();
         String toZone = res.getToZoneId();
         if (fromZone != null || toZone != null) {
@@ -125,32 +216,27 @@ public class AccessProcessor {
             }
         }
 
-        if (!checkPrecedence(b, res, now)) {
+        long minute = TimeFilter.epochMinute(now);
+        if (!checkPrecedence(b, res, minute)) {
             log.setResult("DENIED");
             log.setMessage("Precedence rule: enter parent zone first");
             logAndNotify(log, b);
             return log;
         }
 
-        boolean allowed = hasProfileAccess(bProfiles, group, now);
-        if (!allowed) {
+        // A resource may belong to several groups; any open right on one of them grants access
+        int gi = p.grantingGroup(bi, resGroups, minute);
+        if (gi == PolicySnapshot.NONE) {
             log.setResult("DENIED");
-            log.setMessage("No profile/time window for group " + group);
+            log.setMessage("No profile/time window for group " + p.resourceGroupLabels[si]);
             logAndNotify(log, b);
             return log;
         }
+        String group = p.groupNames[gi];
+        log.setGroupName(group);
 
-        // Usage limits
-        UsageTracker.Limits limits = limitConfig.getOrDefault(group, new UsageTracker.Limits(0,0,0));
-        if (limits.perDay > 0) {
-            int usedToday = db.getUsageCountToday(b.getBadgeId(), group);
-            if (usedToday >= limits.perDay) {
-                log.setResult("DENIED");
-                log.setMessage("Daily limit reached (" + usedToday + "/" + limits.perDay + ")");
-                logAndNotify(log, b);
-                return log;
-            }
-        }
+        // Usage limits: the in-memory tracker is authoritative, UsageCounters is written behind it
+        UsageTracker.Limits limits = limitConfig.getOrDefault(group, NO_LIMITS);
         Optional<String> limitMsg = usageTracker.checkAndIncrement(b.getBadgeId(), group, limits, now);
         if (limitMsg.isPresent()) {
             log.setResult("DENIED");
@@ -162,12 +248,10 @@ public class AccessProcessor {
         // Granted
         log.setResult("GRANTED");
         if (log.getMessage() == null) log.setMessage("Access granted");
-        if (limits.perDay > 0) db.incrementUsageCount(b.getBadgeId(), group);
 
         if (fromZone != null && toZone != null && fromZone.equals(badgeZone) && !toZone.equals(badgeZone)) {
             db.updateBadgeCurrentZone(b.getBadgeId(), toZone);
-            b.setCurrentZoneId(toZone);
-            recordHistory(b.getBadgeId(), fromZone, toZone, res.getResourceId(), now);
+            presence.recordEntry(b.getBadgeId(), toZone, minute);
         }
 
         logAndNotify(log, b);
@@ -186,6 +270,7 @@ public class AccessProcessor {
         if (!ob.isPresent()) { log.setResult("DENIED"); log.setMessage("Badge not found"); logAndNotify(log, null); return log; }
         if (!or.isPresent()) { log.setResult("DENIED"); log.setMessage("Reader not found"); logAndNotify(log, null); return log; }
         Badge b = ob.get();
+        if (db.isRevoked(badgeId)) { log.setResult("DENIED"); log.setMessage("Badge revoked"); logAndNotify(log, b); return log; }
 
         if (!b.isRequiresUpdate()) {
             log.setResult("GRANTED");
@@ -202,6 +287,8 @@ public class AccessProcessor {
             return log;
         }
 
+        // a copy: b belongs to the published cache snapshot
+        b = b.copy();
         b.setRequiresUpdate(false);
         b.setLastUpdateTime(now);
         b.setUpdateDueDate(now.plusMonths(3));
@@ -214,35 +301,10 @@ public class AccessProcessor {
         return log;
     }
 
-    private boolean hasProfileAccess(List<String> profileNames, String group, LocalDateTime now) {
-        for (String p : profileNames) {
-            if ("P_ADMIN".equalsIgnoreCase(p)) return true;
-            Optional<Profile> op = db.findProfileByName(p);
-            if (!op.isPresent()) continue;
-            for (AccessRight r : op.get().getRights()) {
-                if (group.equals(r.getGroupName()) && r.getTimeFilter().matches(now)) return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean checkPrecedence(Badge badge, Resource res, LocalDateTime now) {
+    private boolean checkPrecedence(Badge badge, Resource res, long epochMinute) {
         String from = res.getFromZoneId();
         if (from == null || "Z_OUTSIDE".equalsIgnoreCase(from)) return true;
-        Deque<AccessHistory> deque = histories.getOrDefault(badge.getBadgeId(), new ArrayDeque<>());
-        for (AccessHistory h : deque) {
-            if (from.equals(h.getToZoneId()) && !h.getAccessTime().isBefore(now.minusMinutes(precedenceWindowMinutes))) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private void recordHistory(String badgeId, String from, String to, String resId, LocalDateTime now) {
-        histories.computeIfAbsent(badgeId, k -> new ArrayDeque<>());
-        Deque<AccessHistory> deque = histories.get(badgeId);
-        deque.addFirst(new AccessHistory(badgeId, from, to, resId, now));
-        while (deque.size() > 50) deque.removeLast();
+        return presence.enteredWithin(badge.getBadgeId(), from, epochMinute, precedenceWindowMinutes);
     }
 
     private Map<String, UsageTracker.Limits> loadUsageLimits() {
@@ -275,20 +337,16 @@ public class AccessProcessor {
         return ldt == null ? "?" : ldt.format(timeFmt);
     }
 
+    // The decision is final here; persistence and listeners run on the pipeline's consumer thread
     private void logAndNotify(AccessLog log, Badge badge) {
-        db.insertAccessLog(log);
-
-        String userName = "Unknown";
-        if (badge != null) {
-            log.setUserId(badge.getUserId());
-            Optional<User> ouser = db.findUserById(badge.getUserId());
-            if (ouser.isPresent()) {
-                userName = ouser.get().getFullName();
-            }
-        }
-        csvLogger.logAccess(log, userName);
+        if (badge != null) log.setUserId(badge.getUserId());
+        logPipeline.publish(log);
+    }
 
-        notifyListeners(log);
+    private String userName(AccessLog log) {
+        if (log.getUserId() == null) return "Unknown";
+        Optional<User> ouser = db.findUserById(log.getUserId());
+        return ouser.isPresent() ? ouser.get().getFullName() : "Unknown";
     }
 
     private void notifyListeners(AccessLog log) {
@@ -0,0 +1,192 @@
+package com.bigcomp.accesscontrol.arp;
+
+import com.bigcomp.accesscontrol.db.CacheSnapshot;
+import com.bigcomp.accesscontrol.model.*;
+
+import java.util.*;
+
+/**
+ * Immutable authorization data compiled from one DB cache snapshot.
+ * Badges, readers, resources and groups get dense int ids so that a swipe is
+ * decided with array reads only. A new snapshot is compiled whenever the caches change.
+ */
+final class PolicySnapshot {
+    static final int NONE = -1;
+
+    final long cacheVersion;
+    private final Map<String, Integer> badgeIds;
+    private final Map<String, Integer> readerIds;
+    private final Map<String, Integer> groupIds;
+
+    final Badge[] badges;
+    final int[] readerResource;           // reader id -> resource id
+    final Resource[] resources;
+    final boolean[] resourceControlled;
+    final BitSet[] resourceGroups;        // resource id -> ids of all its groups
+    final String[] resourceGroupLabels;   // "G_A,G_B" for denial messages
+    final String[] groupNames;
+
+    // Effective rights per badge: groups open at any time, then time-filtered rights
+    final BitSet[] badgeGroups;
+    final int[][] badgeRightGroups;
+    final TimeFilter[][] badgeRightFilters;
+
+    private PolicySnapshot(long cacheVersion, Map<String, Integer> badgeIds, Map<String, Integer> readerIds,
+                           Map<String, Integer> groupIds, Badge[] badges, int[] readerResource, Resource[] resources,
+                           boolean[] resourceControlled, BitSet[] resourceGroups, String[] resourceGroupLabels, String[] groupNames,
+                           BitSet[] badgeGroups, int[][] badgeRightGroups, TimeFilter[][] badgeRightFilters) {
+        this.cacheVersion = cacheVersion;
+        this.badgeIds = badgeIds;
+        this.readerIds = readerIds;
+        this.groupIds = groupIds;
+        this.badges = badges;
+        this.readerResource = readerResource;
+        this.resources = resources;
+        this.resourceControlled = resourceControlled;
+        this.resourceGroups = resourceGroups;
+        this.resourceGroupLabels = resourceGroupLabels;
+        this.groupNames = groupNames;
+        this.badgeGroups = badgeGroups;
+        this.badgeRightGroups = badgeRightGroups;
+        this.badgeRightFilters = badgeRightFilters;
+    }
+
+    int badgeId(String badgeId) {
+        Integer i = badgeIds.get(badgeId);
+        return i == null ? NONE : i;
+    }
+
+    int readerId(String readerId) {
+        Integer i = readerIds.get(readerId);
+        return i == null ? NONE : i;
+    }
+
+    /**
+     * Returns the first of the given groups on which the badge holds a right open at the
+     * given epoch minute, or NONE.
+     */
+    int grantingGroup(int badge, BitSet groups, long epochMinute) {
+        BitSet always = badgeGroups[badge];
+        if (always.intersects(groups)) {
+            for (int g = groups.nextSetBit(0); g >= 0; g = groups.nextSetBit(g + 1)) {
+                if (always.get(g)) return g;
+            }
+        }
+        int[] rightGroups = badgeRightGroups[badge];
+        TimeFilter[] filters = badgeRightFilters[badge];
+        for (int i = 0; i < rightGroups.length; i++) {
+            if (groups.get(rightGroups[i]) && filters[i].matches(epochMinute)) return rightGroups[i];
+        }
+        return NONE;
+    }
+
+    static PolicySnapshot compile(CacheSnapshot db) {
+        // Group ids are the DB's own, so the resource -> groups index can be used as is
+        String[] groupNames = db.getGroupIds().toArray(new String[0]);
+        Map<String, Integer> groupIds = new HashMap<>();
+        for (int i = 0; i < groupNames.length; i++) groupIds.put(groupNames[i], i);
+
+        Map<String, Integer> resourceIds = new HashMap<>();
+        Collection<Resource> allResources = db.getAllResources();
+        Resource[] resources = new Resource[allResources.size()];
+        boolean[] controlled = new boolean[resources.length];
+        BitSet[] resourceGroups = new BitSet[resources.length];
+        String[] resourceGroupLabels = new String[resources.length];
+        for (Resource r : allResources) {
+            int id = resourceIds.size();
+            resourceIds.put(r.getResourceId(), id);
+            resources[id] = r;
+            controlled[id] = r.isControlled();
+            BitSet groups = db.findGroupsForResource(r.getResourceId());
+            resourceGroups[id] = groups;
+            StringJoiner label = new StringJoiner(",");
+            for (int g = groups.nextSetBit(0); g >= 0; g = groups.nextSetBit(g + 1)) label.add(groupNames[g]);
+            resourceGroupLabels[id] = label.toString();
+        }
+
+        Map<String, Integer> readerIds = new HashMap<>();
+        Collection<Reader> allReaders = db.getAllReaders();
+        int[] readerResource = new int[allReaders.size()];
+        for (Reader r : allReaders) {
+            int id = readerIds.size();
+            readerIds.put(r.getReaderId(), id);
+            Integer res = r.getResourceId() == null ? null : resourceIds.get(r.getResourceId());
+            readerResource[id] = res == null ? NONE : res;
+        }
+
+        Map<String, Integer> badgeIds = new HashMap<>();
+        Collection<Badge> allBadges = db.getAllBadges();
+        Badge[] badges = new Badge[allBadges.size()];
+        BitSet[] badgeGroups = new BitSet[badges.length];
+        int[][] rightGroups = new int[badges.length][];
+        TimeFilter[][] rightFilters = new TimeFilter[badges.length][];
+        for (Badge b : allBadges) {
+            int id = badgeIds.size();
+            badgeIds.put(b.getBadgeId(), id);
+            badges[id] = b;
+            compileRights(db, b.getBadgeId(), groupIds, groupNames.length, id, badgeGroups, rightGroups, rightFilters);
+        }
+
+        return new PolicySnapshot(db.getVersion(), badgeIds, readerIds, groupIds, badges, readerResource, resources,
+                controlled, resourceGroups, resourceGroupLabels, groupNames, badgeGroups, rightGroups, rightFilters);
+    }
+
+    /**
+     * Copy of this snapshot with the rights of every badge holding one of the given profiles
+     * recompiled from the cache. Valid only when nothing but those profiles changed.
+     */
+    PolicySnapshot withProfiles(CacheSnapshot db, Collection<String> profileNames) {
+        BitSet[] always = badgeGroups.clone();
+        int[][] rightGroups = badgeRightGroups.clone();
+        TimeFilter[][] rightFilters = badgeRightFilters.clone();
+        for (int id = 0; id < badges.length; id++) {
+            String badgeId = badges[id].getBadgeId();
+            for (String p : db.getProfilesForBadge(badgeId)) {
+                if (profileNames.contains(p)) {
+                    compileRights(db, badgeId, groupIds, groupNames.length, id, always, rightGroups, rightFilters);
+                    break;
+                }
+            }
+        }
+        return new PolicySnapshot(db.getVersion(), badgeIds, readerIds, groupIds, badges, readerResource, resources,
+                resourceControlled, resourceGroups, resourceGroupLabels, groupNames, always, rightGroups, rightFilters);
+    }
+
+    /** Copy of this snapshot with one badge's entry replaced and its rights kept, or null if the badge is not in it. */
+    PolicySnapshot withBadge(long cacheVersion, Badge badge) {
+        Integer id = badgeIds.get(badge.getBadgeId());
+        if (id == null) return null;
+        Badge[] b = badges.clone();
+        b[id] = badge;
+        return new PolicySnapshot(cacheVersion, badgeIds, readerIds, groupIds, b, readerResource, resources,
+                resourceControlled, resourceGroups, resourceGroupLabels, groupNames, badgeGroups, badgeRightGroups, badgeRightFilters);
+    }
+
+    private static void compileRights(CacheSnapshot db, String badgeId, Map<String, Integer> groupIds, int groupCount, int id,
+                                      BitSet[] badgeGroups, int[][] rightGroups, TimeFilter[][] rightFilters) {
+        BitSet always = new BitSet(groupCount);
+        List<Integer> groups = new ArrayList<>();
+        List<TimeFilter> filters = new ArrayList<>();
+        for (String p : db.getProfilesForBadge(badgeId)) {
+            if ("P_ADMIN".equalsIgnoreCase(p)) {
+                always.set(0, groupCount);
+                continue;
+            }
+            Optional<Profile> op = db.findProfileByName(p);
+            if (!op.isPresent()) continue;
+            for (AccessRight right : op.get().getRights()) {
+                Integer g = groupIds.get(right.getGroupName());
+                if (g == null) continue; // group without resources can never match
+                if (right.getTimeFilter().acceptsAll()) {
+                    always.set(g);
+                } else {
+                    groups.add(g);
+                    filters.add(right.getTimeFilter());
+                }
+            }
+        }
+        badgeGroups[id] = always;
+        rightGroups[id] = groups.stream().mapToInt(Integer::intValue).toArray();
+        rightFilters[id] = filters.toArray(new TimeFilter[0]);
+    }
+}
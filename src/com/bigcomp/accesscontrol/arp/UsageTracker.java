@@ -1,77 +1,317 @@
 package com.bigcomp.accesscontrol.arp;
 
+import com.bigcomp.accesscontrol.db.DB;
+import com.bigcomp.accesscontrol.model.UsageCounter;
+import com.bigcomp.accesscontrol.util.AppConfig;
+
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.time.*;
 import java.time.temporal.WeekFields;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-/** Tracks per-badge per-group usage for day/week/month limits with simple file persistence. */
+/**
+ * Tracks per-badge per-group usage for day/week/month limits.
+ * Badge and group names are interned to ints; each tracked pair owns a slot in parallel
+ * primitive arrays holding its counters and the epoch-day/week/month they belong to,
+ * so rolling a window over is an integer comparison.
+ * Persistence is a compacted snapshot (usage_tracker.csv) plus an append-only journal holding
+ * the new state of every counter changed since; startup replays the journal onto the snapshot.
+ * The tracker is the only counter consulted on a swipe. Changed daily counts are written behind
+ * to the UsageCounters table in periodic batches, and today's rows from that table are merged in
+ * at startup so counts survive a lost local file.
+ */
 public class UsageTracker {
-    private final Map<String, UsageWindow> counters = new HashMap<>();
     private final File file = new File("data/usage_tracker.csv");
-    private final WeekFields weekFields = WeekFields.ISO;
+    private final File journalFile = new File("data/usage_tracker.journal");
+    private final int compactEvery = Math.max(1, AppConfig.getInt("usage.journal.compactEvery", 10000));
+    private final DB db;
+    private final ScheduledExecutorService writer;
+    private final Object flushLock = new Object();
+    private Writer journal;
+    private int journalEntries;
+    private final StringBuilder line = new StringBuilder(64);
+    private char[] lineChars = new char[64];
+
+    // Interned names
+    private final Map<String, Integer> badgeIds = new HashMap<>();
+    private final List<String> badgeNames = new ArrayList<>();
+    private final Map<String, Integer> groupIds = new HashMap<>();
+    private final List<String> groupNames = new ArrayList<>();
+
+    // (badge << 32 | group) -> slot
+    private final LongIntMap slots = new LongIntMap();
+
+    // Per-slot counters
+    private int size;
+    private int[] slotBadge = new int[64];
+    private int[] slotGroup = new int[64];
+    private int[] dayStamp = new int[64];
+    private int[] dayCount = new int[64];
+    private int[] weekStamp = new int[64];
+    private int[] weekCount = new int[64];
+    private int[] monthStamp = new int[64];
+    private int[] monthCount = new int[64];
 
-    public UsageTracker() {
-        load();
+    // Slots whose daily count has not reached UsageCounters yet
+    private boolean[] dirty = new boolean[64];
+    private int[] dirtyList = new int[64];
+    private int dirtyCount;
+
+    public UsageTracker(DB db) {
+        this.db = db;
+        readEntries(file);
+        readEntries(journalFile);
+        hydrate(LocalDate.now());
+        compact();
+        long interval = Math.max(50, AppConfig.getLong("usage.db.flushMs", 1000));
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "usage-counter-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
     }
 
-    public Optional<String> checkAndIncrement(String badgeId, String group, Limits limits, LocalDateTime now) {
+    public synchronized Optional<String> checkAndIncrement(String badgeId, String group, Limits limits, LocalDateTime now) {
         if (limits == null) return Optional.empty();
         if (limits.isUnlimited()) return Optional.empty();
-        String key = badgeId + "|" + group;
-        UsageWindow w = counters.computeIfAbsent(key, k -> new UsageWindow(now));
-        w.rollIfNeeded(now, weekFields);
+        int day = (int) now.toLocalDate().toEpochDay();
+        int s = slot(intern(badgeIds, badgeNames, badgeId), intern(groupIds, groupNames, group));
+        roll(s, day, epochWeek(day), epochMonth(now.getYear(), now.getMonthValue()));
 
-        if (limits.perDay > 0 && w.dayCount >= limits.perDay) {
-            return Optional.of("Daily limit reached " + w.dayCount + "/" + limits.perDay);
+        if (limits.perDay > 0 && dayCount[s] >= limits.perDay) {
+            return Optional.of("Daily limit reached " + dayCount[s] + "/" + limits.perDay);
         }
-        if (limits.perWeek > 0 && w.weekCount >= limits.perWeek) {
-            return Optional.of("Weekly limit reached " + w.weekCount + "/" + limits.perWeek);
+        if (limits.perWeek > 0 && weekCount[s] >= limits.perWeek) {
+            return Optional.of("Weekly limit reached " + weekCount[s] + "/" + limits.perWeek);
         }
-        if (limits.perMonth > 0 && w.monthCount >= limits.perMonth) {
-            return Optional.of("Monthly limit reached " + w.monthCount + "/" + limits.perMonth);
+        if (limits.perMonth > 0 && monthCount[s] >= limits.perMonth) {
+            return Optional.of("Monthly limit reached " + monthCount[s] + "/" + limits.perMonth);
         }
 
-        w.dayCount++;
-        w.weekCount++;
-        w.monthCount++;
-        save();
+        dayCount[s]++;
+        weekCount[s]++;
+        monthCount[s]++;
+        appendJournal(s);
+        markDirty(s);
         return Optional.empty();
     }
 
-    private void load() {
-        counters.clear();
-        if (!file.exists()) return;
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] arr = line.split("\\|");
-                if (arr.length != 8) continue;
-                String key = arr[0];
-                LocalDate day = LocalDate.parse(arr[1]);
-                int dayCount = Integer.parseInt(arr[2]);
-                int week = Integer.parseInt(arr[3]);
-                int weekYear = Integer.parseInt(arr[4]);
-                int weekCount = Integer.parseInt(arr[5]);
-                String monthKey = arr[6];
-                int monthCount = Integer.parseInt(arr[7]);
-                counters.put(key, new UsageWindow(day, dayCount, week, weekYear, weekCount, monthKey, monthCount));
+    /** Merges today's UsageCounters rows; a higher DB count means uses this tracker never saw. */
+    private void hydrate(LocalDate today) {
+        if (db == null) return;
+        int day = (int) today.toEpochDay();
+        int week = epochWeek(day);
+        int month = epochMonth(today.getYear(), today.getMonthValue());
+        for (UsageCounter c : db.loadUsageCounters()) {
+            if (!today.equals(c.getLastUsageDate())) continue;
+            int s = slot(intern(badgeIds, badgeNames, c.getBadgeId()), intern(groupIds, groupNames, c.getGroupName()));
+            roll(s, day, week, month);
+            int missing = c.getUsageCount() - dayCount[s];
+            if (missing <= 0) {
+                if (missing < 0) markDirty(s);
+                continue;
             }
-        } catch (Exception ignored) { }
+            dayCount[s] += missing;
+            weekCount[s] += missing;
+            monthCount[s] += missing;
+        }
     }
 
-    private void save() {
-        file.getParentFile().mkdirs();
-        try (PrintWriter pw = new PrintWriter(new FileWriter(file))) {
-            for (Map.Entry<String, UsageWindow> e : counters.entrySet()) {
-                UsageWindow w = e.getValue();
-                pw.printf("%s|%s|%d|%d|%d|%d|%s|%d%n",
-                        e.getKey(),
-                        w.day.toString(), w.dayCount,
-                        w.week, w.weekYear, w.weekCount,
-                        w.monthKey, w.monthCount);
+    private void markDirty(int s) {
+        if (dirty[s]) return;
+        dirty[s] = true;
+        if (dirtyCount == dirtyList.length) dirtyList = Arrays.copyOf(dirtyList, dirtyCount * 2);
+        dirtyList[dirtyCount++] = s;
+    }
+
+    /** Writes every changed daily count to UsageCounters in one batch. */
+    public void flush() {
+        if (db == null) return;
+        synchronized (flushLock) {
+            int[] taken;
+            List<UsageCounter> rows;
+            synchronized (this) {
+                if (dirtyCount == 0) return;
+                taken = Arrays.copyOf(dirtyList, dirtyCount);
+                rows = new ArrayList<>(taken.length);
+                for (int s : taken) {
+                    dirty[s] = false;
+                    rows.add(new UsageCounter(badgeNames.get(slotBadge[s]), groupNames.get(slotGroup[s]),
+                            dayCount[s], LocalDate.ofEpochDay(dayStamp[s])));
+                }
+                dirtyCount = 0;
+            }
+            // Outside the tracker lock so swipes keep going while the batch is in flight
+            List<Integer> retry = db.upsertUsageCounters(rows);
+            if (!retry.isEmpty()) {
+                synchronized (this) {
+                    for (int i : retry) markDirty(taken[i]);
+                }
+            }
+        }
+    }
+
+    /** Stops the background writer after a final flush. */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        synchronized (this) {
+            try {
+                if (journal != null) journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } catch (Exception ignored) { }
+            journal = null;
+        }
+    }
+
+    private void roll(int s, int day, int week, int month) {
+        if (dayStamp[s] != day) { dayStamp[s] = day; dayCount[s] = 0; }
+        if (weekStamp[s] != week) { weekStamp[s] = week; weekCount[s] = 0; }
+        if (monthStamp[s] != month) { monthStamp[s] = month; monthCount[s] = 0; }
+    }
+
+    /** ISO weeks start on Monday; 1970-01-01 was a Thursday */
+    private static int epochWeek(int epochDay) {
+        return Math.floorDiv(epochDay + 3, 7);
+    }
+
+    private static int epochMonth(int year, int month) {
+        return (year - 1970) * 12 + month - 1;
+    }
+
+    private static int intern(Map<String, Integer> ids, List<String> names, String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        int n = names.size();
+        ids.put(name, n);
+        names.add(name);
+        return n;
+    }
+
+    private int slot(int badge, int group) {
+        long key = ((long) badge << 32) | group;
+        int s = slots.get(key);
+        if (s >= 0) return s;
+        if (size == slotBadge.length) grow();
+        s = size++;
+        slotBadge[s] = badge;
+        slotGroup[s] = group;
+        dayStamp[s] = weekStamp[s] = monthStamp[s] = Integer.MIN_VALUE;
+        slots.put(key, s);
+        return s;
+    }
+
+    private void grow() {
+        int n = slotBadge.length * 2;
+        slotBadge = Arrays.copyOf(slotBadge, n);
+        slotGroup = Arrays.copyOf(slotGroup, n);
+        dayStamp = Arrays.copyOf(dayStamp, n);
+        dayCount = Arrays.copyOf(dayCount, n);
+        weekStamp = Arrays.copyOf(weekStamp, n);
+        weekCount = Arrays.copyOf(weekCount, n);
+        monthStamp = Arrays.copyOf(monthStamp, n);
+        monthCount = Arrays.copyOf(monthCount, n);
+        dirty = Arrays.copyOf(dirty, n);
+    }
+
+    // Line format: badge|group|epochDay|dayCount|epochWeek|weekCount|epochMonth|monthCount
+    // Journal lines use the snapshot format; the last line for a pair wins
+    private void readEntries(File f) {
+        if (!f.exists()) return;
+        try (BufferedReader br = Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8)) {
+            String l;
+            while ((l = br.readLine()) != null) {
+                String[] arr = l.split("\\|");
+                try {
+                    if (arr.length == 8) {
+                        int s = slot(intern(badgeIds, badgeNames, arr[0]), intern(groupIds, groupNames, arr[1]));
+                        dayStamp[s] = Integer.parseInt(arr[2]);
+                        dayCount[s] = Integer.parseInt(arr[3]);
+                        weekStamp[s] = Integer.parseInt(arr[4]);
+                        weekCount[s] = Integer.parseInt(arr[5]);
+                        monthStamp[s] = Integer.parseInt(arr[6]);
+                        monthCount[s] = Integer.parseInt(arr[7]);
+                    } else if (arr.length == 9) {
+                        readLegacyEntry(arr);
+                    }
+                    // anything else is a torn last line
+                } catch (RuntimeException ignored) { }
+            }
+        } catch (IOException ignored) { }
+    }
+
+    // Earlier format: badge|group|yyyy-MM-dd|dayCount|isoWeek|isoWeekYear|weekCount|yyyy-MM|monthCount
+    private void readLegacyEntry(String[] arr) {
+        int s = slot(intern(badgeIds, badgeNames, arr[0]), intern(groupIds, groupNames, arr[1]));
+        dayStamp[s] = (int) LocalDate.parse(arr[2]).toEpochDay();
+        dayCount[s] = Integer.parseInt(arr[3]);
+        LocalDate monday = LocalDate.of(Integer.parseInt(arr[5]), 1, 4)
+                .with(WeekFields.ISO.weekOfWeekBasedYear(), Integer.parseInt(arr[4]))
+                .with(DayOfWeek.MONDAY);
+        weekStamp[s] = epochWeek((int) monday.toEpochDay());
+        weekCount[s] = Integer.parseInt(arr[6]);
+        YearMonth ym = YearMonth.parse(arr[7]);
+        monthStamp[s] = epochMonth(ym.getYear(), ym.getMonthValue());
+        monthCount[s] = Integer.parseInt(arr[8]);
+    }
+
+    private void format(int s, Writer out) throws IOException {
+        line.setLength(0);
+        line.append(badgeNames.get(slotBadge[s])).append('|').append(groupNames.get(slotGroup[s]))
+                .append('|').append(dayStamp[s]).append('|').append(dayCount[s])
+                .append('|').append(weekStamp[s]).append('|').append(weekCount[s])
+                .append('|').append(monthStamp[s]).append('|').append(monthCount[s]).append('\n');
+        int n = line.length();
+        if (n > lineChars.length) lineChars = new char[n * 2];
+        line.getChars(0, n, lineChars, 0);
+        out.write(lineChars, 0, n);
+    }
+
+    private void appendJournal(int s) {
+        try {
+            if (journal == null) {
+                journalFile.getParentFile().mkdirs();
+                journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+            }
+            format(s, journal);
+            journal.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (++journalEntries >= compactEvery) compact();
+    }
+
+    /** Writes a fresh snapshot (atomically replacing the old one) and starts an empty journal. */
+    private synchronized void compact() {
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (int s = 0; s < size; s++) format(s, w);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (journal != null) journal.close();
+            // Replaying the old journal onto the new snapshot would be harmless, so a crash here loses nothing
+            journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, false), StandardCharsets.UTF_8));
+            journalEntries = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public static class Limits {
@@ -84,47 +324,60 @@ public class UsageTracker {
         public boolean isUnlimited() { return perDay <=0 && perWeek<=0 && perMonth<=0; }
     }
 
-    private static class UsageWindow {
-        LocalDate day;
-        int dayCount;
-        int week;
-        int weekYear;
-        int weekCount;
-        String monthKey;
-        int monthCount;
+    /** Open-addressing long -> int map (linear probing, no removal); get returns -1 when absent */
+    private static final class LongIntMap {
+        private static final long EMPTY = -1L; // keys are (badge << 32 | group) with non-negative ids
+        private long[] keys;
+        private int[] values;
+        private int count;
 
-        UsageWindow(LocalDateTime now) {
-            this(now.toLocalDate(), 0,
-                    (int) WeekFields.ISO.weekOfWeekBasedYear().getFrom(now),
-                    now.get(WeekFields.ISO.weekBasedYear()),
-                    0,
-                    now.getYear() + "-" + String.format("%02d", now.getMonthValue()),
-                    0);
+        LongIntMap() {
+            keys = new long[128];
+            values = new int[128];
+            Arrays.fill(keys, EMPTY);
         }
 
-        UsageWindow(LocalDate day, int dayCount, int week, int weekYear, int weekCount, String monthKey, int monthCount) {
-            this.day = day; this.dayCount = dayCount; this.week = week; this.weekYear = weekYear; this.weekCount = weekCount; this.monthKey = monthKey; this.monthCount = monthCount;
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                long k = keys[i];
+                if (k == key) return values[i];
+                if (k == EMPTY) return -1;
+            }
         }
 
-        void rollIfNeeded(LocalDateTime now, WeekFields wf) {
-            LocalDate today = now.toLocalDate();
-            String currentMonthKey = now.getYear() + "-" + String.format("%02d", now.getMonthValue());
-            int currentWeek = (int) wf.weekOfWeekBasedYear().getFrom(now);
-            int currentWeekYear = now.get(wf.weekBasedYear());
-
-            if (!today.equals(day)) {
-                day = today;
-                dayCount = 0;
-            }
-            if (currentWeek != week || currentWeekYear != weekYear) {
-                week = currentWeek;
-                weekYear = currentWeekYear;
-                weekCount = 0;
+        void put(long key, int value) {
+            if ((count + 1) * 2 > keys.length) rehash();
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == EMPTY) {
+                    keys[i] = key;
+                    values[i] = value;
+                    count++;
+                    return;
+                }
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
             }
-            if (!currentMonthKey.equals(monthKey)) {
-                monthKey = currentMonthKey;
-                monthCount = 0;
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            count = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) put(oldKeys[i], oldValues[i]);
             }
         }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
     }
 }
@@ -0,0 +1,208 @@
+package com.bigcomp.accesscontrol.arp;
+
+import com.bigcomp.accesscontrol.model.Zone;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where each badge is and when it got there, for the precedence rule.
+ * Zones are interned to small stable ints. Every badge keeps entry epoch-minutes indexed by
+ * zone id plus a presence mask: the zone it last entered and the ancestors it is still inside.
+ * The zone hierarchy is compiled into per-zone ancestor bitsets, so a multi-level rule
+ * ("entered the building and the floor within N minutes") is one mask AND and one array read
+ * however deep the site is. Badges with no entry inside the TTL are evicted by a periodic sweep.
+ */
+final class ZonePresence {
+    private static final long NEVER = Long.MIN_VALUE;
+    private static final int NONE = -1;
+    private static final int SWEEP_EVERY = 4096;
+
+    private final long ttlMinutes;
+    private final Map<String, Integer> zoneIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextZoneId = new AtomicInteger();
+    private final ConcurrentHashMap<String, BadgeState> badges = new ConcurrentHashMap<>();
+    private final AtomicInteger recordsSinceSweep = new AtomicInteger();
+    private volatile Hierarchy hierarchy = new Hierarchy(0);
+
+    ZonePresence(long ttlMinutes) {
+        this.ttlMinutes = ttlMinutes;
+    }
+
+    /** Compiles the zone tree; zones missing from it (or in a cycle) behave as roots. */
+    void setZones(Collection<Zone> zones) {
+        Map<String, String> parents = new HashMap<>();
+        for (Zone z : zones) {
+            zoneId(z.getZoneId());
+            parents.put(z.getZoneId(), z.getParentZoneId());
+        }
+        for (String parent : parents.values()) {
+            if (parent != null) zoneId(parent);
+        }
+        Hierarchy h = new Hierarchy(nextZoneId.get());
+        for (Map.Entry<String, String> e : parents.entrySet()) {
+            if (e.getValue() != null) h.parent[zoneIds.get(e.getKey())] = zoneIds.get(e.getValue());
+        }
+        h.compile();
+        hierarchy = h;
+    }
+
+    /**
+     * True if the badge entered the zone at or after epochMinute - windowMinutes and, when the
+     * zone sits below non-root ancestors, is still inside all of them and entered each of them
+     * within the same window.
+     */
+    boolean enteredWithin(String badgeId, String zoneId, long epochMinute, long windowMinutes) {
+        BadgeState s = badges.get(badgeId);
+        if (s == null) return false;
+        Integer z = zoneIds.get(zoneId);
+        if (z == null) return false;
+        return s.satisfies(z, hierarchy, epochMinute - windowMinutes);
+    }
+
+    void recordEntry(String badgeId, String zoneId, long epochMinute) {
+        int z = zoneId(zoneId);
+        Hierarchy h = hierarchy;
+        // compute keeps the update atomic with respect to eviction of the same badge
+        badges.compute(badgeId, (k, s) -> {
+            if (s == null) s = new BadgeState();
+            s.enter(z, h, epochMinute);
+            return s;
+        });
+        if (recordsSinceSweep.incrementAndGet() >= SWEEP_EVERY) {
+            recordsSinceSweep.set(0);
+            evictOlderThan(epochMinute - ttlMinutes);
+        }
+    }
+
+    /** Drops badges whose latest zone entry is before the cutoff. */
+    void evictOlderThan(long cutoffEpochMinute) {
+        for (String badgeId : badges.keySet()) {
+            badges.computeIfPresent(badgeId, (k, s) -> s.lastEntry() < cutoffEpochMinute ? null : s);
+        }
+    }
+
+    int size() { return badges.size(); }
+
+    private int zoneId(String zoneId) {
+        Integer z = zoneIds.get(zoneId);
+        if (z != null) return z;
+        return zoneIds.computeIfAbsent(zoneId, k -> nextZoneId.getAndIncrement());
+    }
+
+    private static boolean contains(long[] mask, int bit) {
+        int w = bit >>> 6;
+        return w < mask.length && (mask[w] & (1L << bit)) != 0;
+    }
+
+    private static boolean containsAll(long[] mask, long[] required) {
+        for (int w = 0; w < required.length; w++) {
+            long m = w < mask.length ? mask[w] : 0L;
+            if ((m & required[w]) != required[w]) return false;
+        }
+        return true;
+    }
+
+    /** Immutable compiled zone tree, indexed by interned zone id. */
+    private static final class Hierarchy {
+        final int size;
+        final int[] parent;
+        final long[][] ancestorsOrSelf;
+        // Ancestors below the root that must be entered first; null when there are none
+        final long[][] requiredAncestors;
+
+        Hierarchy(int size) {
+            this.size = size;
+            this.parent = new int[size];
+            this.ancestorsOrSelf = new long[size][];
+            this.requiredAncestors = new long[size][];
+            Arrays.fill(parent, NONE);
+        }
+
+        void compile() {
+            int words = (size + 63) >>> 6;
+            for (int z = 0; z < size; z++) {
+                long[] all = new long[words];
+                long[] required = new long[words];
+                boolean any = false;
+                all[z >>> 6] |= 1L << z;
+                for (int a = parent[z], steps = 0; a != NONE; a = parent[a]) {
+                    if (++steps > size || (all[a >>> 6] & (1L << a)) != 0) {
+                        // cycle: treat the zone as a root
+                        parent[z] = NONE;
+                        Arrays.fill(all, 0L);
+                        all[z >>> 6] |= 1L << z;
+                        Arrays.fill(required, 0L);
+                        any = false;
+                        break;
+                    }
+                    all[a >>> 6] |= 1L << a;
+                    if (parent[a] != NONE) {
+                        required[a >>> 6] |= 1L << a;
+                        any = true;
+                    }
+                }
+                ancestorsOrSelf[z] = all;
+                requiredAncestors[z] = any ? required : null;
+            }
+        }
+
+        boolean isRoot(int z) {
+            return z >= size || parent[z] == NONE;
+        }
+    }
+
+    private static final class BadgeState {
+        private long[] enteredAt = new long[0];
+        // Oldest entry time along the chain of non-root ancestors the badge came through, self included
+        private long[] chainStart = new long[0];
+        private long[] mask = new long[0];
+        private long lastEntry = NEVER;
+
+        synchronized boolean satisfies(int zone, Hierarchy h, long cutoff) {
+            if (zone >= enteredAt.length || enteredAt[zone] < cutoff) return false;
+            long[] required = zone < h.size ? h.requiredAncestors[zone] : null;
+            if (required == null) return true;
+            int p = h.parent[zone];
+            return containsAll(mask, required) && p < chainStart.length && chainStart[p] >= cutoff;
+        }
+
+        synchronized void enter(int zone, Hierarchy h, long epochMinute) {
+            ensure(Math.max(zone, h.size - 1));
+            // Leaving for another branch drops the zones the badge is no longer inside
+            if (zone < h.size) {
+                long[] keep = h.ancestorsOrSelf[zone];
+                for (int w = 0; w < mask.length; w++) mask[w] &= w < keep.length ? keep[w] : 0L;
+            } else {
+                Arrays.fill(mask, 0L);
+            }
+            mask[zone >>> 6] |= 1L << zone;
+
+            int p = zone < h.size ? h.parent[zone] : NONE;
+            long start = epochMinute;
+            if (p != NONE && !h.isRoot(p) && contains(mask, p)) start = Math.min(start, chainStart[p]);
+            chainStart[zone] = start;
+            if (epochMinute > enteredAt[zone]) enteredAt[zone] = epochMinute;
+            if (epochMinute > lastEntry) lastEntry = epochMinute;
+        }
+
+        private void ensure(int zone) {
+            if (zone < enteredAt.length) return;
+            int n = enteredAt.length;
+            int size = Math.max(zone + 1, n * 2);
+            enteredAt = Arrays.copyOf(enteredAt, size);
+            chainStart = Arrays.copyOf(chainStart, size);
+            Arrays.fill(enteredAt, n, size, NEVER);
+            Arrays.fill(chainStart, n, size, NEVER);
+            mask = Arrays.copyOf(mask, (size + 63) >>> 6);
+        }
+
+        synchronized long lastEntry() {
+            return lastEntry;
+        }
+    }
+}
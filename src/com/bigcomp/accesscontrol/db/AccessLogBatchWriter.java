@@ -0,0 +1,231 @@
+package com.bigcomp.accesscontrol.db;
+
+import com.bigcomp.accesscontrol.log.AccessLogPipeline;
+import com.bigcomp.accesscontrol.model.AccessLog;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Group-commit writer for AccessLogs: rows are accumulated and written in one statement
+ * once {@code batchSize} rows are pending or the oldest pending row is {@code maxAgeMillis} old.
+ * Rows the server refuses for their data go to a rejected file. While the DB is down, rows
+ * beyond {@code 20 * batchSize} are moved to a backlog file (pipeline spill format) and
+ * written once the DB takes rows again, after the rows queued meanwhile.
+ * Runs on the log pipeline's consumer thread, so it is not thread-safe by itself.
+ */
+public class AccessLogBatchWriter implements AccessLogPipeline.Sink {
+    private final DB db;
+    private final int batchSize;
+    private final long maxAgeMillis;
+    private final int maxPending;
+    private final List<AccessLog> pending = new ArrayList<>();
+    private long oldestPendingMillis;
+    private final File backlogFile;
+    private final File rejectedFile;
+    private boolean backlogPending;
+    private long nextBacklogAttemptMillis;
+
+    // Statistics
+    private long rowsWritten;
+    private long rowsDropped;
+    private long rowsRejected;
+    private long rowsBacklogged;
+    private long flushes;
+    private long totalFlushNanos;
+    private long maxFlushNanos;
+    private long firstWriteMillis;
+
+    public AccessLogBatchWriter(DB db, int batchSize, long maxAgeMillis, File backlogFile, File rejectedFile) {
+        this.db = db;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxAgeMillis = Math.max(0, maxAgeMillis);
+        this.maxPending = this.batchSize * 20; // rows kept in memory for retry while the DB is failing
+        this.backlogFile = backlogFile;
+        this.rejectedFile = rejectedFile;
+        // rows left over from a previous run are written first
+        this.backlogPending = backlogFile.length() > 0 || replayFile().exists();
+    }
+
+    @Override
+    public void accept(AccessLog log) {
+        if (pending.isEmpty()) oldestPendingMillis = System.currentTimeMillis();
+        pending.add(log);
+        if (pending.size() >= batchSize) flushPending();
+    }
+
+    /** Age trigger, checked whenever the pipeline is idle */
+    @Override
+    public void flush() {
+        if (!pending.isEmpty() && System.currentTimeMillis() - oldestPendingMillis >= maxAgeMillis) flushPending();
+        else if (pending.isEmpty() && backlogPending && System.currentTimeMillis() >= nextBacklogAttemptMillis) replayBacklog();
+    }
+
+    @Override
+    public void close() {
+        if (!pending.isEmpty()) flushPending();
+        if (!pending.isEmpty()) {
+            // DB still failing: the next start replays them from the backlog
+            System.err.println("AccessLogs unavailable at shutdown: moving " + pending.size() + " rows to " + backlogFile);
+            appendBacklog(pending, null);
+            pending.clear();
+        }
+        System.out.println("AccessLogs writer: " + getStatsSummary());
+    }
+
+    private void flushPending() {
+        long start = System.nanoTime();
+        int written = write(pending);
+        long elapsed = System.nanoTime() - start;
+        if (written > 0) {
+            flushes++;
+            totalFlushNanos += elapsed;
+            maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+            pending.subList(0, written).clear();
+        }
+        if (pending.isEmpty()) {
+            if (backlogPending) replayBacklog();
+            return;
+        }
+        if (pending.size() >= maxPending) {
+            System.err.println("AccessLogs unavailable: moving " + pending.size() + " rows to " + backlogFile);
+            appendBacklog(pending, null);
+            pending.clear();
+        } else {
+            oldestPendingMillis = System.currentTimeMillis(); // retry after another max-age period
+        }
+    }
+
+    /** Inserts the rows; returns how many leading rows were written or rejected. */
+    private int write(List<AccessLog> rows) {
+        int[] rejected = {0};
+        int done = db.insertAccessLogs(rows, batchSize, log -> {
+            rejected[0]++;
+            reject(log);
+        });
+        if (done - rejected[0] > 0 && firstWriteMillis == 0) firstWriteMillis = System.currentTimeMillis();
+        rowsWritten += done - rejected[0];
+        return done;
+    }
+
+    private void reject(AccessLog log) {
+        reject(AccessLogPipeline.encode(log));
+    }
+
+    private void reject(String line) {
+        rowsRejected++;
+        if (!appendLines(rejectedFile, List.of(line))) {
+            rowsDropped++;
+            System.err.println("AccessLogs row lost: " + line);
+        }
+    }
+
+    private File replayFile() {
+        return new File(backlogFile.getPath() + ".replay");
+    }
+
+    /**
+     * Writes the backlog in chunks of {@code maxPending} rows; if the DB fails again, the rows
+     * not yet written go back to the backlog and the next attempt waits a while.
+     */
+    private void replayBacklog() {
+        File replay = replayFile();
+        backlogPending = false;
+        if (!replay.exists() && !backlogFile.renameTo(replay)) return;
+        List<AccessLog> chunk = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(replay), StandardCharsets.UTF_8))) {
+            String line;
+            while (true) {
+                line = br.readLine();
+                if (line != null) {
+                    AccessLog log = AccessLogPipeline.decode(line);
+                    if (log != null) chunk.add(log);
+                    else reject(line); // e.g. a row queued without a timestamp
+                    if (chunk.size() < maxPending) continue;
+                }
+                int done = write(chunk);
+                if (done < chunk.size()) {
+                    if (!appendBacklog(chunk.subList(done, chunk.size()), br)) {
+                        backlogPending = true; // replay file kept for the next attempt
+                        return;
+                    }
+                    nextBacklogAttemptMillis = System.currentTimeMillis() + Math.max(1000, maxAgeMillis);
+                    break;
+                }
+                chunk.clear();
+                if (line == null) break;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            backlogPending = true;
+            nextBacklogAttemptMillis = System.currentTimeMillis() + Math.max(1000, maxAgeMillis);
+            return;
+        }
+        replay.delete();
+    }
+
+    /** Appends the rows, then any lines left in rest, to the backlog; false if that failed. */
+    private boolean appendBacklog(List<AccessLog> rows, BufferedReader rest) {
+        List<String> lines = new ArrayList<>(rows.size());
+        for (AccessLog log : rows) lines.add(AccessLogPipeline.encode(log));
+        boolean ok = appendLines(backlogFile, lines);
+        if (ok && rest != null) {
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(backlogFile, true), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = rest.readLine()) != null) {
+                    w.write(line);
+                    w.write('\n');
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                ok = false;
+            }
+        }
+        if (ok) {
+            rowsBacklogged += rows.size();
+            backlogPending = true;
+        } else if (rest == null) {
+            rowsDropped += rows.size();
+            System.err.println("AccessLogs backlog not writable, " + rows.size() + " rows lost");
+        }
+        return ok;
+    }
+
+    private static boolean appendLines(File file, List<String> lines) {
+        if (file.getParentFile() != null) file.getParentFile().mkdirs();
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+            for (String line : lines) {
+                w.write(line);
+                w.write('\n');
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public long getRowsWritten() { return rowsWritten; }
+    public long getRowsDropped() { return rowsDropped; }
+    public long getRowsRejected() { return rowsRejected; }
+    public long getRowsBacklogged() { return rowsBacklogged; }
+    public long getFlushes() { return flushes; }
+    public int getPendingRows() { return pending.size(); }
+    public double getAvgFlushMillis() { return flushes == 0 ? 0 : totalFlushNanos / 1e6 / flushes; }
+    public double getMaxFlushMillis() { return maxFlushNanos / 1e6; }
+    public double getAvgBatchRows() { return flushes == 0 ? 0 : (double) rowsWritten / flushes; }
+
+    public double getRowsPerSecond() {
+        if (firstWriteMillis == 0) return 0;
+        long elapsed = Math.max(1, System.currentTimeMillis() - firstWriteMillis);
+        return rowsWritten * 1000.0 / elapsed;
+    }
+
+    public String getStatsSummary() {
+        return String.format("%d rows in %d flushes (avg %.1f rows), %.1f rows/s, flush avg %.2f ms max %.2f ms, %d rejected, %d backlogged, %d dropped",
+                rowsWritten, flushes, getAvgBatchRows(), getRowsPerSecond(), getAvgFlushMillis(), getMaxFlushMillis(),
+                rowsRejected, rowsBacklogged, rowsDropped);
+    }
+}
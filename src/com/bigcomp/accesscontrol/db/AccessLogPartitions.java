@@ -0,0 +1,255 @@
+package com.bigcomp.accesscontrol.db;
+
+import com.bigcomp.accesscontrol.util.AppConfig;
+
+import java.sql.*;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Monthly RANGE partitions of AccessLogs on TO_DAYS(ts). Partition pYYYYMM holds that month
+ * (the oldest one also holds anything earlier) and p_future catches rows past the last month
+ * created. Maintenance, run at startup and then daily, splits p_future so that
+ * db.logs.partition.aheadMonths months always exist before rows arrive, and removes months
+ * older than db.logs.retention.months: dropped, or with db.logs.retention.action=ARCHIVE
+ * first exchanged into a table AccessLogs_pYYYYMM. Both are metadata operations, so expiring a
+ * month never runs a DELETE against the table the ARP writes to. Queries bounded by ts are
+ * pruned to the partitions of their range. A table created unpartitioned by an older version
+ * is converted only with db.logs.partition.convertExisting, in the background after startup.
+ */
+class AccessLogPartitions {
+    static final String TABLE = "AccessLogs";
+    private static final String FUTURE = "p_future";
+    // TO_DAYS('1970-01-01')
+    private static final long TO_DAYS_EPOCH = 719528;
+
+    private final ConnectionPool pool;
+    private final int aheadMonths = Math.max(1, AppConfig.getInt("db.logs.partition.aheadMonths", 3));
+    private final int retentionMonths = AppConfig.getInt("db.logs.retention.months", 24); // 0 keeps everything
+    private final boolean archive = "ARCHIVE".equalsIgnoreCase(AppConfig.getString("db.logs.retention.action", "DROP"));
+    private final boolean convertExisting = Boolean.parseBoolean(AppConfig.getString("db.logs.partition.convertExisting", "false"));
+    private ScheduledExecutorService scheduler;
+
+    /** One partition as listed in information_schema.PARTITIONS. */
+    private static final class Partition {
+        final String name;
+        final long lessThan; // TO_DAYS bound, Long.MAX_VALUE for MAXVALUE
+
+        Partition(String name, long lessThan) {
+            this.name = name;
+            this.lessThan = lessThan;
+        }
+    }
+
+    AccessLogPartitions(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /** CREATE TABLE for a new install: partitioned from the current month on. */
+    String createTableSql() {
+        YearMonth now = YearMonth.now();
+        return "CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+                "id BIGINT NOT NULL AUTO_INCREMENT, " +
+                "ts DATETIME NOT NULL, " +
+                "badge_id VARCHAR(50), " +
+                "reader_id VARCHAR(50), " +
+                "resource_id VARCHAR(50), " +
+                "result VARCHAR(10), " +
+                "message VARCHAR(255), " +
+                // a partitioned table's keys must include the partitioning column
+                "PRIMARY KEY (id, ts)" +
+                ") PARTITION BY RANGE (TO_DAYS(ts)) (" + partitionsSql(now, now.plusMonths(aheadMonths)) + ")";
+    }
+
+    /** pFROM..pTO and p_future, as a partition definition list. */
+    private static String partitionsSql(YearMonth from, YearMonth to) {
+        StringBuilder sb = new StringBuilder();
+        for (YearMonth m = from; !m.isAfter(to); m = m.plusMonths(1)) {
+            sb.append(monthPartitionSql(m)).append(", ");
+        }
+        return sb.append("PARTITION ").append(FUTURE).append(" VALUES LESS THAN MAXVALUE").toString();
+    }
+
+    private static String monthPartitionSql(YearMonth m) {
+        return "PARTITION " + nameOf(m) + " VALUES LESS THAN (TO_DAYS('" + m.plusMonths(1).atDay(1) + "'))";
+    }
+
+    private static String nameOf(YearMonth m) {
+        return String.format("p%04d%02d", m.getYear(), m.getMonthValue());
+    }
+
+    private static long toDays(LocalDate d) {
+        return d.toEpochDay() + TO_DAYS_EPOCH;
+    }
+
+    /** True if an unpartitioned table is to be converted; the conversion also widens its id. */
+    boolean convertsExisting() {
+        return convertExisting;
+    }
+
+    /**
+     * Converts an AccessLogs table from before partitioning: BIGINT id, NOT NULL ts, a primary
+     * key of (id, ts) and monthly partitions from its oldest row on, all in one ALTER TABLE, so
+     * the rows are copied once. Writes to the table wait meanwhile. Tables that are already
+     * partitioned are left as they are.
+     */
+    void ensurePartitioned() throws SQLException {
+        try (ConnectionPool.PooledConnection c = pool.borrow(); Statement st = c.connection().createStatement()) {
+            if (!partitions(c).isEmpty()) return;
+            YearMonth first = YearMonth.now();
+            try (ResultSet rs = st.executeQuery("SELECT MIN(ts) FROM " + TABLE)) {
+                if (rs.next() && rs.getTimestamp(1) != null) {
+                    YearMonth oldest = YearMonth.from(rs.getTimestamp(1).toLocalDateTime());
+                    if (oldest.isBefore(first)) first = oldest;
+                }
+            }
+            // NOT NULL would reject rows without a timestamp; idx_accesslogs_ts finds them without a scan
+            try (ResultSet rs = st.executeQuery("SELECT 1 FROM " + TABLE + " WHERE ts IS NULL LIMIT 1")) {
+                if (rs.next()) st.executeUpdate("UPDATE " + TABLE + " SET ts = '1970-01-01 00:00:00' WHERE ts IS NULL");
+            }
+            System.out.println("Partitioning " + TABLE + " by month from " + first + "; the table is copied once, writes to it wait");
+            long started = System.nanoTime();
+            st.execute("ALTER TABLE " + TABLE + " MODIFY id BIGINT NOT NULL AUTO_INCREMENT, MODIFY ts DATETIME NOT NULL, " +
+                    "DROP PRIMARY KEY, ADD PRIMARY KEY (id, ts) " +
+                    "PARTITION BY RANGE (TO_DAYS(ts)) (" + partitionsSql(first, YearMonth.now().plusMonths(aheadMonths)) + ")");
+            System.out.println("Partitioned " + TABLE + " in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        }
+    }
+
+    /** Converts the table if db.logs.partition.convertExisting is set, then maintains it. */
+    private void convert() {
+        try {
+            ensurePartitioned();
+        } catch (SQLException e) {
+            // the table stays as it is and works unpartitioned
+            e.printStackTrace();
+            return;
+        }
+        maintain();
+    }
+
+    /** Creates the months ahead and expires the months past retention. */
+    void maintain() {
+        try (ConnectionPool.PooledConnection c = pool.borrow(); Statement st = c.connection().createStatement()) {
+            List<Partition> parts = partitions(c);
+            if (parts.isEmpty()) return; // not partitioned (disabled, or an older table not converted yet)
+            createAhead(st, parts);
+            if (retentionMonths > 0) expire(c, st, partitions(c));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void createAhead(Statement st, List<Partition> parts) throws SQLException {
+        long lastBound = Long.MIN_VALUE;
+        String catchAll = null;
+        for (Partition p : parts) {
+            if (p.lessThan == Long.MAX_VALUE) catchAll = p.name;
+            else lastBound = Math.max(lastBound, p.lessThan);
+        }
+        List<String> added = new ArrayList<>();
+        YearMonth until = YearMonth.now().plusMonths(aheadMonths);
+        for (YearMonth m = YearMonth.now(); !m.isAfter(until); m = m.plusMonths(1)) {
+            if (toDays(m.plusMonths(1).atDay(1)) > lastBound) added.add(monthPartitionSql(m));
+        }
+        if (added.isEmpty()) return;
+        String defs = String.join(", ", added);
+        if (catchAll != null) {
+            // p_future is empty as long as months are created ahead, so the split moves no rows
+            st.execute("ALTER TABLE " + TABLE + " REORGANIZE PARTITION " + catchAll + " INTO (" + defs +
+                    ", PARTITION " + catchAll + " VALUES LESS THAN MAXVALUE)");
+        } else {
+            st.execute("ALTER TABLE " + TABLE + " ADD PARTITION (" + defs + ")");
+        }
+        System.out.println("Added " + added.size() + " " + TABLE + " partition(s) up to " + until);
+    }
+
+    private void expire(ConnectionPool.PooledConnection c, Statement st, List<Partition> parts) throws SQLException {
+        long cutoff = toDays(YearMonth.now().minusMonths(retentionMonths).atDay(1));
+        for (Partition p : parts) {
+            if (p.lessThan > cutoff) continue;
+            if (archive && !archivePartition(c, st, p.name)) continue;
+            st.execute("ALTER TABLE " + TABLE + " DROP PARTITION " + p.name);
+            System.out.println((archive ? "Archived and dropped " : "Dropped ") + TABLE + " partition " + p.name);
+        }
+    }
+
+    /**
+     * Swaps the partition's rows into AccessLogs_pYYYYMM (created empty and unpartitioned) and
+     * leaves the partition empty; false if the archive table already holds other rows.
+     */
+    private boolean archivePartition(ConnectionPool.PooledConnection c, Statement st, String partition) throws SQLException {
+        String target = TABLE + "_" + partition;
+        st.execute("CREATE TABLE IF NOT EXISTS " + target + " LIKE " + TABLE);
+        if (!partitions(c, target).isEmpty()) st.execute("ALTER TABLE " + target + " REMOVE PARTITIONING");
+        boolean targetEmpty;
+        try (ResultSet rs = st.executeQuery("SELECT 1 FROM " + target + " LIMIT 1")) {
+            targetEmpty = !rs.next();
+        }
+        boolean partitionEmpty;
+        try (ResultSet rs = st.executeQuery("SELECT 1 FROM " + TABLE + " PARTITION (" + partition + ") LIMIT 1")) {
+            partitionEmpty = !rs.next();
+        }
+        if (!targetEmpty) {
+            // an earlier run exchanged but did not get to drop: the rows are already archived
+            if (partitionEmpty) return true;
+            System.err.println("Not expiring " + partition + ": " + target + " already holds rows");
+            return false;
+        }
+        st.execute("ALTER TABLE " + TABLE + " EXCHANGE PARTITION " + partition + " WITH TABLE " + target);
+        return true;
+    }
+
+    private static List<Partition> partitions(ConnectionPool.PooledConnection c) throws SQLException {
+        return partitions(c, TABLE);
+    }
+
+    /** Partitions of the table in order; empty if it is not partitioned. */
+    private static List<Partition> partitions(ConnectionPool.PooledConnection c, String table) throws SQLException {
+        PreparedStatement ps = c.prepare("SELECT PARTITION_NAME, PARTITION_DESCRIPTION FROM information_schema.PARTITIONS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL ORDER BY PARTITION_ORDINAL_POSITION");
+        ps.setString(1, table);
+        List<Partition> out = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                String bound = rs.getString(2);
+                long lessThan;
+                try {
+                    lessThan = "MAXVALUE".equalsIgnoreCase(bound) ? Long.MAX_VALUE : Long.parseLong(bound.trim());
+                } catch (RuntimeException e) {
+                    continue; // not a TO_DAYS range partition
+                }
+                out.add(new Partition(rs.getString(1), lessThan));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Runs {@link #maintain()} every day shortly after midnight; with
+     * db.logs.partition.convertExisting an unpartitioned table is converted first, off the caller's thread.
+     */
+    synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "accesslog-partitions");
+            t.setDaemon(true);
+            return t;
+        });
+        LocalDateTime next = LocalDate.now().plusDays(1).atTime(0, 5);
+        long delay = Duration.between(LocalDateTime.now(), next).toMillis();
+        if (convertExisting) scheduler.execute(this::convert);
+        scheduler.scheduleAtFixedRate(this::maintain, delay, TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (scheduler != null) scheduler.shutdown();
+    }
+}
@@ -0,0 +1,119 @@
+package com.bigcomp.accesscontrol.db;
+
+import com.bigcomp.accesscontrol.model.AccessLog;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Criteria for {@link DB#queryAccessLogs}. Unset criteria match everything. Badge, reader and
+ * resource match exactly, or by prefix when the value ends with '*', so the (badge_id, ts) and
+ * (resource_id, ts) indexes can serve them. Results come newest first, a page at a time.
+ */
+public class AccessLogQuery {
+    private LocalDateTime from;  // inclusive
+    private LocalDateTime to;    // inclusive
+    private String badgeId;
+    private String readerId;
+    private String resourceId;
+    private String result;       // GRANTED / DENIED
+    private int pageSize = 500;
+
+    /** Position after the last row of a page: rows strictly older in (ts, id) order come next. */
+    public static final class Cursor {
+        final LocalDateTime ts;
+        final long id;
+
+        Cursor(LocalDateTime ts, long id) {
+            this.ts = ts;
+            this.id = id;
+        }
+    }
+
+    /** One page of results; {@link #getNext()} is null on the last page. */
+    public static final class Page {
+        private final List<AccessLog> rows;
+        private final Cursor next;
+
+        Page(List<AccessLog> rows, Cursor next) {
+            this.rows = rows;
+            this.next = next;
+        }
+
+        static Page empty() { return new Page(new ArrayList<>(), null); }
+
+        public List<AccessLog> getRows() { return rows; }
+        public Cursor getNext() { return next; }
+        public boolean hasNext() { return next != null; }
+    }
+
+    public LocalDateTime getFrom() { return from; }
+    public void setFrom(LocalDateTime from) { this.from = from; }
+    public LocalDateTime getTo() { return to; }
+    public void setTo(LocalDateTime to) { this.to = to; }
+    public String getBadgeId() { return badgeId; }
+    public void setBadgeId(String badgeId) { this.badgeId = blankToNull(badgeId); }
+    public String getReaderId() { return readerId; }
+    public void setReaderId(String readerId) { this.readerId = blankToNull(readerId); }
+    public String getResourceId() { return resourceId; }
+    public void setResourceId(String resourceId) { this.resourceId = blankToNull(resourceId); }
+    public String getResult() { return result; }
+    public void setResult(String result) { this.result = blankToNull(result); }
+    public int getPageSize() { return pageSize; }
+
+    public void setPageSize(int pageSize) {
+        if (pageSize <= 0) throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        this.pageSize = pageSize;
+    }
+
+    private static String blankToNull(String s) {
+        return s == null || s.trim().isEmpty() ? null : s.trim();
+    }
+
+    /**
+     * Appends the WHERE clause for these criteria and the cursor to sql, adding the values of
+     * its placeholders to params in order.
+     */
+    void appendWhere(StringBuilder sql, List<Object> params, Cursor after) {
+        List<String> where = new ArrayList<>();
+        if (from != null) {
+            where.add("ts >= ?");
+            params.add(java.sql.Timestamp.valueOf(from));
+        }
+        if (to != null) {
+            where.add("ts <= ?");
+            params.add(java.sql.Timestamp.valueOf(to));
+        }
+        match(where, params, "badge_id", badgeId);
+        match(where, params, "reader_id", readerId);
+        match(where, params, "resource_id", resourceId);
+        if (result != null) {
+            where.add("result = ?");
+            params.add(result);
+        }
+        if (after != null) {
+            // row constructor comparison runs as one index range on (..., ts, id); the plain
+            // bound on ts lets monthly partitions newer than the cursor be pruned
+            where.add("ts <= ?");
+            params.add(java.sql.Timestamp.valueOf(after.ts));
+            where.add("(ts, id) < (?, ?)");
+            params.add(java.sql.Timestamp.valueOf(after.ts));
+            params.add(after.id);
+        }
+        if (!where.isEmpty()) sql.append(" WHERE ").append(String.join(" AND ", where));
+    }
+
+    private static void match(List<String> where, List<Object> params, String column, String value) {
+        if (value == null) return;
+        if (value.endsWith("*")) {
+            where.add(column + " LIKE ?");
+            String prefix = value.substring(0, value.length() - 1)
+                    .replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+            params.add(prefix + "%");
+        } else {
+            where.add(column + " = ?");
+            params.add(value);
+        }
+    }
+}
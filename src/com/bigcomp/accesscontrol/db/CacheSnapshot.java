@@ -0,0 +1,181 @@
+package com.bigcomp.accesscontrol.db;
+
+import com.bigcomp.accesscontrol.model.*;
+
+import java.util.*;
+
+/**
+ * One immutable, versioned view of the DB caches.
+ * {@link DB} publishes snapshots through a volatile field: readers take the current one and see
+ * a consistent set of maps without locking, writers build a changed copy with the {@code with*}
+ * methods and publish it in a single write. Maps and lists handed out are unmodifiable.
+ */
+public final class CacheSnapshot {
+    static final CacheSnapshot EMPTY = of(0, new HashMap<>(), new HashMap<>(), new HashMap<>(),
+            new HashMap<>(), new HashMap<>(), new HashMap<>(), new HashMap<>(), new HashMap<>(), new HashMap<>());
+
+    private final long version;
+    private final Map<String, Badge> badges;
+    private final Map<String, Reader> readers;
+    private final Map<String, Resource> resources;
+    private final Map<String, ResourceGroup> groups;
+    private final Map<String, List<String>> badgeProfiles;
+    private final Map<String, List<String>> groupResources;
+    private final Map<String, User> users;
+    private final Map<String, Zone> zones;
+    private final Map<String, Profile> profiles;
+    // Inverted index of Group_Resources: resource -> ids of every group containing it
+    private final List<String> groupIds;
+    private final Map<String, BitSet> resourceGroups;
+
+    private CacheSnapshot(long version, Map<String, Badge> badges, Map<String, Reader> readers, Map<String, Resource> resources,
+                          Map<String, ResourceGroup> groups, Map<String, List<String>> badgeProfiles,
+                          Map<String, List<String>> groupResources, Map<String, User> users, Map<String, Zone> zones,
+                          Map<String, Profile> profiles, List<String> groupIds, Map<String, BitSet> resourceGroups) {
+        this.version = version;
+        this.badges = badges;
+        this.readers = readers;
+        this.resources = resources;
+        this.groups = groups;
+        this.badgeProfiles = badgeProfiles;
+        this.groupResources = groupResources;
+        this.users = users;
+        this.zones = zones;
+        this.profiles = profiles;
+        this.groupIds = groupIds;
+        this.resourceGroups = resourceGroups;
+    }
+
+    /** Freezes freshly loaded maps into a snapshot; callers must not touch them afterwards. */
+    static CacheSnapshot of(long version, Map<String, Badge> badges, Map<String, Reader> readers, Map<String, Resource> resources,
+                            Map<String, ResourceGroup> groups, Map<String, List<String>> badgeProfiles,
+                            Map<String, List<String>> groupResources, Map<String, User> users, Map<String, Zone> zones,
+                            Map<String, Profile> profiles) {
+        List<String> ids = new ArrayList<>(groups.keySet());
+        Map<String, Integer> idOf = new HashMap<>();
+        for (int i = 0; i < ids.size(); i++) idOf.put(ids.get(i), i);
+        Map<String, BitSet> index = new HashMap<>();
+        for (Map.Entry<String, List<String>> e : groupResources.entrySet()) {
+            Integer id = idOf.get(e.getKey());
+            if (id == null) {
+                id = ids.size();
+                idOf.put(e.getKey(), id);
+                ids.add(e.getKey());
+            }
+            for (String r : e.getValue()) index.computeIfAbsent(r, k -> new BitSet()).set(id);
+        }
+        return new CacheSnapshot(version, freeze(badges), freeze(readers), freeze(resources), freeze(groups),
+                freezeLists(badgeProfiles), freezeLists(groupResources), freeze(users), freeze(zones), freeze(profiles),
+                Collections.unmodifiableList(ids), index);
+    }
+
+    private static <V> Map<String, V> freeze(Map<String, V> map) {
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static Map<String, List<String>> freezeLists(Map<String, List<String>> map) {
+        Map<String, List<String>> out = new HashMap<>();
+        for (Map.Entry<String, List<String>> e : map.entrySet()) {
+            out.put(e.getKey(), Collections.unmodifiableList(new ArrayList<>(e.getValue())));
+        }
+        return Collections.unmodifiableMap(out);
+    }
+
+    public long getVersion() { return version; }
+
+    public Optional<Badge> findBadge(String badgeId) { return Optional.ofNullable(badges.get(badgeId)); }
+    public Optional<Reader> findReader(String readerId) { return Optional.ofNullable(readers.get(readerId)); }
+    public Optional<Resource> findResourceById(String resourceId) { return Optional.ofNullable(resources.get(resourceId)); }
+    public Optional<User> findUserById(String userId) { return Optional.ofNullable(users.get(userId)); }
+    public Optional<Zone> findZone(String zoneId) { return Optional.ofNullable(zones.get(zoneId)); }
+    public Optional<Profile> findProfileByName(String name) { return Optional.ofNullable(profiles.get(name)); }
+    public Optional<ResourceGroup> findGroup(String groupName) { return Optional.ofNullable(groups.get(groupName)); }
+
+    public Optional<String> findGroupForResource(String resourceId) {
+        BitSet ids = resourceGroups.get(resourceId);
+        if (ids == null || ids.isEmpty()) return Optional.empty();
+        return Optional.of(groupIds.get(ids.nextSetBit(0)));
+    }
+
+    /** Ids (see {@link #getGroupIds()}) of every group the resource belongs to; empty if none */
+    public BitSet findGroupsForResource(String resourceId) {
+        BitSet ids = resourceGroups.get(resourceId);
+        return ids == null ? new BitSet() : (BitSet) ids.clone();
+    }
+
+    /** Group names indexed by the dense group ids used in {@link #findGroupsForResource} */
+    public List<String> getGroupIds() { return groupIds; }
+
+    public List<String> getProfilesForBadge(String badgeId) {
+        return badgeProfiles.getOrDefault(badgeId, Collections.emptyList());
+    }
+
+    public Collection<Badge> getAllBadges() { return badges.values(); }
+    public Collection<Reader> getAllReaders() { return readers.values(); }
+    public Collection<Resource> getAllResources() { return resources.values(); }
+    public Collection<User> getAllUsers() { return users.values(); }
+    public Collection<Zone> getAllZones() { return zones.values(); }
+    public Collection<Profile> getAllProfiles() { return profiles.values(); }
+    public Set<String> getAllGroupNames() { return groups.keySet(); }
+    public Map<String, List<String>> getGroupResources() { return groupResources; }
+
+    // Copy-on-write updates: each returns the next version, this one is left untouched
+
+    CacheSnapshot withVersion(long v) {
+        return new CacheSnapshot(v, badges, readers, resources, groups, badgeProfiles, groupResources,
+                users, zones, profiles, groupIds, resourceGroups);
+    }
+
+    CacheSnapshot withBadge(Badge badge) {
+        Map<String, Badge> b = new HashMap<>(badges);
+        b.put(badge.getBadgeId(), badge);
+        return new CacheSnapshot(version + 1, freeze(b), readers, resources, groups, badgeProfiles, groupResources,
+                users, zones, profiles, groupIds, resourceGroups);
+    }
+
+    CacheSnapshot withResources(Collection<Resource> changed) {
+        Map<String, Resource> r = new HashMap<>(resources);
+        for (Resource res : changed) r.put(res.getResourceId(), res);
+        return new CacheSnapshot(version + 1, badges, readers, freeze(r), groups, badgeProfiles, groupResources,
+                users, zones, profiles, groupIds, resourceGroups);
+    }
+
+    CacheSnapshot withUser(User user) {
+        Map<String, User> u = new HashMap<>(users);
+        u.put(user.getUserId(), user);
+        return new CacheSnapshot(version + 1, badges, readers, resources, groups, badgeProfiles, groupResources,
+                freeze(u), zones, profiles, groupIds, resourceGroups);
+    }
+
+    CacheSnapshot withoutUser(String userId) {
+        Map<String, User> u = new HashMap<>(users);
+        u.remove(userId);
+        return new CacheSnapshot(version + 1, badges, readers, resources, groups, badgeProfiles, groupResources,
+                freeze(u), zones, profiles, groupIds, resourceGroups);
+    }
+
+    CacheSnapshot withProfile(Profile profile) {
+        return withProfiles(Collections.singletonList(profile));
+    }
+
+    CacheSnapshot withProfiles(Collection<Profile> changed) {
+        Map<String, Profile> p = new HashMap<>(profiles);
+        for (Profile profile : changed) p.put(profile.getProfileName(), profile);
+        return new CacheSnapshot(version + 1, badges, readers, resources, groups, badgeProfiles, groupResources,
+                users, zones, freeze(p), groupIds, resourceGroups);
+    }
+
+    /** Removes the profile and every badge assignment of it. */
+    CacheSnapshot withoutProfile(String profileName) {
+        Map<String, Profile> p = new HashMap<>(profiles);
+        p.remove(profileName);
+        Map<String, List<String>> bp = new HashMap<>();
+        for (Map.Entry<String, List<String>> e : badgeProfiles.entrySet()) {
+            List<String> kept = new ArrayList<>(e.getValue());
+            kept.removeIf(profileName::equals);
+            bp.put(e.getKey(), kept);
+        }
+        return new CacheSnapshot(version + 1, badges, readers, resources, groups, freezeLists(bp), groupResources,
+                users, zones, freeze(p), groupIds, resourceGroups);
+    }
+}
@@ -0,0 +1,216 @@
+package com.bigcomp.accesscontrol.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small fixed-size JDBC connection pool. Each pooled connection keeps its own LRU cache of
+ * prepared statements. Idle connections are validated before reuse, and when opening a
+ * connection fails the pool backs off exponentially instead of hammering a dead server.
+ */
+public class ConnectionPool {
+    /** Opens physical connections; lets tests plug in an embedded or stand-in JDBC source. */
+    public interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    private static final long INITIAL_BACKOFF_MS = 100;
+
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final int statementCacheSize;
+    private final long validateAfterMs;
+    private final long maxBackoffMs;
+    private final long borrowTimeoutMs;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger open = new AtomicInteger();
+
+    // Reconnect backoff, guarded by this
+    private long backoffMs;
+    private long retryAt;
+
+    public ConnectionPool(ConnectionFactory factory, int maxSize, int statementCacheSize,
+                          long validateAfterMs, long maxBackoffMs, long borrowTimeoutMs) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be positive");
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.statementCacheSize = Math.max(1, statementCacheSize);
+        this.validateAfterMs = validateAfterMs;
+        this.maxBackoffMs = Math.max(INITIAL_BACKOFF_MS, maxBackoffMs);
+        this.borrowTimeoutMs = borrowTimeoutMs;
+    }
+
+    /** False while the pool is backing off after a failed connect; callers can skip DB work. */
+    public synchronized boolean isAvailable() {
+        return open.get() > 0 || System.currentTimeMillis() >= retryAt;
+    }
+
+    /** Takes a connection; close the returned handle to give it back. */
+    public PooledConnection borrow() throws SQLException {
+        long deadline = System.currentTimeMillis() + borrowTimeoutMs;
+        while (true) {
+            PooledConnection pc = idle.pollFirst();
+            if (pc != null) {
+                if (usable(pc)) return pc;
+                discard(pc);
+                continue;
+            }
+            if (reserveSlot()) {
+                try {
+                    return new PooledConnection(connect());
+                } catch (SQLException e) {
+                    open.decrementAndGet();
+                    throw e;
+                }
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) throw new SQLException("No free DB connection after " + borrowTimeoutMs + " ms");
+            try {
+                pc = idle.pollFirst(wait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a DB connection", e);
+            }
+            if (pc != null) {
+                if (usable(pc)) return pc;
+                discard(pc);
+            }
+        }
+    }
+
+    private boolean reserveSlot() {
+        while (true) {
+            int n = open.get();
+            if (n >= maxSize) return false;
+            if (open.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now < retryAt) throw new SQLException("DB unavailable, next connect attempt in " + (retryAt - now) + " ms");
+        }
+        try {
+            Connection c = factory.open();
+            synchronized (this) {
+                backoffMs = 0;
+                retryAt = 0;
+            }
+            return c;
+        } catch (SQLException e) {
+            synchronized (this) {
+                backoffMs = backoffMs == 0 ? INITIAL_BACKOFF_MS : Math.min(backoffMs * 2, maxBackoffMs);
+                retryAt = System.currentTimeMillis() + backoffMs;
+            }
+            throw e;
+        }
+    }
+
+    private boolean usable(PooledConnection pc) {
+        try {
+            if (pc.connection.isClosed()) return false;
+            if (System.currentTimeMillis() - pc.lastUsed < validateAfterMs) return true;
+            return pc.connection.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pc) {
+        pc.lastUsed = System.currentTimeMillis();
+        boolean closed;
+        try {
+            closed = pc.broken || pc.connection.isClosed();
+        } catch (SQLException e) {
+            closed = true;
+        }
+        if (closed) discard(pc);
+        else idle.offerFirst(pc); // most recently used first keeps the rest idle and cheap to validate
+    }
+
+    private void discard(PooledConnection pc) {
+        pc.closeStatements();
+        try {
+            pc.connection.close();
+        } catch (SQLException ignored) { }
+        open.decrementAndGet();
+    }
+
+    /** Closes every idle connection; borrowed ones are closed when they come back broken or on exit. */
+    public void close() {
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) discard(pc);
+    }
+
+    public int getOpenCount() { return open.get(); }
+    public int getIdleCount() { return idle.size(); }
+
+    /** A borrowed connection with its statement cache. Not thread-safe: one borrower at a time. */
+    public final class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean broken;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= statementCacheSize) return false;
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        public Connection connection() { return connection; }
+
+        /**
+         * Cached prepared statement for the SQL, parameters cleared. Do not close it; it stays
+         * open with the connection.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps != null && !ps.isClosed()) {
+                ps.clearParameters();
+                ps.clearBatch();
+                return ps;
+            }
+            try {
+                ps = connection.prepareStatement(sql);
+            } catch (SQLException e) {
+                broken = true;
+                throw e;
+            }
+            statements.put(sql, ps);
+            return ps;
+        }
+
+        /** Drops the connection instead of pooling it again, e.g. after an I/O error. */
+        public void markBroken() { broken = true; }
+
+        private void closeStatements() {
+            for (PreparedStatement ps : statements.values()) closeQuietly(ps);
+            statements.clear();
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException ignored) { }
+    }
+}
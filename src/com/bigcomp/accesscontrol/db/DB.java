@@ -1,6 +1,7 @@
 package com.bigcomp.accesscontrol.db;
 
 import com.bigcomp.accesscontrol.model.*;
+import com.bigcomp.accesscontrol.util.AppConfig;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
@@ -13,19 +14,44 @@ import java.util.*;
 
 public class DB {
     private Properties cfg = new Properties();
-    private Connection conn;
-
-    // In-memory caches
-    private Map<String, Badge> badges = new HashMap<>();
-    private Map<String, Reader> readers = new HashMap<>();
-    private Map<String, Resource> resources = new HashMap<>();
-    private Map<String, ResourceGroup> groups = new HashMap<>();
-    private Map<String, List<String>> badgeProfiles = new HashMap<>();
-    private Map<String, List<String>> groupResources = new HashMap<>();
-    private Map<String, User> users = new HashMap<>();
-    private Map<String, com.bigcomp.accesscontrol.model.Profile> profiles = new HashMap<>();
+    private ConnectionPool pool;
+    private AccessLogPartitions partitions;
+    private final boolean partitioningEnabled = Boolean.parseBoolean(AppConfig.getString("db.logs.partition.enabled", "true"));
+
+    // In-memory caches: one immutable snapshot, replaced as a whole on every change
+    private volatile CacheSnapshot cache = CacheSnapshot.EMPTY;
+    // Revoked badges take effect through this set at once; the DB follows
+    private final Set<String> revokedBadges = java.util.concurrent.ConcurrentHashMap.newKeySet();
+    // Revocations Badges has not confirmed yet (DB down); kept in the file and written at the next load
+    private final Set<String> pendingRevocations = java.util.concurrent.ConcurrentHashMap.newKeySet();
+    private final java.io.File revokedFile = new java.io.File("data/revoked_badges.txt");
+    // Zone each badge last entered; kept out of the snapshots since it changes on every granted move
+    private final Map<String, String> badgeZones = new java.util.concurrent.ConcurrentHashMap<>();
+    // Where each profile was read from, its Profiles.description and the file state it was parsed from
+    private volatile Map<String, WarmSnapshot.ProfileEntry> profileEntries = new java.util.concurrent.ConcurrentHashMap<>();
+
+    // Warm start: caches saved at shutdown, reused per table while its change stamp is unchanged
+    private final java.io.File snapshotFile = new java.io.File(AppConfig.getString("db.snapshot.file", "data/cache.snapshot"));
+    private final boolean snapshotEnabled = Boolean.parseBoolean(AppConfig.getString("db.snapshot.enabled", "true"));
+    private volatile Map<String, Long> loadedStamps = Collections.emptyMap();
+
+    // Writes badge update state off the swipe path; one rewrite of the file covers a burst of updates
+    private final java.util.concurrent.ExecutorService badgeWriter = java.util.concurrent.Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "badge-update-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final java.util.concurrent.atomic.AtomicBoolean badgeStateSaveQueued = new java.util.concurrent.atomic.AtomicBoolean();
+
+    // Notified after the caches change (admin edits, reloads) so compiled views can be rebuilt
+    private final List<ChangeListener> changeListeners = new java.util.concurrent.CopyOnWriteArrayList<>();
 
     public DB() {
+        this(null);
+    }
+
+    /** Uses the given factory for physical connections instead of DriverManager with db.url. */
+    public DB(ConnectionPool.ConnectionFactory factory) {
         try (FileInputStream fis = new FileInputStream("config.properties")) {
             cfg.load(fis);
         } catch (Exception e) {
@@ -34,31 +60,55 @@ public class DB {
             cfg.setProperty("db.user", "root");
             cfg.setProperty("db.password", "123456");
         }
+        if (factory == null) {
+            String url = cfg.getProperty("db.url");
+            String user = cfg.getProperty("db.user");
+            String pass = cfg.getProperty("db.password");
+            factory = () -> DriverManager.getConnection(url, user, pass);
+        }
+        pool = new ConnectionPool(factory, AppConfig.getInt("db.pool.size", 8), AppConfig.getInt("db.pool.statementCache", 64),
+                AppConfig.getLong("db.pool.validateAfterMs", 5000), AppConfig.getLong("db.pool.maxBackoffMs", 30000),
+                AppConfig.getLong("db.pool.borrowTimeoutMs", 5000));
+        partitions = new AccessLogPartitions(pool);
+        loadRevokedBadges();
     }
 
     public void initialize() {
         try {
-            connect();
             ensureAccessLogs();
+            ensureBadgePositions();
+            System.out.println("DB connected to: " + cfg.getProperty("db.url"));
             loadAll();
         } catch (SQLException e) {
             e.printStackTrace();
             // continue: app can run in degraded mode
         }
+        fireChanged();
+    }
+
+    public void addChangeListener(ChangeListener l) { changeListeners.add(l); }
+
+    private void fireChanged() {
+        for (ChangeListener l : changeListeners) l.onCacheChanged();
+    }
+
+    private void fireBadgeChanged(Badge badge) {
+        for (ChangeListener l : changeListeners) l.onBadgeChanged(badge);
     }
 
-    private void connect() throws SQLException {
-        if (conn != null) return;
-        String url = cfg.getProperty("db.url");
-        String user = cfg.getProperty("db.user");
-        String pass = cfg.getProperty("db.password");
-        conn = DriverManager.getConnection(url, user, pass);
-        System.out.println("DB connected to: " + url);
+    public interface ChangeListener {
+        void onCacheChanged();
+
+        /** Only the named profiles changed; listeners may rebuild just what depends on them. */
+        default void onProfilesChanged(Collection<String> profileNames) { onCacheChanged(); }
+
+        /** Only the fields of this badge changed (not its profiles); listeners may swap just its entry. */
+        default void onBadgeChanged(Badge badge) { onCacheChanged(); }
     }
 
     private void ensureAccessLogs() throws SQLException {
-        String sql = "CREATE TABLE IF NOT EXISTS AccessLogs (" +
-                "id INT AUTO_INCREMENT PRIMARY KEY, " +
+        String sql = partitioningEnabled ? partitions.createTableSql() : "CREATE TABLE IF NOT EXISTS AccessLogs (" +
+                "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
                 "ts DATETIME, " +
                 "badge_id VARCHAR(50), " +
                 "reader_id VARCHAR(50), " +
@@ -66,25 +116,212 @@ public class DB {
                 "result VARCHAR(10), " +
                 "message VARCHAR(255)" +
                 ")";
-        try (Statement st = conn.createStatement()) {
+        try (ConnectionPool.PooledConnection c = pool.borrow(); Statement st = c.connection().createStatement()) {
             st.execute(sql);
+            // Report queries filter on these and read newest first; InnoDB appends id to each,
+            // so they also serve the (ts, id) keyset order
+            ensureIndex(c, st, "AccessLogs", "idx_accesslogs_ts", "ts");
+            ensureIndex(c, st, "AccessLogs", "idx_accesslogs_badge_ts", "badge_id, ts");
+            ensureIndex(c, st, "AccessLogs", "idx_accesslogs_resource_ts", "resource_id, ts");
+            // converting to partitions widens the id in the same ALTER TABLE
+            if (!partitioningEnabled || !partitions.convertsExisting()) ensureBigintId(c, st);
+        }
+        if (partitioningEnabled) {
+            // monthly partitions: created ahead, expired by retention, checked again every day;
+            // an older unpartitioned table is converted in the background if configured
+            partitions.maintain();
+            partitions.start();
+        }
+    }
+
+    /**
+     * Badge positions change on every granted move, so they are written here rather than to
+     * Badges.current_zone_id: Badges then keeps its UPDATE_TIME and the warm snapshot can reuse it.
+     */
+    private void ensureBadgePositions() throws SQLException {
+        try (ConnectionPool.PooledConnection c = pool.borrow(); Statement st = c.connection().createStatement()) {
+            st.execute("CREATE TABLE IF NOT EXISTS BadgePositions (badge_id VARCHAR(50) PRIMARY KEY, zone_id VARCHAR(50) NOT NULL)");
+        }
+    }
+
+    /** Widens an INT id left by an older version, whether or not the table gets partitioned. */
+    private static void ensureBigintId(ConnectionPool.PooledConnection c, Statement st) throws SQLException {
+        PreparedStatement ps = c.prepare("SELECT DATA_TYPE FROM information_schema.COLUMNS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'AccessLogs' AND COLUMN_NAME = 'id'");
+        try (ResultSet rs = ps.executeQuery()) {
+            if (!rs.next() || "bigint".equalsIgnoreCase(rs.getString(1))) return;
+        }
+        System.out.println("Widening AccessLogs.id to BIGINT; this rebuilds the table once");
+        st.execute("ALTER TABLE AccessLogs MODIFY id BIGINT NOT NULL AUTO_INCREMENT");
+    }
+
+    /** Creates the index unless information_schema already lists one of that name on the table. */
+    private static void ensureIndex(ConnectionPool.PooledConnection c, Statement st, String table, String name, String columns) throws SQLException {
+        PreparedStatement ps = c.prepare("SELECT 1 FROM information_schema.STATISTICS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND INDEX_NAME = ? LIMIT 1");
+        ps.setString(1, table);
+        ps.setString(2, name);
+        try (ResultSet rs = ps.executeQuery()) {
+            if (rs.next()) return;
         }
+        System.out.println("Creating index " + name + " on " + table + " (" + columns + ")");
+        st.execute("CREATE INDEX " + name + " ON " + table + " (" + columns + ")");
     }
 
+    /**
+     * Loads every table into fresh maps and publishes them as one new snapshot. Tables are
+     * queried in parallel, each on its own connection; tables whose change stamp matches the
+     * warm-start snapshot are taken from it instead.
+     */
     private void loadAll() throws SQLException {
-        loadUsers();
-        loadBadges();
-        loadReaders();
-        loadResources();
-        loadGroups();
-        loadProfiles();
-        loadGroupResources();
-        loadBadgeProfiles();
-    }
-
-    private void loadBadges() throws SQLException {
-        badges.clear();
-        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Badges")) {
+        long started = System.nanoTime();
+        Map<String, Long> stamps = readTableStamps();
+        WarmSnapshot warm = snapshotEnabled ? WarmSnapshot.read(snapshotFile) : null;
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(
+                Math.max(1, AppConfig.getInt("db.load.threads", 4)), r -> {
+                    Thread t = new Thread(r, "db-load");
+                    t.setDaemon(true);
+                    return t;
+                });
+        try {
+            java.util.concurrent.Future<Map<String, Zone>> zones = pool.submit(() ->
+                    fresh(warm, "Zones", stamps) ? warm.zones : query(this::loadZones));
+            java.util.concurrent.Future<Map<String, User>> users = pool.submit(() ->
+                    fresh(warm, "Users", stamps) ? warm.users : query(this::loadUsers));
+            java.util.concurrent.Future<Map<String, Badge>> badges = pool.submit(() ->
+                    fresh(warm, "Badges", stamps) ? warm.badges : query(this::loadBadges));
+            java.util.concurrent.Future<Map<String, Reader>> readers = pool.submit(() ->
+                    fresh(warm, "BadgeReaders", stamps) ? warm.readers : query(this::loadReaders));
+            java.util.concurrent.Future<Map<String, Resource>> resources = pool.submit(() ->
+                    fresh(warm, "Resources", stamps) ? warm.resources : query(this::loadResources));
+            java.util.concurrent.Future<Map<String, ResourceGroup>> groups = pool.submit(() ->
+                    fresh(warm, "ResourceGroups", stamps) ? warm.groups : query(this::loadGroups));
+            java.util.concurrent.Future<Map<String, WarmSnapshot.ProfileEntry>> profiles = pool.submit(() ->
+                    query(c -> loadProfiles(c, warm, fresh(warm, "Profiles", stamps))));
+            java.util.concurrent.Future<Map<String, List<String>>> groupResources = pool.submit(() ->
+                    fresh(warm, "Group_Resources", stamps) ? warm.groupResources : query(this::loadGroupResources));
+            java.util.concurrent.Future<Map<String, List<String>>> badgeProfiles = pool.submit(() ->
+                    fresh(warm, "Badge_Profiles", stamps) ? warm.badgeProfiles : query(this::loadBadgeProfiles));
+            // two narrow columns, read every time: it changes on every move
+            java.util.concurrent.Future<Map<String, String>> positions = pool.submit(() -> query(this::loadBadgePositions));
+
+            Map<String, Badge> badgeMap = await(badges);
+            reconcileRevoked(badgeMap);
+            // moves recorded since the table was read win over it
+            for (Map.Entry<String, String> e : await(positions).entrySet()) badgeZones.putIfAbsent(e.getKey(), e.getValue());
+            loadBadgeUpdateState(badgeMap);
+
+            Map<String, WarmSnapshot.ProfileEntry> entries = await(profiles);
+            Map<String, com.bigcomp.accesscontrol.model.Profile> profileMap = new HashMap<>();
+            for (Map.Entry<String, WarmSnapshot.ProfileEntry> e : entries.entrySet()) profileMap.put(e.getKey(), e.getValue().profile);
+
+            CacheSnapshot next = CacheSnapshot.of(0, badgeMap, await(readers), await(resources), await(groups),
+                    await(badgeProfiles), await(groupResources), await(users), await(zones), profileMap);
+            synchronized (this) {
+                cache = next.withVersion(cache.getVersion() + 1);
+                profileEntries = new java.util.concurrent.ConcurrentHashMap<>(entries);
+                loadedStamps = stamps;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        System.out.printf("Caches loaded in %d ms%s%n", (System.nanoTime() - started) / 1_000_000,
+                warm == null ? "" : " (warm snapshot)");
+    }
+
+    private interface TableLoader<T> {
+        T load(Connection c) throws SQLException;
+    }
+
+    private static boolean fresh(WarmSnapshot warm, String table, Map<String, Long> stamps) {
+        return warm != null && warm.isFresh(table, stamps);
+    }
+
+    /** Runs one table load on a pooled connection of its own so loads can overlap. */
+    private <T> T query(TableLoader<T> loader) throws SQLException {
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            return loader.load(c.connection());
+        }
+    }
+
+    private static <T> T await(java.util.concurrent.Future<T> f) throws SQLException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while loading caches", e);
+        } catch (java.util.concurrent.ExecutionException e) {
+            if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+            throw new SQLException("Cache load failed", e.getCause());
+        }
+    }
+
+    /**
+     * UPDATE_TIME of every table of the schema, in epoch millis. Tables without a stamp, or
+     * stamped within the last two seconds (UPDATE_TIME has one-second resolution), get
+     * NO_STAMP so they are never taken from the warm snapshot.
+     */
+    private Map<String, Long> readTableStamps() throws SQLException {
+        Map<String, Long> stamps = new HashMap<>();
+        String sql = "SELECT TABLE_NAME, UPDATE_TIME, NOW() FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE()";
+        try (ConnectionPool.PooledConnection c = pool.borrow(); Statement st = c.connection().createStatement();
+             ResultSet rs = st.executeQuery(sql)) {
+            while (rs.next()) {
+                Timestamp updated = rs.getTimestamp(2);
+                Timestamp now = rs.getTimestamp(3);
+                boolean usable = updated != null && now != null && updated.getTime() < now.getTime() - 2000;
+                stamps.put(rs.getString(1), usable ? updated.getTime() : WarmSnapshot.NO_STAMP);
+            }
+        }
+        return stamps;
+    }
+
+    /** Writes the current caches as the warm-start snapshot; call on shutdown. */
+    public void saveWarmSnapshot() {
+        if (!snapshotEnabled || loadedStamps.isEmpty()) return;
+        try {
+            WarmSnapshot.write(snapshotFile, cache, loadedStamps, profileEntries);
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Finishes queued badge writes and closes idle pooled connections; call on shutdown after the last DB write. */
+    public void close() {
+        badgeWriter.shutdown();
+        try {
+            badgeWriter.awaitTermination(10, java.util.concurrent.TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        partitions.stop();
+        pool.close();
+    }
+
+    private Map<String, Zone> loadZones(Connection c) throws SQLException {
+        Map<String, Zone> zones = new HashMap<>();
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Zones")) {
+            // Schemas created before the hierarchy have no parent column: every zone is then a root
+            boolean hasParent = false;
+            ResultSetMetaData md = rs.getMetaData();
+            for (int i = 1; i <= md.getColumnCount(); i++) {
+                if ("parent_zone_id".equalsIgnoreCase(md.getColumnName(i))) hasParent = true;
+            }
+            while (rs.next()) {
+                Zone z = new Zone();
+                z.setZoneId(rs.getString("zone_id"));
+                z.setDescription(rs.getString("description"));
+                if (hasParent) z.setParentZoneId(rs.getString("parent_zone_id"));
+                zones.put(z.getZoneId(), z);
+            }
+        }
+        System.out.println("Loaded zones: " + zones.size());
+        return zones;
+    }
+
+    private Map<String, Badge> loadBadges(Connection c) throws SQLException {
+        Map<String, Badge> badges = new HashMap<>();
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Badges")) {
             while (rs.next()) {
                 Badge b = new Badge();
                 b.setBadgeId(rs.getString("badge_id"));
@@ -101,12 +338,23 @@ public class DB {
             }
         }
         System.out.println("Loaded badges: " + badges.size());
-        loadBadgeUpdateState();
+        return badges;
+    }
+
+    private Map<String, String> loadBadgePositions(Connection c) throws SQLException {
+        Map<String, String> positions = new HashMap<>();
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT badge_id, zone_id FROM BadgePositions")) {
+            while (rs.next()) positions.put(rs.getString(1), rs.getString(2));
+        } catch (SQLException e) {
+            // table missing (DB not initialized by this version yet): positions come from Badges
+            e.printStackTrace();
+        }
+        return positions;
     }
 
-    private void loadUsers() throws SQLException {
-        users.clear();
-        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Users")) {
+    private Map<String, User> loadUsers(Connection c) throws SQLException {
+        Map<String, User> users = new HashMap<>();
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Users")) {
             while (rs.next()) {
                 User u = new User();
                 u.setUserId(rs.getString("user_id"));
@@ -118,11 +366,12 @@ public class DB {
             }
         }
         System.out.println("Loaded users: " + users.size());
+        return users;
     }
 
-    private void loadReaders() throws SQLException {
-        readers.clear();
-        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM BadgeReaders")) {
+    private Map<String, Reader> loadReaders(Connection c) throws SQLException {
+        Map<String, Reader> readers = new HashMap<>();
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM BadgeReaders")) {
             while (rs.next()) {
                 Reader r = new Reader();
                 r.setReaderId(rs.getString("reader_id"));
@@ -133,11 +382,12 @@ public class DB {
             }
         }
         System.out.println("Loaded readers: " + readers.size());
+        return readers;
     }
 
-    private void loadResources() throws SQLException {
-        resources.clear();
-        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Resources")) {
+    private Map<String, Resource> loadResources(Connection c) throws SQLException {
+        Map<String, Resource> resources = new HashMap<>();
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Resources")) {
             while (rs.next()) {
                 Resource res = new Resource();
                 res.setResourceId(rs.getString("resource_id"));
@@ -152,11 +402,12 @@ public class DB {
             }
         }
         System.out.println("Loaded resources: " + resources.size());
+        return resources;
     }
 
-    private void loadGroups() throws SQLException {
-        groups.clear();
-        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM ResourceGroups")) {
+    private Map<String, ResourceGroup> loadGroups(Connection c) throws SQLException {
+        Map<String, ResourceGroup> groups = new HashMap<>();
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM ResourceGroups")) {
             while (rs.next()) {
                 ResourceGroup g = new ResourceGroup();
                 g.setGroupName(rs.getString("group_name"));
@@ -166,47 +417,67 @@ public class DB {
             }
         }
         System.out.println("Loaded groups: " + groups.size());
+        return groups;
     }
 
-    private void loadProfiles() throws SQLException {
-        profiles.clear();
-        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Profiles")) {
-            while (rs.next()) {
-                String name = rs.getString("profile_name");
-                String path = rs.getString("file_path");
-                String desc = rs.getString("description");
-                com.bigcomp.accesscontrol.model.Profile p = readProfileFromFile(name, path, desc);
-                profiles.put(name, p);
+    /**
+     * Profiles table rows (or the warm snapshot's copy of them when the table is unchanged),
+     * with the files parsed in parallel on the common fork-join pool. Files whose size and
+     * mtime match the warm snapshot are not parsed again.
+     */
+    private Map<String, WarmSnapshot.ProfileEntry> loadProfiles(Connection c, WarmSnapshot warm, boolean rowsFresh) throws SQLException {
+        List<String[]> rows = new ArrayList<>();
+        if (rowsFresh) {
+            for (Map.Entry<String, WarmSnapshot.ProfileEntry> e : warm.profiles.entrySet()) {
+                rows.add(new String[] { e.getKey(), e.getValue().path, e.getValue().tableDescription });
+            }
+        } else {
+            try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Profiles")) {
+                while (rs.next()) {
+                    String name = rs.getString("profile_name");
+                    rows.add(new String[] { name, profilePath(name, rs.getString("file_path")), rs.getString("description") });
+                }
             }
         }
+        Map<String, WarmSnapshot.ProfileEntry> profiles = rows.parallelStream().map(r -> {
+            WarmSnapshot.ProfileEntry old = warm == null ? null : warm.profiles.get(r[0]);
+            if (old != null && old.matches(r[1], r[2])) return old;
+            return WarmSnapshot.entryFor(r[1], r[2], readProfileFromFile(r[0], r[1], r[2]));
+        }).collect(java.util.stream.Collectors.toMap(e -> e.profile.getProfileName(), e -> e, (x, y) -> y));
         System.out.println("Loaded profiles: " + profiles.size());
+        return profiles;
     }
 
-    private void loadGroupResources() throws SQLException {
-        groupResources.clear();
-        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Group_Resources")) {
+    private Map<String, List<String>> loadGroupResources(Connection c) throws SQLException {
+        Map<String, List<String>> groupResources = new HashMap<>();
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Group_Resources")) {
             while (rs.next()) {
                 String g = rs.getString("group_name");
                 String r = rs.getString("resource_id");
                 groupResources.computeIfAbsent(g, k -> new ArrayList<>()).add(r);
             }
         }
+        return groupResources;
     }
 
-    private void loadBadgeProfiles() throws SQLException {
-        badgeProfiles.clear();
-        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Badge_Profiles")) {
+    private Map<String, List<String>> loadBadgeProfiles(Connection c) throws SQLException {
+        Map<String, List<String>> badgeProfiles = new HashMap<>();
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT * FROM Badge_Profiles")) {
             while (rs.next()) {
                 String b = rs.getString("badge_id");
                 String p = rs.getString("profile_name");
                 badgeProfiles.computeIfAbsent(b, k -> new ArrayList<>()).add(p);
             }
         }
+        return badgeProfiles;
+    }
+
+    private static String profilePath(String profileName, String path) {
+        return (path == null || path.isEmpty()) ? ("data/profiles/" + profileName + ".txt") : path;
     }
 
     private com.bigcomp.accesscontrol.model.Profile readProfileFromFile(String profileName, String path, String desc) {
-        String actualPath = (path == null || path.isEmpty()) ? ("data/profiles/" + profileName + ".txt") : path;
-        java.io.File f = new java.io.File(actualPath);
+        java.io.File f = new java.io.File(profilePath(profileName, path));
         java.util.List<String> lines = new java.util.ArrayList<>();
         if (f.exists()) {
             try {
@@ -239,39 +510,43 @@ public class DB {
         return profile;
     }
 
-    // Simple getters for caches
-    public Optional<Badge> findBadge(String badgeId) { return Optional.ofNullable(badges.get(badgeId)); }
-    public Optional<Reader> findReader(String readerId) { return Optional.ofNullable(readers.get(readerId)); }
-    public Optional<Resource> findResourceById(String resourceId) { return Optional.ofNullable(resources.get(resourceId)); }
+    // Simple getters for caches, each answered from the current snapshot
+    public CacheSnapshot getSnapshot() { return cache; }
+    public Optional<Badge> findBadge(String badgeId) { return cache.findBadge(badgeId); }
+    public Optional<Reader> findReader(String readerId) { return cache.findReader(readerId); }
+    public Optional<Resource> findResourceById(String resourceId) { return cache.findResourceById(resourceId); }
     public Optional<Resource> findResourceByReader(String readerId) {
-        for (Resource r : resources.values()) if (readerId.equals(r.getReaderId())) return Optional.of(r);
+        for (Resource r : cache.getAllResources()) if (readerId.equals(r.getReaderId())) return Optional.of(r);
         return Optional.empty();
     }
 
-    public Optional<String> findGroupForResource(String resourceId) {
-        for (Map.Entry<String, List<String>> e : groupResources.entrySet()) {
-            if (e.getValue().contains(resourceId)) return Optional.of(e.getKey());
-        }
-        return Optional.empty();
-    }
+    public Optional<String> findGroupForResource(String resourceId) { return cache.findGroupForResource(resourceId); }
 
-    public List<String> getProfilesForBadge(String badgeId) {
-        return badgeProfiles.getOrDefault(badgeId, Collections.emptyList());
-    }
+    /** Ids (see {@link #getGroupIds()}) of every group the resource belongs to; empty if none */
+    public BitSet findGroupsForResource(String resourceId) { return cache.findGroupsForResource(resourceId); }
 
-    public Collection<Reader> getAllReaders() { return readers.values(); }
-    public Collection<Badge> getAllBadges() { return badges.values(); }
-    public Collection<Resource> getAllResources() { return resources.values(); }
-    public Collection<User> getAllUsers() { return users.values(); }
-    public Optional<User> findUserById(String userId) { return Optional.ofNullable(users.get(userId)); }
-    public Optional<com.bigcomp.accesscontrol.model.Profile> findProfileByName(String name) { return Optional.ofNullable(profiles.get(name)); }
-    public java.util.Set<String> getAllGroupNames() { return groups.keySet(); }
+    /** Group names indexed by the dense group ids used in {@link #findGroupsForResource} */
+    public List<String> getGroupIds() { return cache.getGroupIds(); }
+
+    public List<String> getProfilesForBadge(String badgeId) { return cache.getProfilesForBadge(badgeId); }
+
+    public Collection<Reader> getAllReaders() { return cache.getAllReaders(); }
+    public Collection<Zone> getAllZones() { return cache.getAllZones(); }
+    public Optional<Zone> findZone(String zoneId) { return cache.findZone(zoneId); }
+    public Collection<Badge> getAllBadges() { return cache.getAllBadges(); }
+    public Collection<Resource> getAllResources() { return cache.getAllResources(); }
+    public Collection<User> getAllUsers() { return cache.getAllUsers(); }
+    public Optional<User> findUserById(String userId) { return cache.findUserById(userId); }
+    public Optional<com.bigcomp.accesscontrol.model.Profile> findProfileByName(String name) { return cache.findProfileByName(name); }
+    public java.util.Set<String> getAllGroupNames() { return cache.getAllGroupNames(); }
+    public Map<String, List<String>> getGroupResources() { return cache.getGroupResources(); }
 
     // Logging access
     public void insertAccessLog(AccessLog log) {
-        if (conn == null) return;
+        if (!pool.isAvailable()) return;
         String sql = "INSERT INTO AccessLogs (ts, badge_id, reader_id, resource_id, result, message) VALUES (?,?,?,?,?,?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare(sql);
             ps.setTimestamp(1, Timestamp.valueOf(log.getTimestamp()));
             ps.setString(2, log.getBadgeId());
             ps.setString(3, log.getReaderId());
@@ -284,12 +559,82 @@ public class DB {
         }
     }
 
+    /**
+     * Writes all rows with multi-row INSERTs of up to {@code chunkSize} rows each. Every statement
+     * is a single implicit transaction, so a chunk costs one round trip and one commit. A chunk
+     * refused for its data is retried row by row, and rows that still fail (no timestamp, a value
+     * too long in strict mode, ...) are passed to {@code rejected} instead of blocking the rest.
+     * @return number of leading rows written or rejected; less than logs.size() if the DB failed
+     */
+    public int insertAccessLogs(List<AccessLog> logs, int chunkSize, java.util.function.Consumer<AccessLog> rejected) {
+        if (!pool.isAvailable()) return 0;
+        chunkSize = Math.min(Math.max(1, chunkSize), 10000); // 6 placeholders per row, JDBC caps at 65535
+        for (int from = 0; from < logs.size(); from += chunkSize) {
+            int n = Math.min(chunkSize, logs.size() - from);
+            try {
+                insertAccessLogChunk(logs, from, n);
+                continue;
+            } catch (SQLException e) {
+                if (!isDataError(e)) {
+                    e.printStackTrace();
+                    return from;
+                }
+            }
+            for (int i = from; i < from + n; i++) {
+                try {
+                    insertAccessLogChunk(logs, i, 1);
+                } catch (SQLException e) {
+                    if (!isDataError(e)) {
+                        e.printStackTrace();
+                        return i;
+                    }
+                    System.err.println("AccessLogs row rejected: " + e.getMessage());
+                    rejected.accept(logs.get(i));
+                }
+            }
+        }
+        return logs.size();
+    }
+
+    private void insertAccessLogChunk(List<AccessLog> logs, int from, int n) throws SQLException {
+        StringBuilder sql = new StringBuilder("INSERT INTO AccessLogs (ts, badge_id, reader_id, resource_id, result, message) VALUES ");
+        for (int i = 0; i < n; i++) {
+            // caught here, before any row is sent, so one bad row is handled like a server-side rejection
+            if (logs.get(from + i).getTimestamp() == null) throw new SQLDataException("AccessLogs row without timestamp", "22004");
+            sql.append(i == 0 ? "(?,?,?,?,?,?)" : ",(?,?,?,?,?,?)");
+        }
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare(sql.toString());
+            int p = 1;
+            for (int i = from; i < from + n; i++) {
+                AccessLog log = logs.get(i);
+                ps.setTimestamp(p++, Timestamp.valueOf(log.getTimestamp()));
+                ps.setString(p++, log.getBadgeId());
+                ps.setString(p++, log.getReaderId());
+                ps.setString(p++, log.getResourceId());
+                ps.setString(p++, log.getResult());
+                ps.setString(p++, log.getMessage());
+            }
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * True if a statement failed because of the values it carried (SQLSTATE class 22 data
+     * exception or 23 constraint violation), so running it again cannot succeed.
+     */
+    public static boolean isDataError(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
     // Admin actions
     public java.util.List<AccessLog> getRecentLogs(int limit) {
         java.util.List<AccessLog> out = new java.util.ArrayList<>();
-        if (conn == null) return out;
+        if (!pool.isAvailable()) return out;
         String sql = "SELECT ts, badge_id, reader_id, resource_id, result, message FROM AccessLogs ORDER BY ts DESC LIMIT ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare(sql);
             ps.setInt(1, limit);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
@@ -307,98 +652,262 @@ public class DB {
         return out;
     }
 
-    public int getUsageCountToday(String badgeId, String groupName) {
-        if (conn == null) return 0;
-        String sql = "SELECT usage_count, last_usage_date FROM UsageCounters WHERE badge_id=? AND group_name=?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, badgeId);
-            ps.setString(2, groupName);
+    /**
+     * One page of logs matching the query, newest first, starting after the cursor of the
+     * previous page (null for the first). Filters run in SQL; pages are found by keyset on
+     * (ts, id) rather than OFFSET, so a page deep into the table costs the same as the first.
+     */
+    public AccessLogQuery.Page queryAccessLogs(AccessLogQuery q, AccessLogQuery.Cursor after) {
+        if (!pool.isAvailable()) return AccessLogQuery.Page.empty();
+        StringBuilder sql = new StringBuilder("SELECT id, ts, badge_id, reader_id, resource_id, result, message FROM AccessLogs");
+        List<Object> params = new ArrayList<>();
+        q.appendWhere(sql, params, after);
+        sql.append(" ORDER BY ts DESC, id DESC LIMIT ?");
+        params.add(q.getPageSize() + 1); // one more tells whether a next page exists
+        List<AccessLog> rows = new ArrayList<>();
+        AccessLogQuery.Cursor next = null;
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare(sql.toString());
+            for (int i = 0; i < params.size(); i++) ps.setObject(i + 1, params.get(i));
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    java.sql.Date d = rs.getDate(2);
-                    int cnt = rs.getInt(1);
-                    if (d != null && d.toLocalDate().equals(java.time.LocalDate.now())) return cnt;
-                    return 0;
+                long lastId = 0;
+                while (rs.next()) {
+                    if (rows.size() == q.getPageSize()) {
+                        AccessLog last = rows.get(rows.size() - 1);
+                        next = new AccessLogQuery.Cursor(last.getTimestamp(), lastId);
+                        break;
+                    }
+                    lastId = rs.getLong(1);
+                    AccessLog l = new AccessLog();
+                    l.setTimestamp(rs.getTimestamp(2).toLocalDateTime());
+                    l.setBadgeId(rs.getString(3));
+                    l.setReaderId(rs.getString(4));
+                    l.setResourceId(rs.getString(5));
+                    l.setResult(rs.getString(6));
+                    l.setMessage(rs.getString(7));
+                    rows.add(l);
                 }
             }
         } catch (SQLException e) { e.printStackTrace(); }
-        return 0;
+        return new AccessLogQuery.Page(rows, next);
     }
 
-    public void incrementUsageCount(String badgeId, String groupName) {
-        if (conn == null) return;
-        String select = "SELECT usage_count, last_usage_date FROM UsageCounters WHERE badge_id=? AND group_name=?";
-        try (PreparedStatement ps = conn.prepareStatement(select)) {
-            ps.setString(1, badgeId);
-            ps.setString(2, groupName);
-            try (ResultSet rs = ps.executeQuery()) {
-                java.sql.Date today = java.sql.Date.valueOf(java.time.LocalDate.now());
-                if (rs.next()) {
-                    int cnt = rs.getInt(1);
-                    java.sql.Date d = rs.getDate(2);
-                    if (d != null && d.equals(today)) {
-                        // increment
-                        try (PreparedStatement up = conn.prepareStatement("UPDATE UsageCounters SET usage_count=?, last_usage_date=? WHERE badge_id=? AND group_name=?")) {
-                            up.setInt(1, cnt + 1);
-                            up.setDate(2, today);
-                            up.setString(3, badgeId);
-                            up.setString(4, groupName);
-                            up.executeUpdate();
-                        }
-                    } else {
-                        // reset to 1
-                        try (PreparedStatement up = conn.prepareStatement("UPDATE UsageCounters SET usage_count=1, last_usage_date=? WHERE badge_id=? AND group_name=?")) {
-                            up.setDate(1, today);
-                            up.setString(2, badgeId);
-                            up.setString(3, groupName);
-                            up.executeUpdate();
-                        }
-                    }
+    /** All UsageCounters rows, used to hydrate the in-memory usage tracker at startup */
+    public List<UsageCounter> loadUsageCounters() {
+        List<UsageCounter> out = new ArrayList<>();
+        if (!pool.isAvailable()) return out;
+        try (ConnectionPool.PooledConnection c = pool.borrow(); Statement st = c.connection().createStatement();
+             ResultSet rs = st.executeQuery("SELECT badge_id, group_name, usage_count, last_usage_date FROM UsageCounters")) {
+            while (rs.next()) {
+                java.sql.Date d = rs.getDate(4);
+                if (d == null) continue;
+                out.add(new UsageCounter(rs.getString(1), rs.getString(2), rs.getInt(3), d.toLocalDate()));
+            }
+        } catch (SQLException e) { e.printStackTrace(); }
+        return out;
+    }
+
+    /**
+     * Writes the given counters in one batch, inserting or overwriting by (badge_id, group_name).
+     * Rows refused for their data, e.g. for a badge or group deleted since, are logged and skipped.
+     * @return indexes of the rows to write again later; all of them if the DB failed
+     */
+    public List<Integer> upsertUsageCounters(List<UsageCounter> counters) {
+        List<Integer> retry = new ArrayList<>();
+        if (!pool.isAvailable()) {
+            for (int i = 0; i < counters.size(); i++) retry.add(i);
+            return retry;
+        }
+        if (counters.isEmpty()) return retry;
+        String sql = "INSERT INTO UsageCounters (badge_id, group_name, usage_count, last_usage_date) VALUES (?,?,?,?) " +
+                "ON DUPLICATE KEY UPDATE usage_count=VALUES(usage_count), last_usage_date=VALUES(last_usage_date)";
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare(sql);
+            for (UsageCounter u : counters) {
+                ps.setString(1, u.getBadgeId());
+                ps.setString(2, u.getGroupName());
+                ps.setInt(3, u.getUsageCount());
+                ps.setDate(4, java.sql.Date.valueOf(u.getLastUsageDate()));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        } catch (BatchUpdateException e) {
+            // counts are per row when the driver went on after the error, or end at the failed row
+            int[] counts = e.getUpdateCounts();
+            boolean dataError = isDataError(e);
+            for (int i = 0; i < counters.size(); i++) {
+                boolean failed = i >= counts.length || counts[i] == Statement.EXECUTE_FAILED;
+                if (!failed) continue;
+                if (dataError && (i < counts.length || i == counts.length && counts.length < counters.size())) {
+                    UsageCounter u = counters.get(i);
+                    System.err.println("UsageCounters row skipped for " + u.getBadgeId() + "/" + u.getGroupName() + ": " + e.getMessage());
                 } else {
-                    try (PreparedStatement ins = conn.prepareStatement("INSERT INTO UsageCounters (badge_id, group_name, usage_count, last_usage_date) VALUES (?,?,?,?)")) {
-                        ins.setString(1, badgeId);
-                        ins.setString(2, groupName);
-                        ins.setInt(3, 1);
-                        ins.setDate(4, java.sql.Date.valueOf(java.time.LocalDate.now()));
-                        ins.executeUpdate();
-                    }
+                    retry.add(i);
                 }
             }
-        } catch (SQLException e) { e.printStackTrace(); }
+            if (!dataError) e.printStackTrace();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            for (int i = 0; i < counters.size(); i++) retry.add(i);
+        }
+        return retry;
+    }
+
+    /** Zone the badge last entered; Z_OUTSIDE if it has never been seen inside. */
+    public String getBadgeZone(String badgeId) {
+        String zone = badgeZones.get(badgeId);
+        if (zone != null) return zone;
+        zone = cache.findBadge(badgeId).map(Badge::getCurrentZoneId).orElse(null);
+        return zone == null ? "Z_OUTSIDE" : zone;
     }
 
     public boolean updateBadgeCurrentZone(String badgeId, String zoneId) {
-        if (conn == null) return false;
-        try (PreparedStatement ps = conn.prepareStatement("UPDATE Badges SET current_zone_id=? WHERE badge_id=?")) {
-            ps.setString(1, zoneId);
-            ps.setString(2, badgeId);
-            int n = ps.executeUpdate();
-            if (n>0) {
-                // update cache
-                Badge b = badges.get(badgeId);
-                if (b != null) b.setCurrentZoneId(zoneId);
-                return true;
-            }
+        // position lives in its own map: no snapshot is published per swipe
+        badgeZones.put(badgeId, zoneId);
+        if (!pool.isAvailable()) return false;
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare("INSERT INTO BadgePositions (badge_id, zone_id) VALUES (?,?) " +
+                    "ON DUPLICATE KEY UPDATE zone_id=VALUES(zone_id)");
+            ps.setString(1, badgeId);
+            ps.setString(2, zoneId);
+            return ps.executeUpdate() > 0;
         } catch (SQLException e) { e.printStackTrace(); }
         return false;
     }
 
+    public boolean isRevoked(String badgeId) { return revokedBadges.contains(badgeId); }
+
+    /**
+     * Revokes a badge without reloading the caches: a cached badge is denied at once through the
+     * revoked set, then Badges is updated. If the DB cannot confirm it, the id is appended to
+     * data/revoked_badges.txt and written at the next load. Unknown ids are refused.
+     */
     public boolean revokeBadge(String badgeId) {
-        try (PreparedStatement ps = conn.prepareStatement("UPDATE Badges SET is_active=0 WHERE badge_id=?")) {
-            ps.setString(1, badgeId);
-            int n = ps.executeUpdate();
-            if (n>0) {
-                // refresh cache
-                initialize();
-                return true;
+        if (badgeId == null) return false;
+        Badge cached = cache.findBadge(badgeId).orElse(null);
+        if (cached == null && !pool.isAvailable()) return false;
+        if (cached != null) {
+            revokedBadges.add(badgeId);
+            publishBadgeActive(badgeId, false);
+        }
+        int n = setBadgeActive(badgeId, false);
+        if (n > 0) {
+            revokedBadges.add(badgeId);
+            publishBadgeActive(badgeId, false);
+            return true;
+        }
+        if (cached == null) return false;
+        pendingRevocations.add(badgeId);
+        appendRevoked(badgeId);
+        return true;
+    }
+
+    /** Undoes a revocation: the badge is active again in Badges and no longer denied. */
+    public boolean reinstateBadge(String badgeId) {
+        if (badgeId == null || setBadgeActive(badgeId, true) <= 0) return false;
+        revokedBadges.remove(badgeId);
+        if (pendingRevocations.remove(badgeId)) rewriteRevoked();
+        publishBadgeActive(badgeId, true);
+        return true;
+    }
+
+    /** Publishes a copy of the cached badge with the new flag; the current snapshot is left as it is. */
+    private void publishBadgeActive(String badgeId, boolean active) {
+        Badge copy;
+        synchronized (this) {
+            Badge b = cache.findBadge(badgeId).orElse(null);
+            if (b == null || b.isActive() == active) return;
+            copy = b.copy();
+            copy.setActive(active);
+            cache = cache.withBadge(copy);
+        }
+        fireBadgeChanged(copy);
+    }
+
+    /** Rows updated, or -1 if the DB could not be reached. */
+    private int setBadgeActive(String badgeId, boolean active) {
+        if (!pool.isAvailable()) return -1;
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare("UPDATE Badges SET is_active=? WHERE badge_id=?");
+            ps.setBoolean(1, active);
+            ps.setString(2, badgeId);
+            return ps.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Lines the revoked set up with freshly loaded Badges: pending revocations are applied and
+     * written, ids Badges no longer knows are dropped, and revocations made here but reactivated
+     * in the DB since are lifted. The file is rewritten with what is still pending.
+     */
+    private void reconcileRevoked(Map<String, Badge> badgeMap) {
+        boolean fileChanged = false;
+        for (String id : revokedBadges) {
+            Badge b = badgeMap.get(id);
+            if (b == null) {
+                revokedBadges.remove(id);
+                fileChanged |= pendingRevocations.remove(id);
+            } else if (pendingRevocations.contains(id)) {
+                b.setActive(false);
+                if (setBadgeActive(id, false) > 0) fileChanged |= pendingRevocations.remove(id);
+            } else if (b.isActive()) {
+                revokedBadges.remove(id);
             }
-        } catch (SQLException e) { e.printStackTrace(); }
-        return false;
+        }
+        if (fileChanged) rewriteRevoked();
+    }
+
+    private void appendRevoked(String badgeId) {
+        revokedFile.getParentFile().mkdirs();
+        try (java.io.FileOutputStream out = new java.io.FileOutputStream(revokedFile, true)) {
+            out.write((badgeId + "\n").getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void rewriteRevoked() {
+        revokedFile.getParentFile().mkdirs();
+        java.io.File tmp = new java.io.File(revokedFile.getPath() + ".tmp");
+        try (java.io.FileOutputStream out = new java.io.FileOutputStream(tmp)) {
+            StringBuilder sb = new StringBuilder();
+            for (String id : pendingRevocations) sb.append(id).append('\n');
+            out.write(sb.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            java.nio.file.Files.move(tmp.toPath(), revokedFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                    java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void loadRevokedBadges() {
+        if (!revokedFile.exists()) return;
+        try (BufferedReader br = new BufferedReader(new FileReader(revokedFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                revokedBadges.add(line);
+                pendingRevocations.add(line);
+            }
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+        }
     }
 
     // Profile persistence (file-backed, uses Profiles table for metadata)
     public boolean saveProfile(com.bigcomp.accesscontrol.model.Profile profile) {
-        if (profile == null || conn == null) return false;
+        if (profile == null || !pool.isAvailable()) return false;
         String path = "data/profiles/" + profile.getProfileName() + ".txt";
         java.io.File f = new java.io.File(path);
         f.getParentFile().mkdirs();
@@ -411,63 +920,109 @@ public class DB {
 
         String sql = "INSERT INTO Profiles (profile_name, file_path, description) VALUES (?,?,?) " +
                 "ON DUPLICATE KEY UPDATE file_path=VALUES(file_path), description=VALUES(description)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare(sql);
             ps.setString(1, profile.getProfileName());
             ps.setString(2, path);
             ps.setString(3, profile.getDescription());
             ps.executeUpdate();
-            profiles.put(profile.getProfileName(), profile);
+            synchronized (this) {
+                cache = cache.withProfile(profile);
+                profileEntries.put(profile.getProfileName(), WarmSnapshot.entryFor(path, profile.getDescription(), profile));
+            }
+            fireChanged();
             return true;
         } catch (SQLException e) { e.printStackTrace(); }
         return false;
     }
 
     public boolean deleteProfile(String profileName) {
-        if (conn == null) return false;
-        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM Profiles WHERE profile_name=?")) {
+        if (!pool.isAvailable()) return false;
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare("DELETE FROM Profiles WHERE profile_name=?");
             ps.setString(1, profileName);
             ps.executeUpdate();
-            profiles.remove(profileName);
-            // clean badge assignments cache
-            badgeProfiles.values().forEach(list -> list.removeIf(p -> p.equals(profileName)));
+            synchronized (this) {
+                cache = cache.withoutProfile(profileName);
+                profileEntries.remove(profileName);
+            }
             java.io.File f = new java.io.File("data/profiles/" + profileName + ".txt");
             if (f.exists()) f.delete();
+            fireChanged();
             return true;
         } catch (SQLException e) { e.printStackTrace(); }
         return false;
     }
 
+    /** Profile file -> profile name, for every profile loaded from the Profiles table */
+    public Map<java.nio.file.Path, String> getProfileFiles() {
+        Map<java.nio.file.Path, String> out = new HashMap<>();
+        for (Map.Entry<String, WarmSnapshot.ProfileEntry> e : profileEntries.entrySet()) {
+            out.put(java.nio.file.Paths.get(e.getValue().path).toAbsolutePath().normalize(), e.getKey());
+        }
+        return out;
+    }
+
+    /**
+     * Re-reads the given profiles from their files and publishes them in one new snapshot.
+     * Profiles whose file is gone keep their last parsed rights.
+     */
+    public void reloadProfiles(Collection<String> profileNames) {
+        Map<String, com.bigcomp.accesscontrol.model.Profile> parsed = new HashMap<>();
+        Map<String, WarmSnapshot.ProfileEntry> entries = new HashMap<>();
+        for (String name : profileNames) {
+            WarmSnapshot.ProfileEntry src = profileEntries.get(name);
+            if (src == null || !new java.io.File(src.path).exists()) continue;
+            com.bigcomp.accesscontrol.model.Profile p = readProfileFromFile(name, src.path, src.tableDescription);
+            parsed.put(name, p);
+            entries.put(name, WarmSnapshot.entryFor(src.path, src.tableDescription, p));
+        }
+        if (parsed.isEmpty()) return;
+        synchronized (this) {
+            cache = cache.withProfiles(parsed.values());
+            profileEntries.putAll(entries);
+        }
+        System.out.println("Reloaded profiles: " + parsed.keySet());
+        for (ChangeListener l : changeListeners) l.onProfilesChanged(parsed.keySet());
+    }
+
     // User CRUD used by editor panels
     public boolean saveUser(User user) {
-        if (user == null || conn == null) return false;
+        if (user == null || !pool.isAvailable()) return false;
         String sql = "INSERT INTO Users (user_id, id_number, first_name, last_name, gender) VALUES (?,?,?,?,?) " +
                 "ON DUPLICATE KEY UPDATE id_number=VALUES(id_number), first_name=VALUES(first_name), last_name=VALUES(last_name), gender=VALUES(gender)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare(sql);
             ps.setString(1, user.getUserId());
             ps.setString(2, user.getIdNumber());
             ps.setString(3, user.getFirstName());
             ps.setString(4, user.getLastName());
             ps.setString(5, user.getGender());
             ps.executeUpdate();
-            users.put(user.getUserId(), user);
+            synchronized (this) {
+                cache = cache.withUser(user);
+            }
             return true;
         } catch (SQLException e) { e.printStackTrace(); }
         return false;
     }
 
     public boolean deleteUser(String userId) {
-        if (conn == null) return false;
-        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM Users WHERE user_id=?")) {
+        if (!pool.isAvailable()) return false;
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare("DELETE FROM Users WHERE user_id=?");
             ps.setString(1, userId);
             ps.executeUpdate();
-            users.remove(userId);
+            synchronized (this) {
+                cache = cache.withoutUser(userId);
+            }
             return true;
         } catch (SQLException e) { e.printStackTrace(); }
         return false;
     }
 
     // Badge update state persisted to local file (no DB schema change)
-    private void loadBadgeUpdateState() {
+    private void loadBadgeUpdateState(Map<String, Badge> badges) {
         java.io.File f = new java.io.File("data/badge_updates.csv");
         if (!f.exists()) return;
         try (java.io.BufferedReader br = new java.io.BufferedReader(new java.io.FileReader(f))) {
@@ -494,7 +1049,7 @@ public class DB {
         java.io.File f = new java.io.File("data/badge_updates.csv");
         f.getParentFile().mkdirs();
         try (java.io.PrintWriter pw = new java.io.PrintWriter(new java.io.FileWriter(f))) {
-            for (Badge b : badges.values()) {
+            for (Badge b : cache.getAllBadges()) {
                 pw.printf("%s,%s,%s,%s,%s%n",
                         b.getBadgeId(),
                         Boolean.toString(b.isRequiresUpdate()),
@@ -505,39 +1060,84 @@ public class DB {
         } catch (Exception ignored) { }
     }
 
+    /**
+     * Publishes the badge (a copy, not the cached instance) with its new update state at once;
+     * data/badge_updates.csv and Badges.last_update_date are written in the background.
+     */
     public boolean updateBadgeUpdateStatus(Badge badge) {
         if (badge == null) return false;
-        badges.put(badge.getBadgeId(), badge);
-        saveBadgeUpdateState();
-        if (conn != null) {
-            try (PreparedStatement ps = conn.prepareStatement("UPDATE Badges SET last_update_date=? WHERE badge_id=?")) {
-                java.time.LocalDateTime ldt = badge.getLastUpdateTime();
-                ps.setTimestamp(1, ldt == null ? null : java.sql.Timestamp.valueOf(ldt));
-                ps.setString(2, badge.getBadgeId());
-                ps.executeUpdate();
-            } catch (SQLException e) { e.printStackTrace(); }
+        synchronized (this) {
+            cache = cache.withBadge(badge);
+        }
+        fireBadgeChanged(badge);
+        // the file holds every badge: a rewrite already queued will pick this one up
+        if (badgeStateSaveQueued.compareAndSet(false, true)) {
+            runOnBadgeWriter(() -> {
+                badgeStateSaveQueued.set(false);
+                saveBadgeUpdateState();
+            });
         }
+        runOnBadgeWriter(() -> saveLastUpdate(badge));
         return true;
     }
 
+    /** Runs the task on the badge writer, or here once the writer has been shut down. */
+    private void runOnBadgeWriter(Runnable task) {
+        try {
+            badgeWriter.execute(task);
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private void saveLastUpdate(Badge badge) {
+        if (!pool.isAvailable()) return;
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare("UPDATE Badges SET last_update_date=? WHERE badge_id=?");
+            java.time.LocalDateTime ldt = badge.getLastUpdateTime();
+            ps.setTimestamp(1, ldt == null ? null : java.sql.Timestamp.valueOf(ldt));
+            ps.setString(2, badge.getBadgeId());
+            ps.executeUpdate();
+        } catch (SQLException e) { e.printStackTrace(); }
+    }
+
     // Toggle controlled/uncontrolled for all resources in a group (uses existing Resources.state field)
     public boolean setGroupControlled(String groupName, boolean controlled) {
-        java.util.List<String> resIds = groupResources.getOrDefault(groupName, java.util.Collections.emptyList());
-        if (resIds.isEmpty() || conn == null) return false;
+        java.util.List<String> resIds = cache.getGroupResources().getOrDefault(groupName, java.util.Collections.emptyList());
+        if (resIds.isEmpty() || !pool.isAvailable()) return false;
         String state = controlled ? "CONTROLLED" : "UNCONTROLLED";
-        try (PreparedStatement ps = conn.prepareStatement("UPDATE Resources SET state=? WHERE resource_id=?")) {
+        try (ConnectionPool.PooledConnection c = pool.borrow()) {
+            PreparedStatement ps = c.prepare("UPDATE Resources SET state=? WHERE resource_id=?");
             for (String rid : resIds) {
                 ps.setString(1, state);
                 ps.setString(2, rid);
                 ps.addBatch();
             }
             ps.executeBatch();
-            for (String rid : resIds) {
-                Resource r = resources.get(rid);
-                if (r != null) r.setControlled(controlled);
+            synchronized (this) {
+                // copies, so readers of the previous snapshot keep seeing the old state
+                List<Resource> changed = new ArrayList<>();
+                for (String rid : resIds) {
+                    Optional<Resource> r = cache.findResourceById(rid);
+                    if (r.isPresent()) changed.add(copyWithControlled(r.get(), controlled));
+                }
+                cache = cache.withResources(changed);
             }
+            fireChanged();
             return true;
         } catch (SQLException e) { e.printStackTrace(); }
         return false;
     }
+
+    private static Resource copyWithControlled(Resource r, boolean controlled) {
+        Resource c = new Resource();
+        c.setResourceId(r.getResourceId());
+        c.setReaderId(r.getReaderId());
+        c.setName(r.getName());
+        c.setResourceType(r.getResourceType());
+        c.setFromZoneId(r.getFromZoneId());
+        c.setToZoneId(r.getToZoneId());
+        c.setControlled(controlled);
+        return c;
+    }
 }
@@ -0,0 +1,102 @@
+package com.bigcomp.accesscontrol.db;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the directories holding profile files and hands changed profiles to
+ * {@link DB#reloadProfiles}. Events are collected until the directories have been quiet for the
+ * debounce interval, so an editor saving a file in several writes causes one reload.
+ */
+public class ProfileWatcher {
+    private final DB db;
+    private final long debounceMs;
+    private final Set<Path> watchedDirs = new HashSet<>();
+    private WatchService watcher;
+    private Thread thread;
+    private volatile boolean running;
+
+    public ProfileWatcher(DB db, long debounceMs) {
+        this.db = db;
+        this.debounceMs = Math.max(10, debounceMs);
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        new java.io.File("data/profiles").mkdirs();
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "profile-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void close() {
+        if (!running) return;
+        running = false;
+        try {
+            watcher.close();
+        } catch (IOException ignored) { }
+        thread.interrupt();
+    }
+
+    private void run() {
+        Set<String> pending = new HashSet<>();
+        try {
+            while (running) {
+                registerDirs();
+                WatchKey key = pending.isEmpty() ? watcher.take() : watcher.poll(debounceMs, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    // quiet for a full debounce interval
+                    db.reloadProfiles(pending);
+                    pending = new HashSet<>();
+                    continue;
+                }
+                collect(key, pending);
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+            // closed
+        }
+    }
+
+    private void collect(WatchKey key, Set<String> pending) {
+        Path dir = (Path) key.watchable();
+        Map<Path, String> files = db.getProfileFiles();
+        for (WatchEvent<?> ev : key.pollEvents()) {
+            if (ev.kind() == OVERFLOW) {
+                pending.addAll(files.values());
+                continue;
+            }
+            if (ev.kind() == ENTRY_DELETE) continue; // a deleted file keeps its last parsed rights
+            String name = files.get(dir.resolve((Path) ev.context()).toAbsolutePath().normalize());
+            if (name != null) pending.add(name);
+        }
+    }
+
+    private void registerDirs() {
+        Set<Path> dirs = new HashSet<>();
+        dirs.add(Paths.get("data/profiles").toAbsolutePath().normalize());
+        for (Path file : db.getProfileFiles().keySet()) {
+            if (file.getParent() != null) dirs.add(file.getParent());
+        }
+        for (Path d : dirs) {
+            if (watchedDirs.contains(d) || !Files.isDirectory(d)) continue;
+            try {
+                d.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                watchedDirs.add(d);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package com.bigcomp.accesscontrol.db;
+
+import com.bigcomp.accesscontrol.log.AccessLogPipeline;
+import com.bigcomp.accesscontrol.model.AccessLog;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * The last hours of access events in memory, so questions about recent activity need neither
+ * MySQL nor the CSV files. Events are kept in a ring of primitive columns: a timestamp and
+ * dictionary ids for the text fields, {@link #BYTES_PER_EVENT} bytes each. Half of
+ * hotwindow.memoryMB sizes the ring, the other half bounds the dictionaries: when they outgrow
+ * it they are rebuilt from the events still held, dropping the oldest events if free-text
+ * values alone would not fit. Events are ordered by a key that never decreases along the ring,
+ * so a time range is found by binary search: the event's time, or the latest time seen so far
+ * when it arrives a little out of order, with the difference kept to give back its real time.
+ * Events more than {@link #LATE_MILLIS} behind (e.g. replayed from a spill file) are left out
+ * and the window no longer claims to cover their time. Each event also links back to the previous event of the
+ * same badge and of the same reader, so one badge's or reader's history is read without
+ * scanning the others. Fed as a sink of the {@link AccessLogPipeline}; one writer, any readers.
+ */
+public class RecentAccessWindow implements AccessLogPipeline.Sink {
+    /** ts + lag + 6 dictionary ids + result + 2 chain links */
+    public static final int BYTES_PER_EVENT = 8 + 4 + 6 * 4 + 1 + 2 * 4;
+    /** How far behind the latest event one may arrive and still be kept */
+    public static final long LATE_MILLIS = 10_000;
+    private static final int INITIAL_SLOTS = 4096;
+
+    private final int capacity;
+    private final long dictBudget;
+    private final long windowMillis;
+    private final long createdAt = now();
+
+    // Columns, [seq % length]; arrays grow by doubling until capacity, then the ring wraps
+    private long[] ts = new long[0];       // ordering key: max of the event time and every earlier key
+    private int[] lag = new int[0];        // key - event time
+    private int[] badge = new int[0];
+    private int[] reader = new int[0];
+    private int[] resource = new int[0];
+    private int[] user = new int[0];
+    private int[] group = new int[0];
+    private int[] message = new int[0];
+    private byte[] result = new byte[0];
+    private int[] badgePrev = new int[0];  // seq distance to the badge's previous event, 0 if none
+    private int[] readerPrev = new int[0];
+
+    // Rebuilt together by compactDictionaries, so they are never final
+    private Dict badges = new Dict();
+    private Dict readers = new Dict();
+    private Dict resources = new Dict();
+    private Dict users = new Dict();
+    private Dict groups = new Dict();
+    private Dict messages = new Dict();
+    private Dict results = new Dict();
+    private long[] badgeHead = new long[0];   // latest seq per badge id
+    private long[] readerHead = new long[0];
+
+    private long next;    // seq of the next event
+    private long start;   // seq of the oldest event kept, unless the ring has wrapped past it
+    private long compactedFrom = -1; // oldest seq when the dictionaries were last rebuilt
+    private long lastTs;
+    private long lateUntil = Long.MIN_VALUE; // latest time of an event left out for arriving too late
+
+    public RecentAccessWindow(long memoryBytes, int hours) {
+        this.capacity = (int) Math.max(INITIAL_SLOTS, Math.min(Integer.MAX_VALUE - 8, memoryBytes / 2 / BYTES_PER_EVENT));
+        this.dictBudget = Math.max(1 << 20, memoryBytes / 2);
+        this.windowMillis = Math.max(1, hours) * 3_600_000L;
+    }
+
+    public int getCapacity() { return capacity; }
+
+    @Override
+    public synchronized void accept(AccessLog log) {
+        if (log.getTimestamp() == null) return;
+        if (next == ts.length && ts.length < capacity) grow();
+        long real = millis(log.getTimestamp());
+        if (real < lastTs - LATE_MILLIS) {
+            lateUntil = Math.max(lateUntil, real);
+            return;
+        }
+        long key = Math.max(real, lastTs);
+        lastTs = key;
+        int slot = (int) (next % ts.length);
+        ts[slot] = key;
+        lag[slot] = (int) (key - real);
+        badge[slot] = badges.id(log.getBadgeId());
+        reader[slot] = readers.id(log.getReaderId());
+        resource[slot] = resources.id(log.getResourceId());
+        user[slot] = users.id(log.getUserId());
+        group[slot] = groups.id(log.getGroupName());
+        message[slot] = messages.id(log.getMessage());
+        result[slot] = (byte) results.id(log.getResult());
+        badgeHead = grow(badgeHead, badge[slot]);
+        readerHead = grow(readerHead, reader[slot]);
+        badgePrev[slot] = link(badgeHead, badge[slot]);
+        readerPrev[slot] = link(readerHead, reader[slot]);
+        next++;
+        if (dictionaryBytes() > dictBudget) compactDictionaries();
+    }
+
+    private long dictionaryBytes() {
+        return badges.bytes() + readers.bytes() + resources.bytes() + users.bytes() + groups.bytes()
+                + messages.bytes() + results.bytes() + 8L * (badgeHead.length + readerHead.length);
+    }
+
+    /**
+     * Rebuilds the dictionaries and chain heads from the events still held, so values only seen
+     * in overwritten events are released. If that is not enough, e.g. with a distinct message per
+     * event, the older half of the events is dropped until the dictionaries fit in half their
+     * budget; the headroom keeps this from running again for a while.
+     */
+    private void compactDictionaries() {
+        // nothing has left the window since the last rebuild, so rebuilding alone would free nothing
+        if (oldest() == compactedFrom) start = oldest() + Math.max(1, (next - oldest()) / 2);
+        while (true) {
+            Dict[] old = {badges, readers, resources, users, groups, messages, results};
+            Dict[] fresh = new Dict[old.length];
+            int[][] remap = new int[old.length][];
+            for (int d = 0; d < old.length; d++) {
+                fresh[d] = new Dict();
+                remap[d] = new int[old[d].size()];
+                Arrays.fill(remap[d], -1);
+            }
+            int[][] columns = {badge, reader, resource, user, group, message};
+            long[] newBadgeHead = new long[0];
+            long[] newReaderHead = new long[0];
+            for (long s = oldest(); s < next; s++) {
+                int slot = slot(s);
+                for (int d = 0; d < columns.length; d++) columns[d][slot] = remapId(old[d], fresh[d], remap[d], columns[d][slot]);
+                result[slot] = (byte) remapId(old[6], fresh[6], remap[6], result[slot]);
+                newBadgeHead = grow(newBadgeHead, badge[slot]);
+                newReaderHead = grow(newReaderHead, reader[slot]);
+                if (badge[slot] >= 0) newBadgeHead[badge[slot]] = s;
+                if (reader[slot] >= 0) newReaderHead[reader[slot]] = s;
+            }
+            badges = fresh[0];
+            readers = fresh[1];
+            resources = fresh[2];
+            users = fresh[3];
+            groups = fresh[4];
+            messages = fresh[5];
+            results = fresh[6];
+            badgeHead = newBadgeHead;
+            readerHead = newReaderHead;
+            compactedFrom = oldest();
+            long live = next - oldest();
+            if (dictionaryBytes() <= dictBudget / 2 || live == 0) return;
+            start = oldest() + Math.max(1, live / 2);
+        }
+    }
+
+    private static int remapId(Dict from, Dict to, int[] remap, int id) {
+        if (id < 0) return id;
+        if (remap[id] < 0) remap[id] = to.id(from.value(id));
+        return remap[id];
+    }
+
+    private void grow() {
+        int n = (int) Math.min(capacity, Math.max(INITIAL_SLOTS, (long) ts.length * 2));
+        ts = Arrays.copyOf(ts, n);
+        lag = Arrays.copyOf(lag, n);
+        badge = Arrays.copyOf(badge, n);
+        reader = Arrays.copyOf(reader, n);
+        resource = Arrays.copyOf(resource, n);
+        user = Arrays.copyOf(user, n);
+        group = Arrays.copyOf(group, n);
+        message = Arrays.copyOf(message, n);
+        result = Arrays.copyOf(result, n);
+        badgePrev = Arrays.copyOf(badgePrev, n);
+        readerPrev = Arrays.copyOf(readerPrev, n);
+    }
+
+    private static long[] grow(long[] heads, int id) {
+        if (id < heads.length) return heads;
+        int old = heads.length;
+        long[] out = Arrays.copyOf(heads, Math.max(64, Math.max(id + 1, old * 2)));
+        Arrays.fill(out, old, out.length, -1);
+        return out;
+    }
+
+    /** Makes seq `next` the head of the id's chain; returns the distance back to the previous head. */
+    private int link(long[] heads, int id) {
+        if (id < 0) return 0;
+        long prev = heads[id];
+        heads[id] = next;
+        return prev < 0 || next - prev >= capacity ? 0 : (int) (next - prev);
+    }
+
+    // Queries
+
+    /**
+     * True if every event the query can match is still in the window, i.e. its range starts no
+     * earlier than the oldest event kept (or than startup, before the ring first wraps).
+     */
+    public synchronized boolean covers(AccessLogQuery q) {
+        return q.getFrom() != null && millis(q.getFrom()) >= coverageStart();
+    }
+
+    /** Time from which the window holds every event. */
+    public synchronized LocalDateTime getCoverageStart() {
+        return time(coverageStart());
+    }
+
+    private long coverageStart() {
+        // events dropped off the ring had keys, hence times, up to the oldest key kept
+        long from = oldest() > 0 ? ts[slot(oldest())] + 1 : createdAt;
+        return Math.max(Math.max(from, now() - windowMillis), lateUntil == Long.MIN_VALUE ? Long.MIN_VALUE : lateUntil + 1);
+    }
+
+    /**
+     * One page of events matching the query, newest first, in the same form as
+     * {@link DB#queryAccessLogs}; cursor ids are positions in this window, not AccessLogs ids.
+     */
+    public synchronized AccessLogQuery.Page query(AccessLogQuery q, AccessLogQuery.Cursor after) {
+        // an event's key is at or after its time, by at most LATE_MILLIS
+        long fromMillis = Math.max(now() - windowMillis, q.getFrom() == null ? Long.MIN_VALUE : millis(q.getFrom()));
+        long toMillis = q.getTo() == null ? Long.MAX_VALUE : millis(q.getTo());
+        long lo = lowerBound(fromMillis);
+        long hi = q.getTo() == null ? next : upperBound(toMillis + LATE_MILLIS);
+        if (after != null) hi = Math.min(hi, after.id);
+        BitSet badgeIds = badges.matching(q.getBadgeId());
+        BitSet readerIds = readers.matching(q.getReaderId());
+        BitSet resourceIds = resources.matching(q.getResourceId());
+        BitSet resultIds = results.matching(q.getResult());
+        List<AccessLog> rows = new ArrayList<>();
+        AccessLogQuery.Cursor nextCursor = null;
+        if ((badgeIds != null && badgeIds.isEmpty()) || (readerIds != null && readerIds.isEmpty())
+                || (resourceIds != null && resourceIds.isEmpty()) || (resultIds != null && resultIds.isEmpty())) {
+            return new AccessLogQuery.Page(rows, null);
+        }
+        // an exact badge or reader walks that chain; anything else walks the ring back in time
+        int chainBadge = badgeIds != null && badgeIds.cardinality() == 1 ? badgeIds.nextSetBit(0) : -1;
+        int chainReader = chainBadge < 0 && readerIds != null && readerIds.cardinality() == 1 ? readerIds.nextSetBit(0) : -1;
+        long s;
+        long lastSeq = -1;
+        if (chainBadge >= 0) s = headBefore(badgeHead, badgePrev, chainBadge, hi);
+        else if (chainReader >= 0) s = headBefore(readerHead, readerPrev, chainReader, hi);
+        else s = hi - 1;
+        for (; s >= lo; s = chainBadge >= 0 ? prev(badgePrev, s) : chainReader >= 0 ? prev(readerPrev, s) : s - 1) {
+            int slot = slot(s);
+            long t = ts[slot] - lag[slot];
+            if (t < fromMillis || t > toMillis) continue;
+            if (badgeIds != null && (badge[slot] < 0 || !badgeIds.get(badge[slot]))) continue;
+            if (readerIds != null && (reader[slot] < 0 || !readerIds.get(reader[slot]))) continue;
+            if (resourceIds != null && (resource[slot] < 0 || !resourceIds.get(resource[slot]))) continue;
+            if (resultIds != null && (result[slot] < 0 || !resultIds.get(result[slot]))) continue;
+            if (rows.size() == q.getPageSize()) {
+                AccessLog last = rows.get(rows.size() - 1);
+                nextCursor = new AccessLogQuery.Cursor(last.getTimestamp(), lastSeq);
+                break;
+            }
+            rows.add(toLog(slot));
+            lastSeq = s;
+        }
+        return new AccessLogQuery.Page(rows, nextCursor);
+    }
+
+    /** The badge's latest events within the window, newest first. */
+    public synchronized List<AccessLog> recentForBadge(String badgeId, int limit) {
+        return chain(badgeHead, badgePrev, badges.find(badgeId), limit);
+    }
+
+    /** The reader's latest events within the window, newest first. */
+    public synchronized List<AccessLog> recentForReader(String readerId, int limit) {
+        return chain(readerHead, readerPrev, readers.find(readerId), limit);
+    }
+
+    private List<AccessLog> chain(long[] heads, int[] prevs, int id, int limit) {
+        List<AccessLog> out = new ArrayList<>();
+        if (id < 0) return out;
+        long windowStart = now() - windowMillis;
+        long lo = lowerBound(windowStart);
+        for (long s = headBefore(heads, prevs, id, next); s >= lo && out.size() < limit; s = prev(prevs, s)) {
+            int slot = slot(s);
+            if (ts[slot] - lag[slot] >= windowStart) out.add(toLog(slot));
+        }
+        return out;
+    }
+
+    /** Latest seq of the chain below hi, or -1. */
+    private long headBefore(long[] heads, int[] prevs, int id, long hi) {
+        long s = id < heads.length ? heads[id] : -1;
+        if (s < oldest()) return -1;
+        while (s >= hi) s = prev(prevs, s);
+        return s;
+    }
+
+    private long prev(int[] prevs, long s) {
+        int d = prevs[slot(s)];
+        long p = s - d;
+        return d == 0 || p < oldest() ? -1 : p;
+    }
+
+    private long oldest() {
+        return Math.max(start, next - ts.length);
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % ts.length);
+    }
+
+    /** First seq whose timestamp is at least t. */
+    private long lowerBound(long t) {
+        long lo = oldest();
+        long hi = next;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (ts[slot(mid)] < t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** First seq whose timestamp is after t. */
+    private long upperBound(long t) {
+        long lo = oldest();
+        long hi = next;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (ts[slot(mid)] <= t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private AccessLog toLog(int slot) {
+        AccessLog l = new AccessLog();
+        l.setTimestamp(time(ts[slot] - lag[slot]));
+        l.setBadgeId(badges.value(badge[slot]));
+        l.setReaderId(readers.value(reader[slot]));
+        l.setResourceId(resources.value(resource[slot]));
+        l.setUserId(users.value(user[slot]));
+        l.setGroupName(groups.value(group[slot]));
+        l.setMessage(messages.value(message[slot]));
+        l.setResult(results.value(result[slot]));
+        return l;
+    }
+
+    // Local date-times are stored as if UTC: no zone rules, and the order is the same
+    private static long millis(LocalDateTime t) {
+        return t.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private static LocalDateTime time(long millis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), Math.floorMod(millis, 1000) * 1_000_000, ZoneOffset.UTC);
+    }
+
+    private static long now() {
+        return millis(LocalDateTime.now());
+    }
+
+    /** Distinct values of a text column; null is id -1. */
+    private static final class Dict {
+        // rough heap cost of one value: the String, its map entries and list slot
+        private static final int ENTRY_BYTES = 128;
+
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+        // lower-cased value -> latest id with it, and per id the previous one, -1 if none
+        private final Map<String, Integer> byFold = new HashMap<>();
+        private int[] sameFold = new int[16];
+        private long bytes;
+
+        int id(String v) {
+            if (v == null) return -1;
+            Integer id = ids.get(v);
+            if (id == null) {
+                id = values.size();
+                ids.put(v, id);
+                values.add(v);
+                Integer prev = byFold.put(fold(v), id);
+                if (id == sameFold.length) sameFold = Arrays.copyOf(sameFold, id * 2);
+                sameFold[id] = prev == null ? -1 : prev;
+                bytes += ENTRY_BYTES + 2L * v.length();
+            }
+            return id;
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        long bytes() {
+            return bytes + 4L * sameFold.length;
+        }
+
+        int find(String v) {
+            Integer id = v == null ? null : ids.get(v);
+            return id == null ? -1 : id;
+        }
+
+        String value(int id) {
+            return id < 0 ? null : values.get(id);
+        }
+
+        /**
+         * Ids matching a query value as SQL would under MySQL's default case-insensitive collation
+         * (equal, or prefix with a trailing '*'); null if unconstrained.
+         */
+        BitSet matching(String q) {
+            if (q == null) return null;
+            BitSet out = new BitSet();
+            if (q.endsWith("*")) {
+                String prefix = q.substring(0, q.length() - 1);
+                for (int i = 0; i < values.size(); i++) {
+                    if (values.get(i).regionMatches(true, 0, prefix, 0, prefix.length())) out.set(i);
+                }
+            } else {
+                Integer id = byFold.get(fold(q));
+                for (int i = id == null ? -1 : id; i >= 0; i = sameFold[i]) out.set(i);
+            }
+            return out;
+        }
+
+        private static String fold(String s) {
+            return s.toLowerCase(Locale.ROOT);
+        }
+    }
+}
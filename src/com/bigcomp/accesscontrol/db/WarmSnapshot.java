@@ -0,0 +1,295 @@
+package com.bigcomp.accesscontrol.db;
+
+import com.bigcomp.accesscontrol.model.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Binary copy of the loaded caches, written at shutdown and memory-mapped at the next boot.
+ * Every table section carries the change stamp (information_schema UPDATE_TIME) the table had
+ * when it was loaded; a section is only reused while the live stamp still matches. Profiles
+ * also carry the size and mtime of their file so edited files are parsed again.
+ */
+final class WarmSnapshot {
+    static final long NO_STAMP = -1;
+    private static final int MAGIC = 0x42435331; // "BCS1"
+
+    static final String[] TABLES = { "Zones", "Users", "Badges", "BadgeReaders", "Resources",
+            "ResourceGroups", "Profiles", "Group_Resources", "Badge_Profiles" };
+
+    /** A parsed profile together with the file state it was parsed from. */
+    static final class ProfileEntry {
+        final String path;
+        final String tableDescription;
+        final long fileSize;
+        final long fileModified;
+        final Profile profile;
+
+        ProfileEntry(String path, String tableDescription, long fileSize, long fileModified, Profile profile) {
+            this.path = path;
+            this.tableDescription = tableDescription;
+            this.fileSize = fileSize;
+            this.fileModified = fileModified;
+            this.profile = profile;
+        }
+
+        boolean matches(String path, String tableDescription) {
+            File f = new File(path);
+            return this.path.equals(path) && Objects.equals(this.tableDescription, tableDescription)
+                    && f.exists() && f.length() == fileSize && f.lastModified() == fileModified;
+        }
+    }
+
+    final Map<String, Long> stamps = new HashMap<>();
+    final Map<String, Zone> zones = new HashMap<>();
+    final Map<String, User> users = new HashMap<>();
+    final Map<String, Badge> badges = new HashMap<>();
+    final Map<String, Reader> readers = new HashMap<>();
+    final Map<String, Resource> resources = new HashMap<>();
+    final Map<String, ResourceGroup> groups = new HashMap<>();
+    final Map<String, ProfileEntry> profiles = new HashMap<>();
+    final Map<String, List<String>> groupResources = new HashMap<>();
+    final Map<String, List<String>> badgeProfiles = new HashMap<>();
+
+    /** True if the table section can be used as is, given the live change stamps. */
+    boolean isFresh(String table, Map<String, Long> liveStamps) {
+        Long mine = stamps.get(table);
+        Long live = liveStamps.get(table);
+        return mine != null && mine != NO_STAMP && mine.equals(live);
+    }
+
+    static ProfileEntry entryFor(String path, String tableDescription, Profile profile) {
+        File f = new File(path);
+        return new ProfileEntry(path, tableDescription, f.length(), f.lastModified(), profile);
+    }
+
+    // Writing
+
+    static void write(File file, CacheSnapshot c, Map<String, Long> stamps, Map<String, ProfileEntry> profiles) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(TABLES.length);
+            for (String t : TABLES) {
+                writeString(out, t);
+                Long s = stamps.get(t);
+                out.writeLong(s == null ? NO_STAMP : s);
+            }
+
+            out.writeInt(c.getAllZones().size());
+            for (Zone z : c.getAllZones()) {
+                writeString(out, z.getZoneId());
+                writeString(out, z.getDescription());
+                writeString(out, z.getParentZoneId());
+            }
+            out.writeInt(c.getAllUsers().size());
+            for (User u : c.getAllUsers()) {
+                writeString(out, u.getUserId());
+                writeString(out, u.getIdNumber());
+                writeString(out, u.getFirstName());
+                writeString(out, u.getLastName());
+                writeString(out, u.getGender());
+            }
+            out.writeInt(c.getAllBadges().size());
+            for (Badge b : c.getAllBadges()) {
+                writeString(out, b.getBadgeId());
+                writeString(out, b.getUserId());
+                out.writeLong(b.getExpirationDate() == null ? Long.MIN_VALUE : b.getExpirationDate().toEpochDay());
+                out.writeBoolean(b.isActive());
+                writeString(out, b.getLastUpdateTime() == null ? null : b.getLastUpdateTime().toString());
+                writeString(out, b.getCurrentZoneId());
+            }
+            out.writeInt(c.getAllReaders().size());
+            for (Reader r : c.getAllReaders()) {
+                writeString(out, r.getReaderId());
+                writeString(out, r.getResourceId());
+                out.writeInt(r.getUiX());
+                out.writeInt(r.getUiY());
+            }
+            out.writeInt(c.getAllResources().size());
+            for (Resource r : c.getAllResources()) {
+                writeString(out, r.getResourceId());
+                writeString(out, r.getReaderId());
+                writeString(out, r.getName());
+                writeString(out, r.getResourceType());
+                writeString(out, r.getFromZoneId());
+                writeString(out, r.getToZoneId());
+                out.writeBoolean(r.isControlled());
+            }
+            out.writeInt(c.getAllGroupNames().size());
+            for (String name : c.getAllGroupNames()) {
+                ResourceGroup g = c.findGroup(name).orElse(null);
+                writeString(out, name);
+                out.writeInt(g == null ? 0 : g.getSecurityLevel());
+                writeString(out, g == null ? null : g.getDescription());
+            }
+            out.writeInt(profiles.size());
+            for (ProfileEntry e : profiles.values()) {
+                writeString(out, e.profile.getProfileName());
+                writeString(out, e.path);
+                writeString(out, e.tableDescription);
+                out.writeLong(e.fileSize);
+                out.writeLong(e.fileModified);
+                writeString(out, e.profile.getDescription());
+                out.writeInt(e.profile.getRights().size());
+                for (AccessRight r : e.profile.getRights()) {
+                    writeString(out, r.getGroupName());
+                    writeString(out, r.getTimeRuleText());
+                }
+            }
+            writeLists(out, c.getGroupResources());
+            Map<String, List<String>> bp = new HashMap<>();
+            for (Badge b : c.getAllBadges()) {
+                List<String> l = c.getProfilesForBadge(b.getBadgeId());
+                if (!l.isEmpty()) bp.put(b.getBadgeId(), l);
+            }
+            writeLists(out, bp);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeLists(DataOutputStream out, Map<String, List<String>> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, List<String>> e : map.entrySet()) {
+            writeString(out, e.getKey());
+            out.writeInt(e.getValue().size());
+            for (String v : e.getValue()) writeString(out, v);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    // Reading
+
+    /** Maps and decodes the file; returns null if it is missing or unreadable. */
+    static WarmSnapshot read(File file) {
+        if (!file.exists()) return null;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return decode(buf);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable cache snapshot " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private static WarmSnapshot decode(ByteBuffer in) {
+        if (in.getInt() != MAGIC) throw new IllegalArgumentException("bad magic");
+        WarmSnapshot w = new WarmSnapshot();
+        for (int n = in.getInt(); n > 0; n--) w.stamps.put(readString(in), in.getLong());
+
+        for (int n = in.getInt(); n > 0; n--) {
+            Zone z = new Zone();
+            z.setZoneId(readString(in));
+            z.setDescription(readString(in));
+            z.setParentZoneId(readString(in));
+            w.zones.put(z.getZoneId(), z);
+        }
+        for (int n = in.getInt(); n > 0; n--) {
+            User u = new User();
+            u.setUserId(readString(in));
+            u.setIdNumber(readString(in));
+            u.setFirstName(readString(in));
+            u.setLastName(readString(in));
+            u.setGender(readString(in));
+            w.users.put(u.getUserId(), u);
+        }
+        for (int n = in.getInt(); n > 0; n--) {
+            Badge b = new Badge();
+            b.setBadgeId(readString(in));
+            b.setUserId(readString(in));
+            long exp = in.getLong();
+            b.setExpirationDate(exp == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(exp));
+            b.setActive(in.get() != 0);
+            String upd = readString(in);
+            b.setLastUpdateTime(upd == null ? null : LocalDateTime.parse(upd));
+            b.setCurrentZoneId(readString(in));
+            b.setRequiresUpdate(false);
+            w.badges.put(b.getBadgeId(), b);
+        }
+        for (int n = in.getInt(); n > 0; n--) {
+            Reader r = new Reader();
+            r.setReaderId(readString(in));
+            r.setResourceId(readString(in));
+            r.setUiX(in.getInt());
+            r.setUiY(in.getInt());
+            w.readers.put(r.getReaderId(), r);
+        }
+        for (int n = in.getInt(); n > 0; n--) {
+            Resource r = new Resource();
+            r.setResourceId(readString(in));
+            r.setReaderId(readString(in));
+            r.setName(readString(in));
+            r.setResourceType(readString(in));
+            r.setFromZoneId(readString(in));
+            r.setToZoneId(readString(in));
+            r.setControlled(in.get() != 0);
+            w.resources.put(r.getResourceId(), r);
+        }
+        for (int n = in.getInt(); n > 0; n--) {
+            ResourceGroup g = new ResourceGroup();
+            g.setGroupName(readString(in));
+            g.setSecurityLevel(in.getInt());
+            g.setDescription(readString(in));
+            w.groups.put(g.getGroupName(), g);
+        }
+        for (int n = in.getInt(); n > 0; n--) {
+            Profile p = new Profile(readString(in));
+            String path = readString(in);
+            String tableDesc = readString(in);
+            long size = in.getLong();
+            long modified = in.getLong();
+            p.setDescription(readString(in));
+            for (int r = in.getInt(); r > 0; r--) {
+                String group = readString(in);
+                String rule = readString(in);
+                try {
+                    p.addAccessRight(new AccessRight(group, rule));
+                } catch (IllegalArgumentException ignored) { }
+            }
+            w.profiles.put(p.getProfileName(), new ProfileEntry(path, tableDesc, size, modified, p));
+        }
+        readLists(in, w.groupResources);
+        readLists(in, w.badgeProfiles);
+        return w;
+    }
+
+    private static void readLists(ByteBuffer in, Map<String, List<String>> map) {
+        for (int n = in.getInt(); n > 0; n--) {
+            String key = readString(in);
+            int size = in.getInt();
+            List<String> l = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) l.add(readString(in));
+            map.put(key, l);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int len = in.getInt();
+        if (len < 0) return null;
+        byte[] b = new byte[len];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,260 @@
+package com.bigcomp.accesscontrol.log;
+
+import com.bigcomp.accesscontrol.model.AccessLog;
+import com.bigcomp.accesscontrol.util.BoundedRingBuffer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands access events from the swipe path to a dedicated consumer thread that runs the
+ * persistence sinks (DB, CSV, UI listeners), so a swipe returns as soon as it is decided.
+ * Events sit in a bounded lock-free ring; what happens when it is full is set by {@link FullPolicy}.
+ */
+public class AccessLogPipeline {
+    public enum FullPolicy {
+        /** Producer waits for the consumer to free a slot */
+        BLOCK,
+        /** Oldest queued event is discarded to make room */
+        DROP_OLDEST,
+        /** Event is appended to a spill file and replayed once the ring drains */
+        SPILL
+    }
+
+    /** Receives every event on the consumer thread, in publication order. */
+    public interface Sink {
+        void accept(AccessLog log);
+
+        /** Called when the ring runs empty, so sinks can flush buffered work. */
+        default void flush() {}
+
+        /** Called once after the last event when the pipeline shuts down. */
+        default void close() {}
+    }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final BoundedRingBuffer<AccessLog> ring;
+    private final FullPolicy policy;
+    private final File spillFile;
+    private final Object spillLock = new Object();
+    private final List<Sink> sinks = new CopyOnWriteArrayList<>();
+    private volatile Thread consumer;
+    private volatile boolean running;
+    private volatile boolean spillPending;
+
+    // Metrics
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private volatile int maxDepth;
+
+    public AccessLogPipeline(int capacity, FullPolicy policy, File spillFile) {
+        if (policy == FullPolicy.SPILL && spillFile == null) throw new IllegalArgumentException("SPILL policy needs a spill file");
+        this.ring = new BoundedRingBuffer<>(capacity);
+        this.policy = policy == null ? FullPolicy.BLOCK : policy;
+        this.spillFile = spillFile;
+        // Events left over from a previous run are replayed first
+        this.spillPending = spillFile != null && (spillFile.length() > 0 || new File(spillFile.getPath() + ".replay").exists());
+    }
+
+    public void addSink(Sink sink) { sinks.add(sink); }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        Thread t = new Thread(this::consume, "access-log-pipeline");
+        t.setDaemon(true);
+        consumer = t;
+        t.start();
+    }
+
+    /** Stops the consumer after it has drained everything already published. */
+    public synchronized void close() {
+        if (!running) return;
+        running = false;
+        Thread t = consumer;
+        LockSupport.unpark(t);
+        try {
+            t.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Queues an event for the sinks. Never touches the DB or disk except under the SPILL policy. */
+    public void publish(AccessLog log) {
+        published.incrementAndGet();
+        if (!ring.offer(log)) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    while (!ring.offer(log)) {
+                        if (ring.poll() != null) dropped.incrementAndGet();
+                    }
+                    break;
+                case SPILL:
+                    spill(log);
+                    break;
+                default:
+                    while (!ring.offer(log)) {
+                        LockSupport.unpark(consumer);
+                        LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    }
+            }
+        }
+        int depth = ring.size();
+        if (depth > maxDepth) maxDepth = depth;
+        LockSupport.unpark(consumer);
+    }
+
+    private void consume() {
+        while (true) {
+            AccessLog log = ring.poll();
+            if (log != null) {
+                deliver(log);
+                continue;
+            }
+            if (spillPending) {
+                replaySpill();
+                continue;
+            }
+            flushSinks();
+            if (!running && ring.size() == 0) break;
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        for (Sink s : sinks) {
+            try {
+                s.close();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void deliver(AccessLog log) {
+        for (Sink s : sinks) {
+            try {
+                s.accept(log);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        processed.incrementAndGet();
+    }
+
+    private void flushSinks() {
+        for (Sink s : sinks) {
+            try {
+                s.flush();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Spill file: one tab-separated event per line, see encode/decode
+
+    private void spill(AccessLog log) {
+        synchronized (spillLock) {
+            spillFile.getParentFile().mkdirs();
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(spillFile, true), StandardCharsets.UTF_8)) {
+                w.write(encode(log));
+                w.write('\n');
+                spilled.incrementAndGet();
+                spillPending = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    private void replaySpill() {
+        File replay = new File(spillFile.getPath() + ".replay");
+        synchronized (spillLock) {
+            spillPending = false;
+            if (!replay.exists() && !spillFile.renameTo(replay)) return;
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(replay), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                AccessLog log = decode(line);
+                if (log != null) deliver(log);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        replay.delete();
+        synchronized (spillLock) {
+            if (spillFile.length() > 0) spillPending = true;
+        }
+    }
+
+    /** One event as a line of the spill format, without the newline. */
+    public static String encode(AccessLog l) {
+        return String.join("\t", String.valueOf(l.getTimestamp()), esc(l.getBadgeId()), esc(l.getReaderId()),
+                esc(l.getResourceId()), esc(l.getUserId()), esc(l.getResult()), esc(l.getMessage()),
+                esc(l.getFromZoneId()), esc(l.getToZoneId()), esc(l.getGroupName()));
+    }
+
+    /** Parses a line written by {@link #encode}; null if it is damaged. */
+    public static AccessLog decode(String line) {
+        String[] f = line.split("\t", -1);
+        if (f.length < 9) return null;
+        AccessLog l = new AccessLog();
+        try {
+            l.setTimestamp(LocalDateTime.parse(f[0]));
+        } catch (RuntimeException e) {
+            return null;
+        }
+        l.setBadgeId(unesc(f[1]));
+        l.setReaderId(unesc(f[2]));
+        l.setResourceId(unesc(f[3]));
+        l.setUserId(unesc(f[4]));
+        l.setResult(unesc(f[5]));
+        l.setMessage(unesc(f[6]));
+        l.setFromZoneId(unesc(f[7]));
+        l.setToZoneId(unesc(f[8]));
+        if (f.length > 9) l.setGroupName(unesc(f[9])); // lines spilled before the group was recorded have 9 fields
+        return l;
+    }
+
+    private static String esc(String s) {
+        if (s == null) return "\\0";
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unesc(String s) {
+        if ("\\0".equals(s)) return null;
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Metrics
+    public int getDepth() { return ring.size(); }
+    public int getMaxDepth() { return maxDepth; }
+    public int getCapacity() { return ring.capacity(); }
+    public long getPublished() { return published.get(); }
+    public long getProcessed() { return processed.get(); }
+    public long getDropped() { return dropped.get(); }
+    public long getSpilled() { return spilled.get(); }
+    public FullPolicy getPolicy() { return policy; }
+}
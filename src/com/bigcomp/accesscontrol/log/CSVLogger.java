@@ -1,66 +1,339 @@
 package com.bigcomp.accesscontrol.log;
 
 import com.bigcomp.accesscontrol.model.AccessLog;
+import com.bigcomp.accesscontrol.util.AppConfig;
+
 import java.io.*;
-import java.nio.file.*;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Writes access events to one CSV file per day (logs/YYYY/MM_MONTH/YYYY-MM-DD.csv).
+ * The current day file stays open in a buffered writer; it is closed at midnight, or when the
+ * first event of a new day arrives before that. An event of another day (e.g. replayed from the
+ * pipeline's spill file) is appended to its own day file, which is kept open only until the next
+ * flush; months with an open file are not archived meanwhile. When buffered rows reach the disk is set by {@link Durability}.
+ * Each record is also counted in the day's {@link LogRollup}, saved next to the CSV.
+ * A finished day file gets its {@link LogIndex} sidecar built in the background, and day files
+ * of months older than log.archive.keepMonths are compacted into {@link LogArchive}s.
+ */
 public class CSVLogger {
+    public enum Durability {
+        /** Flush after every record */
+        RECORD,
+        /** Flush from a background timer every log.csv.flushMs */
+        INTERVAL,
+        /** Flush when the caller says a batch is done (the log pipeline runs empty) */
+        BATCH
+    }
+
+    static final String HEADER = "Date,DayOfWeek,Time,BadgeCode,ReaderCode,ResourceId,UserId,UserName,Result";
+
     private static final DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-    private static final DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm:ss");
     private static final DateTimeFormatter dayFormatter = DateTimeFormatter.ofPattern("EEEE");
     private String baseDir = "logs";
+    private final Durability durability;
+    private final boolean archiveEnabled = Boolean.parseBoolean(AppConfig.getString("log.archive.enabled", "true"));
+    private final int keepMonths = Math.max(1, AppConfig.getInt("log.archive.keepMonths", 1));
+    private final long rollupSaveMs = AppConfig.getLong("log.rollup.saveMs", 10000);
+
+    // Open day files, guarded by this
+    private DayFile current;
+    private final Map<LocalDate, DayFile> late = new HashMap<>(); // days other than the current one
+    private final Set<YearMonth> compacting = new HashSet<>(); // no file of these months may be opened
+    private final StringBuilder record = new StringBuilder(128);
+    // Interval flushes and the midnight rollover
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "csv-log-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    // Indexes finished day files and archives closed months off the logging thread
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "log-maintenance");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** A day CSV open for appending, with its rollup. */
+    private static final class DayFile {
+        final LocalDate date;
+        final File file;
+        final String prefix; // "2025-12-24,Wednesday,"
+        final Writer out;
+        final LogRollup rollup;
+        boolean dirty;
+        boolean rollupDirty;
+        long rollupSavedAt = System.currentTimeMillis();
+
+        DayFile(LocalDate date, File file, String prefix, Writer out, LogRollup rollup) {
+            this.date = date;
+            this.file = file;
+            this.prefix = prefix;
+            this.out = out;
+            this.rollup = rollup;
+        }
+    }
 
     public CSVLogger() {
+        this(parseDurability(AppConfig.getString("log.csv.durability", "BATCH")), AppConfig.getLong("log.csv.flushMs", 1000));
+    }
+
+    public CSVLogger(Durability durability, long flushMs) {
+        this.durability = durability;
         new File(baseDir).mkdirs();
+        if (durability == Durability.INTERVAL) {
+            long period = Math.max(10, flushMs);
+            timer.scheduleWithFixedDelay(this::flush, period, period, TimeUnit.MILLISECONDS);
+        }
+        scheduleRollover();
+        scheduleCompaction();
     }
 
-    public void logAccess(AccessLog log, String userName) {
+    private static Durability parseDurability(String s) {
+        try {
+            return Durability.valueOf(s.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Durability.BATCH;
+        }
+    }
+
+    public synchronized void logAccess(AccessLog log, String userName) {
+        DayFile day = null;
         try {
             LocalDateTime ts = log.getTimestamp();
             LocalDate date = ts.toLocalDate();
-            int year = date.getYear();
-            int month = date.getMonthValue();
-            String monthName = date.getMonth().toString();
-            int day = date.getDayOfMonth();
-            String dayOfWeek = ts.format(dayFormatter);
-
-            // Directory: logs/YYYY/MM_MonthName/
-            String dirPath = String.format("%s/%d/%02d_%s", baseDir, year, month, monthName);
-            new File(dirPath).mkdirs();
-
-            // File: YYYY-MM-DD.csv
-            String fileName = String.format("%s/%s.csv", dirPath, dateFormatter.format(date));
-            File file = new File(fileName);
-            boolean isNewFile = !file.exists();
-
-            // CSV record format
-            String dateStr = dateFormatter.format(date);
-            String timeStr = timeFormatter.format(ts);
-            String record = String.format("%s,%s,%s,%s,%s,%s,%s,%s,%s",
-                    dateStr,           // 2025-12-24
-                    dayOfWeek,         // Wednesday
-                    timeStr,           // 14:36:49
-                    log.getBadgeId(),  // BX76Z541
-                    log.getReaderId(), // BR59KA87
-                    log.getResourceId(), // R7U39PL2
-                    log.getUserId(),   // 83746028 (badge owner ID)
-                    userName,          // John:Doe
-                    log.getResult()    // GRANTED / DENIED
-            );
-
-            // Append to file
-            try (FileWriter fw = new FileWriter(file, true)) {
-                if (isNewFile) {
-                    fw.write("Date,DayOfWeek,Time,BadgeCode,ReaderCode,ResourceId,UserId,UserName,Result\n");
+            if (current != null && date.equals(current.date)) {
+                day = current;
+            } else if (date.equals(LocalDate.now())) {
+                closeDay();
+                day = current = openDay(date);
+            } else {
+                awaitCompaction(YearMonth.from(date));
+                day = late.get(date);
+                if (day == null) {
+                    day = openDay(date);
+                    late.put(date, day);
                 }
-                fw.write(record + "\n");
             }
+
+            StringBuilder sb = record;
+            sb.setLength(0);
+            sb.append(day.prefix);
+            appendTwoDigits(sb, ts.getHour()).append(':');
+            appendTwoDigits(sb, ts.getMinute()).append(':');
+            appendTwoDigits(sb, ts.getSecond()).append(',');
+            // Values are quoted per RFC 4180 when needed, e.g. a user name with a comma
+            CsvParser.appendField(sb, log.getBadgeId()).append(',');     // BX76Z541
+            CsvParser.appendField(sb, log.getReaderId()).append(',');    // BR59KA87
+            CsvParser.appendField(sb, log.getResourceId()).append(',');  // R7U39PL2
+            CsvParser.appendField(sb, log.getUserId()).append(',');      // 83746028 (badge owner ID)
+            CsvParser.appendField(sb, userName).append(',');             // John:Doe
+            CsvParser.appendField(sb, log.getResult()).append('\n');     // GRANTED / DENIED
+            day.out.append(sb);
+            day.dirty = true;
+            if (day.rollup != null) {
+                day.rollup.add(ts.toLocalTime().toSecondOfDay(), log.getResult(), log.getBadgeId(),
+                        log.getResourceId(), log.getReaderId(), log.getGroupName());
+                day.rollupDirty = true;
+            }
+            if (durability == Durability.RECORD) flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (day == current) closeDay();
+            else if (day != null) closeLate();
+        }
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder sb, int v) {
+        if (v < 10) sb.append('0');
+        return sb.append(v);
+    }
+
+    /** Waits while the month is being archived, so its day files are not written meanwhile. */
+    private void awaitCompaction(YearMonth month) throws IOException {
+        try {
+            while (compacting.contains(month)) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while " + month + " logs were archived");
+        }
+    }
+
+    /** Opens (or creates) the file for the given date. */
+    private DayFile openDay(LocalDate date) throws IOException {
+        // Directory: logs/YYYY/MM_MonthName/
+        File dir = new File(baseDir, date.getYear() + File.separator
+                + (date.getMonthValue() < 10 ? "0" : "") + date.getMonthValue() + "_" + date.getMonth());
+        dir.mkdirs();
+        String dateStr = dateFormatter.format(date);
+        File file = new File(dir, dateStr + ".csv");
+        boolean isNewFile = !file.exists() || file.length() == 0;
+        LogRollup rollup;
+        try {
+            // picks up rows already in the file, e.g. after a restart; read before the file is
+            // created, so a day already archived keeps its counts
+            rollup = LogRollup.forFile(file);
         } catch (IOException e) {
             e.printStackTrace();
+            rollup = null;
+        }
+        Writer out = new BufferedWriter(new FileWriter(file, true), 1 << 16);
+        DayFile day = new DayFile(date, file, dateStr + "," + dayFormatter.format(date) + ",", out, rollup);
+        if (isNewFile) {
+            out.write(HEADER);
+            out.write('\n');
+            day.dirty = true;
         }
+        return day;
+    }
+
+    private void closeDay() {
+        if (current == null) return;
+        close(current);
+        current = null;
+        scheduleCompaction();
+    }
+
+    private void closeLate() {
+        if (late.isEmpty()) return;
+        for (DayFile day : late.values()) close(day);
+        late.clear();
+        scheduleCompaction();
+    }
+
+    /** Closes the file, saves its rollup and queues its index. */
+    private void close(DayFile day) {
+        try {
+            day.out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        day.dirty = false;
+        saveRollup(day);
+        if (maintenance.isShutdown()) return;
+        maintenance.execute(() -> {
+            try {
+                LogIndex.forFile(day.file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /** Closes the current day file at the next local midnight, and every midnight after that. */
+    private void scheduleRollover() {
+        if (timer.isShutdown()) return;
+        LocalDateTime now = LocalDateTime.now();
+        long delay = Duration.between(now, now.toLocalDate().plusDays(1).atStartOfDay()).toMillis();
+        timer.schedule(() -> {
+            synchronized (CSVLogger.this) {
+                if (current != null && current.date.isBefore(LocalDate.now())) closeDay();
+            }
+            scheduleRollover();
+        }, Math.max(1, delay), TimeUnit.MILLISECONDS);
+    }
+
+    /** Queues archiving of months older than the last log.archive.keepMonths into {@link LogArchive}s. */
+    private void scheduleCompaction() {
+        if (!archiveEnabled || maintenance.isShutdown()) return;
+        maintenance.execute(() -> {
+            YearMonth firstOpen = YearMonth.now().minusMonths(keepMonths - 1);
+            int n = LogArchive.compactClosedMonths(new File(baseDir), firstOpen, monthGuard);
+            if (n > 0) System.out.println("Archived " + n + " month(s) of CSV logs");
+        });
+    }
+
+    /** Holds back the months of the open day files; a late record for a month being archived waits. */
+    private final LogArchive.MonthGuard monthGuard = new LogArchive.MonthGuard() {
+        @Override
+        public boolean acquire(YearMonth month) {
+            synchronized (CSVLogger.this) {
+                if (current != null && YearMonth.from(current.date).equals(month)) return false;
+                for (LocalDate date : late.keySet()) {
+                    if (YearMonth.from(date).equals(month)) return false;
+                }
+                compacting.add(month);
+                return true;
+            }
+        }
+
+        @Override
+        public void release(YearMonth month) {
+            synchronized (CSVLogger.this) {
+                compacting.remove(month);
+                CSVLogger.this.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * Pushes buffered records to the day file, and the rollup if log.rollup.saveMs has passed.
+     * Late day files are closed.
+     */
+    public synchronized void flush() {
+        closeLate();
+        if (current == null) return;
+        try {
+            if (current.dirty) {
+                current.out.flush();
+                current.dirty = false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (current.rollupDirty && System.currentTimeMillis() - current.rollupSavedAt >= rollupSaveMs) saveRollup(current);
+    }
+
+    /** Saves the rollup as covering the whole day file; every record must have been written out. */
+    private void saveRollup(DayFile day) {
+        if (day.rollup == null || !day.rollupDirty) return;
+        try {
+            day.rollup.save(day.file.length());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        day.rollupDirty = false;
+        day.rollupSavedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Rollup of a day CSV. For a day being written it is a copy of the live counts, which
+     * include the group of every access; other days are read from their sidecars.
+     */
+    public LogRollup rollupFor(File csv) throws IOException {
+        synchronized (this) {
+            File file = csv.getAbsoluteFile();
+            if (current != null && current.rollup != null && file.equals(current.file.getAbsoluteFile())) return current.rollup.copy();
+            for (DayFile day : late.values()) {
+                if (day.rollup != null && file.equals(day.file.getAbsoluteFile())) return day.rollup.copy();
+            }
+        }
+        return LogRollup.forFile(csv);
+    }
+
+    /** Called at the end of a batch of records; flushes only under {@link Durability#BATCH}. */
+    public void endBatch() {
+        if (durability == Durability.BATCH) flush();
+    }
+
+    /** Flushes and closes the day files and stops the timer. */
+    public synchronized void close() {
+        timer.shutdown();
+        closeLate();
+        closeDay();
+        maintenance.shutdown();
     }
 
+    public Durability getDurability() { return durability; }
     public String getBaseDir() { return baseDir; }
 }
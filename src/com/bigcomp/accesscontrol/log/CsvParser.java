@@ -0,0 +1,204 @@
+package com.bigcomp.accesscontrol.log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * RFC 4180 parser working directly on bytes, typically a memory-mapped log file.
+ * Fields may be quoted, with "" standing for a quote inside them, and quoted fields may hold
+ * commas and line breaks. Records end with LF or CRLF. The parser only records where each
+ * field starts and ends in a reused {@link Record}; strings are built when a field is asked for.
+ */
+public final class CsvParser {
+    private static final byte QUOTE = '"';
+    private static final byte COMMA = ',';
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+
+    private CsvParser() {}
+
+    /** Receives each record; return false to stop parsing. The record is reused for the next one. */
+    public interface Handler {
+        boolean record(Record r);
+    }
+
+    /**
+     * Parses the records in buf between from and to. A record cut off at {@code to} is left
+     * unparsed unless {@code last} says no more bytes follow.
+     *
+     * @return the position just after the last record handed out
+     */
+    public static int parse(ByteBuffer buf, int from, int to, boolean last, Charset charset, Handler handler) {
+        Record r = new Record(buf, charset);
+        int pos = from;
+        while (pos < to) {
+            r.clear(pos);
+            int i = pos;
+            while (true) {
+                int fs = i;
+                int fe;
+                boolean quoted = false;
+                if (i < to && buf.get(i) == QUOTE) {
+                    quoted = true;
+                    fs = ++i;
+                    while (true) {
+                        if (i >= to) {
+                            if (!last) return pos;
+                            break;
+                        }
+                        if (buf.get(i) == QUOTE) {
+                            if (i + 1 < to && buf.get(i + 1) == QUOTE) {
+                                i += 2;
+                                continue;
+                            }
+                            if (i + 1 >= to && !last) return pos;
+                            break;
+                        }
+                        i++;
+                    }
+                    fe = Math.min(i, to);
+                    // anything between the closing quote and the delimiter is dropped
+                    while (i < to && buf.get(i) != COMMA && buf.get(i) != LF) i++;
+                } else {
+                    while (i < to && buf.get(i) != COMMA && buf.get(i) != LF) i++;
+                    fe = i;
+                }
+                if (i >= to) {
+                    if (!last) return pos;
+                    if (!quoted && fe > fs && buf.get(fe - 1) == CR) fe--;
+                    r.add(fs, fe, quoted);
+                    r.end = to;
+                    if (!r.isBlank()) handler.record(r);
+                    return to;
+                }
+                byte d = buf.get(i);
+                if (d == LF && !quoted && fe > fs && buf.get(fe - 1) == CR) fe--;
+                r.add(fs, fe, quoted);
+                i++;
+                if (d == LF) {
+                    r.end = i;
+                    pos = i;
+                    if (!r.isBlank() && !handler.record(r)) return pos;
+                    break;
+                }
+            }
+        }
+        return pos;
+    }
+
+    /** Convenience for a single line or small byte array: the fields of its first record. */
+    public static String[] split(byte[] bytes, int offset, int length, Charset charset) {
+        String[][] out = new String[1][];
+        parse(ByteBuffer.wrap(bytes, 0, offset + length), offset, offset + length, true, charset, r -> {
+            out[0] = r.toArray();
+            return false;
+        });
+        return out[0] == null ? new String[0] : out[0];
+    }
+
+    /** Writes the value as one CSV field, quoting it only when it holds a delimiter, quote or line break. */
+    public static StringBuilder appendField(StringBuilder sb, String value) {
+        if (value == null) return sb.append("null");
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) return sb.append(value);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') sb.append('"');
+            sb.append(c);
+        }
+        return sb.append('"');
+    }
+
+    /** One parsed record: field boundaries into the source buffer. */
+    public static final class Record implements LogRow {
+        private final ByteBuffer view;
+        private final Charset charset;
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private boolean[] quoted = new boolean[16];
+        private int size;
+        private int start;
+        private int end;
+        private byte[] scratch = new byte[256];
+
+        Record(ByteBuffer buf, Charset charset) {
+            this.view = buf.duplicate();
+            this.charset = charset;
+        }
+
+        void clear(int start) {
+            this.start = start;
+            this.size = 0;
+        }
+
+        void add(int from, int to, boolean q) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                quoted = Arrays.copyOf(quoted, size * 2);
+            }
+            starts[size] = from;
+            ends[size] = to;
+            quoted[size] = q;
+            size++;
+        }
+
+        boolean isBlank() {
+            return size == 1 && !quoted[0] && starts[0] == ends[0];
+        }
+
+        @Override
+        public int size() { return size; }
+
+        /** Buffer position of the first byte of the record */
+        public int start() { return start; }
+
+        /** The start position; a file offset when the whole file is mapped from 0 */
+        @Override
+        public long ref() { return start; }
+
+        /** Buffer position just after the record, line break included */
+        public int end() { return end; }
+
+        @Override
+        public String get(int field) {
+            if (field >= size) return null;
+            int from = starts[field];
+            int len = ends[field] - from;
+            if (len > scratch.length) scratch = new byte[Math.max(len, scratch.length * 2)];
+            view.limit(ends[field]).position(from);
+            view.get(scratch, 0, len);
+            view.clear();
+            if (quoted[field]) len = unescape(scratch, len);
+            return new String(scratch, 0, len, charset);
+        }
+
+        /** True if the field holds exactly the given ASCII text; no string is built. */
+        public boolean equalsAscii(int field, String ascii) {
+            if (field >= size) return false;
+            int from = starts[field];
+            int len = ends[field] - from;
+            if (quoted[field]) return ascii.equals(get(field));
+            if (len != ascii.length()) return false;
+            for (int i = 0; i < len; i++) {
+                if (view.get(from + i) != (byte) ascii.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        private static int unescape(byte[] b, int len) {
+            int w = 0;
+            for (int r = 0; r < len; r++) {
+                b[w++] = b[r];
+                if (b[r] == QUOTE && r + 1 < len && b[r + 1] == QUOTE) r++;
+            }
+            return w;
+        }
+    }
+}
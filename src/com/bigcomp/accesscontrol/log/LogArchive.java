@@ -0,0 +1,598 @@
+package com.bigcomp.accesscontrol.log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Columnar archive of one closed month of access logs (logs/YYYY/MM_MONTH/YYYY-MM.archive).
+ * Rows are stored in blocks of {@link #BLOCK_ROWS}. Inside a block every column is stored on
+ * its own: timestamps as zigzag varint deltas, badge/reader/resource/user id/user name as
+ * varint ids into per-column dictionaries, and the result as a bit-packed id (one bit while
+ * there are only GRANTED and DENIED). Each block is deflated separately. The dictionaries and
+ * a directory of blocks (offset, sizes, row count, time range) sit in a footer, so a reader
+ * can seek straight to the blocks it needs.
+ * <p>
+ * {@link #compactClosedMonths} turns the day CSVs of months that are no longer written into
+ * archives and deletes the CSVs and their index sidecars; their {@link LogRollup}s are kept.
+ * Rows whose date or time cannot be read are kept as CSV lines in YYYY-MM.rejected.
+ */
+public final class LogArchive {
+    public static final String EXTENSION = ".archive";
+    public static final String REJECTED_EXTENSION = ".rejected";
+
+    private static final int MAGIC = 0x42434C41; // "BCLA"
+    private static final int VERSION = 1;
+    private static final int BLOCK_ROWS = 8192;
+    // badge, reader, resource, user id, user name, result: CSV columns 3..8
+    private static final int FIRST_DICT_COLUMN = 3;
+    private static final int DICT_COLUMNS = 6;
+    private static final int RESULT = DICT_COLUMNS - 1;
+    private static final DateTimeFormatter dayFormatter = DateTimeFormatter.ofPattern("EEEE");
+
+    private LogArchive() {}
+
+    public static boolean isArchive(File f) {
+        return f.getName().endsWith(EXTENSION);
+    }
+
+    // Compaction
+
+    /** Lets the writer of the day CSVs keep a month out of compaction while it has one of its files open. */
+    public interface MonthGuard {
+        /** False to skip the month this time; otherwise no file of the month is opened until {@link #release}. */
+        boolean acquire(YearMonth month);
+
+        void release(YearMonth month);
+    }
+
+    /**
+     * Archives every month under baseDir that is before firstOpenMonth and still has day CSVs,
+     * except the months the guard holds back. Rows of an existing archive for the month are kept.
+     * Returns the number of months compacted.
+     */
+    public static int compactClosedMonths(File baseDir, YearMonth firstOpenMonth, MonthGuard guard) {
+        int compacted = 0;
+        File[] years = baseDir.listFiles(File::isDirectory);
+        if (years == null) return 0;
+        for (File yearDir : years) {
+            File[] months = yearDir.listFiles(File::isDirectory);
+            if (months == null) continue;
+            for (File monthDir : months) {
+                YearMonth ym;
+                try {
+                    ym = YearMonth.of(Integer.parseInt(yearDir.getName()), Integer.parseInt(monthDir.getName().substring(0, 2)));
+                } catch (RuntimeException e) {
+                    continue;
+                }
+                if (!ym.isBefore(firstOpenMonth)) continue;
+                if (!guard.acquire(ym)) continue;
+                try {
+                    File[] csvs = monthDir.listFiles((d, n) -> n.endsWith(".csv"));
+                    if (csvs == null || csvs.length == 0) continue;
+                    compactMonth(monthDir, ym, csvs);
+                    compacted++;
+                } catch (IOException | UncheckedIOException e) {
+                    e.printStackTrace();
+                    new File(archiveFor(monthDir, ym).getPath() + ".tmp").delete();
+                    new File(rejectedFor(monthDir, ym).getPath() + ".tmp").delete();
+                } finally {
+                    guard.release(ym);
+                }
+            }
+        }
+        return compacted;
+    }
+
+    public static File archiveFor(File monthDir, YearMonth ym) {
+        return new File(monthDir, ym + EXTENSION);
+    }
+
+    public static File rejectedFor(File monthDir, YearMonth ym) {
+        return new File(monthDir, ym + REJECTED_EXTENSION);
+    }
+
+    private static void compactMonth(File monthDir, YearMonth ym, File[] csvs) throws IOException {
+        Arrays.sort(csvs, Comparator.comparing(File::getName));
+        // rollups stay next to the archive; bring them up to date while the CSVs are still there
+        for (File csv : csvs) LogRollup.forFile(csv);
+        File archive = archiveFor(monthDir, ym);
+        File tmp = new File(archive.getPath() + ".tmp");
+        long rows;
+        List<String> rejected = new ArrayList<>();
+        try (ArchiveWriter w = new ArchiveWriter(tmp, ym)) {
+            LogScanner.RowHandler add = r -> {
+                if (!w.add(r)) rejected.add(toCsvLine(r));
+                return true;
+            };
+            if (archive.exists()) LogScanner.forEachRow(archive, LogScanner.RowFilter.ALL, add, () -> false);
+            for (File csv : csvs) LogScanner.forEachRow(csv, LogScanner.RowFilter.ALL, add, () -> false);
+            rows = w.rows();
+        } // closing syncs the file
+        // the day CSVs are deleted below, so the archive must read back whole before it replaces anything
+        long readBack = countRows(tmp);
+        if (readBack != rows) throw new IOException("Archive " + tmp + " reads back " + readBack + " of " + rows + " rows");
+        if (!rejected.isEmpty()) {
+            saveRejected(rejectedFor(monthDir, ym), rejected);
+            System.err.println("Archive " + archive + ": " + rejected.size() + " unreadable rows kept in " + rejectedFor(monthDir, ym));
+        }
+        syncDirectory(monthDir);
+        Files.move(tmp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(monthDir);
+        for (File csv : csvs) {
+            LogIndex.sidecarFor(csv).delete();
+            csv.delete();
+        }
+    }
+
+    private static String toCsvLine(LogRow r) {
+        StringBuilder sb = new StringBuilder(128);
+        for (int i = 0; i < r.size(); i++) {
+            if (i > 0) sb.append(',');
+            CsvParser.appendField(sb, r.get(i));
+        }
+        return sb.toString();
+    }
+
+    /** Adds the lines to the month's rejected file, replacing it whole once they are on disk. */
+    private static void saveRejected(File file, List<String> lines) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        if (file.exists()) Files.copy(file.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        else Files.write(tmp.toPath(), List.of(CSVLogger.HEADER), LogScanner.CSV_CHARSET);
+        try (FileOutputStream fos = new FileOutputStream(tmp, true);
+             Writer w = new BufferedWriter(new OutputStreamWriter(fos, LogScanner.CSV_CHARSET))) {
+            for (String line : lines) {
+                w.write(line);
+                w.write('\n');
+            }
+            w.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Decodes every block of a freshly written archive, without keeping it among the cached readers. */
+    private static long countRows(File file) throws IOException {
+        Reader reader = new Reader(file);
+        Cursor cursor = reader.cursor();
+        Inflater inflater = new Inflater();
+        long count = 0;
+        try {
+            for (int b = 0; b < reader.directory.length; b++) {
+                reader.decode(b, cursor, inflater);
+                count += cursor.rows;
+            }
+        } finally {
+            inflater.end();
+        }
+        return count;
+    }
+
+    /** Makes a rename in the directory durable; not supported on every platform, where it is skipped. */
+    private static void syncDirectory(File dir) {
+        try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // e.g. Windows cannot open a directory as a channel
+        }
+    }
+
+    /** Streams rows into blocks; dictionaries grow as new values appear. */
+    private static final class ArchiveWriter implements Closeable {
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final List<Map<String, Integer>> dicts = new ArrayList<>();
+        private final List<List<String>> values = new ArrayList<>();
+        private final List<long[]> directory = new ArrayList<>(); // offset, compressed, raw, rows, minTs, maxTs
+        private long written;
+        private final long[] ts = new long[BLOCK_ROWS];
+        private final int[][] ids = new int[DICT_COLUMNS][BLOCK_ROWS];
+        private int rows;
+        private long totalRows;
+        private String lastDate;
+        private long lastDayEpochSecond;
+
+        ArchiveWriter(File file, YearMonth ym) throws IOException {
+            this.file = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(this.file, 1 << 16));
+            for (int c = 0; c < DICT_COLUMNS; c++) {
+                dicts.add(new HashMap<>());
+                values.add(new ArrayList<>());
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ym.getYear());
+            out.writeInt(ym.getMonthValue());
+            written = 16;
+        }
+
+        /** False if the row was left out because its date or time cannot be read. */
+        boolean add(LogRow r) {
+            if (r.size() < FIRST_DICT_COLUMN + DICT_COLUMNS) return false;
+            long t;
+            try {
+                String date = r.get(0);
+                if (!date.equals(lastDate)) {
+                    lastDayEpochSecond = LocalDate.parse(date).atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+                    lastDate = date;
+                }
+                t = lastDayEpochSecond + secondOfDay(r.get(2));
+            } catch (RuntimeException e) {
+                return false; // unparsable date or time
+            }
+            ts[rows] = t;
+            totalRows++;
+            for (int c = 0; c < DICT_COLUMNS; c++) {
+                String v = r.get(FIRST_DICT_COLUMN + c);
+                Map<String, Integer> d = dicts.get(c);
+                Integer id = d.get(v);
+                if (id == null) {
+                    id = d.size();
+                    d.put(v, id);
+                    values.get(c).add(v);
+                }
+                ids[c][rows] = id;
+            }
+            if (++rows == BLOCK_ROWS) {
+                try {
+                    flushBlock();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return true;
+        }
+
+        private void flushBlock() throws IOException {
+            if (rows == 0) return;
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(rows * 8);
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            writeVarLong(raw, rows);
+            long prev = 0;
+            for (int i = 0; i < rows; i++) {
+                writeVarLong(raw, zigzag(ts[i] - prev));
+                prev = ts[i];
+                min = Math.min(min, ts[i]);
+                max = Math.max(max, ts[i]);
+            }
+            for (int c = 0; c < RESULT; c++) {
+                for (int i = 0; i < rows; i++) writeVarLong(raw, ids[c][i]);
+            }
+            // result ids packed at the fewest bits that hold the dictionary
+            int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(1, dicts.get(RESULT).size() - 1)));
+            raw.write(bits);
+            long acc = 0;
+            int filled = 0;
+            for (int i = 0; i < rows; i++) {
+                acc |= (long) ids[RESULT][i] << filled;
+                filled += bits;
+                while (filled >= 8) {
+                    raw.write((int) (acc & 0xFF));
+                    acc >>>= 8;
+                    filled -= 8;
+                }
+            }
+            if (filled > 0) raw.write((int) (acc & 0xFF));
+
+            byte[] in = raw.toByteArray();
+            deflater.reset();
+            deflater.setInput(in);
+            deflater.finish();
+            ByteArrayOutputStream packed = new ByteArrayOutputStream(in.length / 3 + 64);
+            byte[] buf = new byte[1 << 16];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                packed.write(buf, 0, n);
+            }
+            directory.add(new long[]{written, packed.size(), in.length, rows, min, max});
+            packed.writeTo(out);
+            written += packed.size();
+            rows = 0;
+        }
+
+        /** Rows accepted so far; rows without a parsable date or time are left out. */
+        long rows() {
+            return totalRows;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushBlock();
+                long footer = written;
+                for (int c = 0; c < DICT_COLUMNS; c++) {
+                    List<String> v = values.get(c);
+                    out.writeInt(v.size());
+                    for (String s : v) writeString(out, s);
+                }
+                out.writeInt(directory.size());
+                for (long[] b : directory) {
+                    out.writeLong(b[0]);
+                    out.writeInt((int) b[1]);
+                    out.writeInt((int) b[2]);
+                    out.writeInt((int) b[3]);
+                    out.writeLong(b[4]);
+                    out.writeLong(b[5]);
+                }
+                out.writeLong(footer);
+                out.writeInt(MAGIC);
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+    }
+
+    // Reading
+
+    // Opened archives with their decoded dictionaries, reused by scans and page reads
+    private static final Map<String, Reader> readers = new LinkedHashMap<String, Reader>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Reader> eldest) {
+            return size() > 16;
+        }
+    };
+
+    private static Reader reader(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        synchronized (readers) {
+            Reader r = readers.get(key);
+            if (r != null && r.modified == file.lastModified() && r.length == file.length()) return r;
+        }
+        Reader r = new Reader(file);
+        synchronized (readers) {
+            readers.put(key, r);
+        }
+        return r;
+    }
+
+    /**
+     * Decodes the archive block by block and hands every row passing the filter to the handler.
+     * Returns the number of rows handed out.
+     */
+    static long scan(File file, LogScanner.RowFilter filter, LogScanner.RowHandler handler, BooleanSupplier cancelled) throws IOException {
+        Reader reader = reader(file);
+        Cursor cursor = reader.cursor();
+        Inflater inflater = new Inflater();
+        long count = 0;
+        try {
+            for (int b = 0; b < reader.directory.length; b++) {
+                if (cancelled.getAsBoolean()) break;
+                reader.decode(b, cursor, inflater);
+                for (int i = 0; i < cursor.rows; i++) {
+                    cursor.row = i;
+                    if (!filter.accept(cursor)) continue;
+                    count++;
+                    if (!handler.row(cursor)) return count;
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        return count;
+    }
+
+    /** Hands the rows at the given refs (see {@link LogRow#ref()}) to the handler, in the given order. */
+    static void forEachRef(File file, long[] refs, int from, int to, LogScanner.RefHandler handler) throws IOException {
+        Reader reader = reader(file);
+        Cursor cursor = reader.cursor();
+        Inflater inflater = new Inflater();
+        try {
+            for (int i = from; i < to; i++) {
+                int block = (int) (refs[i] >>> 32);
+                if (block != cursor.block) reader.decode(block, cursor, inflater);
+                cursor.row = (int) refs[i];
+                if (!handler.row(i, cursor)) return;
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** A mapped archive with its dictionaries and block directory. Thread-safe: decoding state lives in cursors. */
+    private static final class Reader {
+        final File file;
+        final long modified;
+        final long length;
+        final ByteBuffer buf;
+        final String[][] dicts = new String[DICT_COLUMNS][];
+        final long[][] directory; // offset, compressed, raw, rows, minTs, maxTs
+
+        Reader(File file) throws IOException {
+            this.file = file;
+            this.modified = file.lastModified();
+            this.length = file.length();
+            MappedByteBuffer mapped;
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (ch.size() > Integer.MAX_VALUE) throw new IOException("Archive too large to map: " + file);
+                mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            buf = mapped;
+            int size = buf.limit();
+            if (size < 28 || buf.getInt(0) != MAGIC || buf.getInt(size - 4) != MAGIC) throw new IOException("Not a log archive: " + file);
+            if (buf.getInt(4) != VERSION) throw new IOException("Unsupported log archive version in " + file);
+
+            ByteBuffer in = buf.duplicate();
+            in.position((int) buf.getLong(size - 12));
+            for (int c = 0; c < DICT_COLUMNS; c++) {
+                dicts[c] = new String[in.getInt()];
+                for (int i = 0; i < dicts[c].length; i++) dicts[c][i] = readString(in);
+            }
+            directory = new long[in.getInt()][];
+            for (int b = 0; b < directory.length; b++) {
+                directory[b] = new long[]{in.getLong(), in.getInt(), in.getInt(), in.getInt(), in.getLong(), in.getLong()};
+            }
+        }
+
+        Cursor cursor() {
+            return new Cursor(dicts);
+        }
+
+        void decode(int block, Cursor cursor, Inflater inflater) throws IOException {
+            long[] b = directory[block];
+            int compressed = (int) b[1];
+            int rawLen = (int) b[2];
+            if (cursor.packed.length < compressed) cursor.packed = new byte[compressed];
+            if (cursor.raw.length < rawLen) cursor.raw = new byte[rawLen];
+            ByteBuffer in = buf.duplicate();
+            in.position((int) b[0]);
+            in.get(cursor.packed, 0, compressed);
+            inflater.reset();
+            inflater.setInput(cursor.packed, 0, compressed);
+            try {
+                if (inflater.inflate(cursor.raw, 0, rawLen) != rawLen) throw new IOException("Truncated block in " + file);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block in " + file, e);
+            }
+            cursor.load(cursor.raw);
+            cursor.block = block;
+        }
+    }
+
+    /** One decoded block, exposed row by row. */
+    private static final class Cursor implements LogRow {
+        private final String[][] dicts;
+        private final long[] ts = new long[BLOCK_ROWS];
+        private final int[][] ids = new int[DICT_COLUMNS][BLOCK_ROWS];
+        byte[] packed = new byte[0];
+        byte[] raw = new byte[0];
+        int block = -1;
+        int rows;
+        int row;
+        // date strings change once a day, so they are cached
+        private long cachedDay = Long.MIN_VALUE;
+        private String cachedDate;
+        private String cachedDayOfWeek;
+
+        Cursor(String[][] dicts) {
+            this.dicts = dicts;
+        }
+
+        void load(byte[] raw) {
+            int[] pos = {0};
+            rows = (int) readVarLong(raw, pos);
+            long prev = 0;
+            for (int i = 0; i < rows; i++) {
+                prev += unzigzag(readVarLong(raw, pos));
+                ts[i] = prev;
+            }
+            for (int c = 0; c < RESULT; c++) {
+                for (int i = 0; i < rows; i++) ids[c][i] = (int) readVarLong(raw, pos);
+            }
+            int bits = raw[pos[0]++];
+            int mask = (1 << bits) - 1;
+            long acc = 0;
+            int filled = 0;
+            for (int i = 0; i < rows; i++) {
+                while (filled < bits) {
+                    acc |= (long) (raw[pos[0]++] & 0xFF) << filled;
+                    filled += 8;
+                }
+                ids[RESULT][i] = (int) (acc & mask);
+                acc >>>= bits;
+                filled -= bits;
+            }
+        }
+
+        @Override
+        public int size() { return FIRST_DICT_COLUMN + DICT_COLUMNS; }
+
+        @Override
+        public long ref() { return (long) block << 32 | row; }
+
+        @Override
+        public String get(int field) {
+            if (field >= FIRST_DICT_COLUMN) {
+                int c = field - FIRST_DICT_COLUMN;
+                return c < DICT_COLUMNS ? dicts[c][ids[c][row]] : null;
+            }
+            long t = ts[row];
+            if (field == 2) {
+                int sec = (int) Math.floorMod(t, 86400L);
+                StringBuilder sb = new StringBuilder(8);
+                two(sb, sec / 3600).append(':');
+                two(sb, sec / 60 % 60).append(':');
+                return two(sb, sec % 60).toString();
+            }
+            long day = Math.floorDiv(t, 86400L);
+            if (day != cachedDay) {
+                LocalDate d = LocalDateTime.ofEpochSecond(day * 86400L, 0, ZoneOffset.UTC).toLocalDate();
+                cachedDate = d.toString();
+                cachedDayOfWeek = dayFormatter.format(d);
+                cachedDay = day;
+            }
+            return field == 0 ? cachedDate : cachedDayOfWeek;
+        }
+
+        private static StringBuilder two(StringBuilder sb, int v) {
+            if (v < 10) sb.append('0');
+            return sb.append(v);
+        }
+    }
+
+    // Encoding helpers
+
+    private static int secondOfDay(String hhmmss) {
+        if (hhmmss.length() != 8 || hhmmss.charAt(2) != ':' || hhmmss.charAt(5) != ':') throw new IllegalArgumentException(hhmmss);
+        return Integer.parseInt(hhmmss.substring(0, 2)) * 3600 + Integer.parseInt(hhmmss.substring(3, 5)) * 60
+                + Integer.parseInt(hhmmss.substring(6, 8));
+    }
+
+    private static long zigzag(long v) { return (v << 1) ^ (v >> 63); }
+
+    private static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(byte[] b, int[] pos) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int x = b[pos[0]++];
+            v |= (long) (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) return v;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int len = in.getInt();
+        if (len < 0) return null;
+        byte[] b = new byte[len];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
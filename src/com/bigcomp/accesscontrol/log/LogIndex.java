@@ -0,0 +1,369 @@
+package com.bigcomp.accesscontrol.log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalTime;
+import java.util.*;
+
+/**
+ * Sidecar search index for one day CSV file, stored next to it as YYYY-MM-DD.idx.
+ * For each searchable column it keeps a dictionary of distinct values, each with a posting
+ * list of the rows holding it (ascending row numbers, delta-varint compressed). It also keeps
+ * the byte offset of every row, so matching rows are read straight from the CSV without
+ * parsing the rest, and a sparse time index (one entry every {@link #TIME_STEP} rows).
+ * The index records how many bytes of the CSV it covers; rows appended later are indexed
+ * incrementally the next time it is used.
+ */
+public final class LogIndex {
+    /** Searchable CSV columns */
+    public enum Field {
+        BADGE(3), READER(4), RESOURCE(5), USER_ID(6), USER_NAME(7), RESULT(8);
+
+        final int column;
+
+        Field(int column) { this.column = column; }
+    }
+
+    private static final int MAGIC = 0x4C494458; // "LIDX"
+    private static final int TIME_STEP = 256;
+    private static final int CACHE_SIZE = 64;
+
+    // Recently used indexes; a search over months reopens the same files
+    private static final Map<String, LogIndex> cache = new LinkedHashMap<String, LogIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LogIndex> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final File csv;
+    private long indexedLength;
+    private int rows;
+    private long[] offsets = new long[64]; // offsets[r] = first byte of row r; offsets[rows] = end
+    private int[] timeRows = new int[16];
+    private int[] timeSeconds = new int[16];
+    private int timeCount;
+    private final List<Map<String, Postings>> dictionaries = new ArrayList<>();
+
+    private LogIndex(File csv) {
+        this.csv = csv;
+        for (int i = 0; i < Field.values().length; i++) dictionaries.add(new HashMap<>());
+    }
+
+    public static File sidecarFor(File csv) {
+        String name = csv.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(csv.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + ".idx");
+    }
+
+    /**
+     * Index for the CSV file, loaded from its sidecar and brought up to date with any rows
+     * appended since. The sidecar is rewritten when new rows were indexed.
+     */
+    public static LogIndex forFile(File csv) throws IOException {
+        String key = csv.getAbsolutePath();
+        LogIndex idx;
+        synchronized (cache) {
+            idx = cache.get(key);
+        }
+        if (idx == null) {
+            idx = read(sidecarFor(csv), csv);
+            if (idx == null) idx = new LogIndex(csv);
+            synchronized (cache) {
+                LogIndex raced = cache.putIfAbsent(key, idx);
+                if (raced != null) idx = raced;
+            }
+        }
+        synchronized (idx) {
+            if (idx.catchUp()) idx.write(sidecarFor(csv));
+        }
+        return idx;
+    }
+
+    public synchronized int getRowCount() { return rows; }
+
+    /** Rows whose value in the field equals the key exactly. */
+    public synchronized BitSet matchExact(Field field, String key) {
+        Postings p = dictionaries.get(field.ordinal()).get(key);
+        BitSet out = new BitSet(rows);
+        if (p != null) p.addTo(out);
+        return out;
+    }
+
+    /** Rows whose value in the field contains the needle, ignoring case. Only the dictionary is scanned. */
+    public synchronized BitSet matchContains(Field field, String needle) {
+        String n = needle.toLowerCase();
+        BitSet out = new BitSet(rows);
+        for (Map.Entry<String, Postings> e : dictionaries.get(field.ordinal()).entrySet()) {
+            if (e.getKey().toLowerCase().contains(n)) e.getValue().addTo(out);
+        }
+        return out;
+    }
+
+    /** Every row, for intersecting with when no field is constrained. */
+    public synchronized BitSet allRows() {
+        BitSet out = new BitSet(rows);
+        out.set(0, rows);
+        return out;
+    }
+
+    /**
+     * Candidate rows for a time range: a superset taken from the sparse time index, assuming
+     * rows are in time order. Callers still check the time column of the rows they read.
+     */
+    public synchronized BitSet rowsBetween(LocalTime from, LocalTime to) {
+        int lo = 0;
+        int hi = rows;
+        int fromSec = from.toSecondOfDay();
+        int toSec = to.toSecondOfDay();
+        for (int i = 0; i < timeCount; i++) {
+            if (timeSeconds[i] <= fromSec) lo = timeRows[i];
+            if (timeSeconds[i] > toSec) {
+                hi = timeRows[i];
+                break;
+            }
+        }
+        BitSet out = new BitSet(rows);
+        if (lo < hi) out.set(lo, hi);
+        return out;
+    }
+
+    /** CSV byte offsets of the given rows, usable as refs with {@link LogScanner#forEachRef}. */
+    public synchronized long[] offsetsOf(BitSet rowSet) {
+        long[] out = new long[rowSet.cardinality()];
+        int n = 0;
+        for (int r = rowSet.nextSetBit(0); r >= 0 && r < rows; r = rowSet.nextSetBit(r + 1)) out[n++] = offsets[r];
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    /** Reads and splits the given rows from the CSV, in row order, without touching the others. */
+    public List<String[]> readRows(BitSet rowSet) throws IOException {
+        List<String[]> out = new ArrayList<>(rowSet.cardinality());
+        if (rowSet.isEmpty()) return out;
+        long[] offs;
+        synchronized (this) {
+            offs = Arrays.copyOf(offsets, rows + 1);
+        }
+        try (FileChannel ch = FileChannel.open(csv.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(256);
+            for (int r = rowSet.nextSetBit(0); r >= 0 && r < offs.length - 1; r = rowSet.nextSetBit(r + 1)) {
+                int len = (int) (offs[r + 1] - offs[r]);
+                if (buf.capacity() < len) buf = ByteBuffer.allocate(len);
+                buf.clear().limit(len);
+                long pos = offs[r];
+                while (buf.hasRemaining()) {
+                    int n = ch.read(buf, pos);
+                    if (n < 0) break;
+                    pos += n;
+                }
+                out.add(CsvParser.split(buf.array(), 0, buf.position(), LogScanner.CSV_CHARSET));
+            }
+        }
+        return out;
+    }
+
+    // Building
+
+    /** Indexes rows appended to the CSV since the last call; true if the index changed. */
+    private boolean catchUp() throws IOException {
+        if (!csv.exists()) return false;
+        long length = csv.length();
+        boolean changed = false;
+        if (length < indexedLength) {
+            // file was replaced: start over
+            reset();
+            changed = true;
+        }
+        if (length == indexedLength) return changed;
+        if (length - indexedLength > Integer.MAX_VALUE) throw new IOException("Log file too large to index: " + csv);
+        MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(csv.toPath(), StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, indexedLength, length - indexedLength);
+        }
+        long base = indexedLength;
+        // a record still being written is left for the next call
+        int parsed = CsvParser.parse(buf, 0, buf.limit(), false, LogScanner.CSV_CHARSET, r -> {
+            if (!(base == 0 && r.start() == 0 && r.equalsAscii(0, "Date"))) addRow(base + r.start(), base + r.end(), r);
+            return true;
+        });
+        if (parsed > 0) {
+            indexedLength = base + parsed;
+            changed = true;
+        }
+        return changed;
+    }
+
+    private void reset() {
+        indexedLength = 0;
+        rows = 0;
+        timeCount = 0;
+        for (Map<String, Postings> d : dictionaries) d.clear();
+    }
+
+    private void addRow(long start, long end, CsvParser.Record r) {
+        if (r.size() < 9) return;
+        int row = rows;
+        if (offsets.length < row + 2) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        offsets[row] = start;
+        offsets[row + 1] = end;
+        for (Field f : Field.values()) {
+            dictionaries.get(f.ordinal()).computeIfAbsent(r.get(f.column), k -> new Postings()).add(row);
+        }
+        if (row % TIME_STEP == 0) {
+            int sec = secondOfDay(r.get(2));
+            if (sec >= 0) {
+                if (timeCount == timeRows.length) {
+                    timeRows = Arrays.copyOf(timeRows, timeCount * 2);
+                    timeSeconds = Arrays.copyOf(timeSeconds, timeCount * 2);
+                }
+                timeRows[timeCount] = row;
+                timeSeconds[timeCount] = sec;
+                timeCount++;
+            }
+        }
+        rows = row + 1;
+    }
+
+    private static int secondOfDay(String hhmmss) {
+        try {
+            return LocalTime.parse(hhmmss).toSecondOfDay();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // Sidecar file
+
+    private void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeLong(indexedLength);
+            out.writeInt(rows);
+            long prev = 0;
+            for (int r = 0; r <= rows; r++) {
+                long o = offsets[r];
+                writeVarLong(out, o - prev);
+                prev = o;
+            }
+            out.writeInt(timeCount);
+            for (int i = 0; i < timeCount; i++) {
+                out.writeInt(timeRows[i]);
+                out.writeInt(timeSeconds[i]);
+            }
+            out.writeInt(dictionaries.size());
+            for (Map<String, Postings> d : dictionaries) {
+                out.writeInt(d.size());
+                for (Map.Entry<String, Postings> e : d.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    Postings p = e.getValue();
+                    out.writeInt(p.count);
+                    out.writeInt(p.last);
+                    out.writeInt(p.length);
+                    out.write(p.data, 0, p.length);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Loads a sidecar; returns null if it is missing, unreadable or longer than its CSV. */
+    private static LogIndex read(File file, File csv) {
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) return null;
+            LogIndex idx = new LogIndex(csv);
+            idx.indexedLength = in.readLong();
+            if (idx.indexedLength > csv.length()) return null;
+            idx.rows = in.readInt();
+            idx.offsets = new long[Math.max(64, idx.rows + 2)];
+            long o = 0;
+            for (int r = 0; r <= idx.rows; r++) {
+                o += readVarLong(in);
+                idx.offsets[r] = o;
+            }
+            idx.timeCount = in.readInt();
+            idx.timeRows = new int[Math.max(16, idx.timeCount)];
+            idx.timeSeconds = new int[idx.timeRows.length];
+            for (int i = 0; i < idx.timeCount; i++) {
+                idx.timeRows[i] = in.readInt();
+                idx.timeSeconds[i] = in.readInt();
+            }
+            int fields = in.readInt();
+            for (int f = 0; f < fields && f < idx.dictionaries.size(); f++) {
+                Map<String, Postings> d = idx.dictionaries.get(f);
+                for (int n = in.readInt(); n > 0; n--) {
+                    String key = in.readUTF();
+                    Postings p = new Postings();
+                    p.count = in.readInt();
+                    p.last = in.readInt();
+                    p.length = in.readInt();
+                    p.data = new byte[Math.max(8, p.length)];
+                    in.readFully(p.data, 0, p.length);
+                    d.put(key, p);
+                }
+            }
+            return idx;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Rebuilding unreadable log index " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+    }
+
+    /** Ascending row numbers, each stored as a varint gap from the previous one. */
+    private static final class Postings {
+        byte[] data = new byte[8];
+        int length;
+        int count;
+        int last = -1;
+
+        void add(int row) {
+            if (length + 5 > data.length) data = Arrays.copyOf(data, data.length * 2);
+            int gap = row - last;
+            while ((gap & ~0x7F) != 0) {
+                data[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+            last = row;
+            count++;
+        }
+
+        void addTo(BitSet out) {
+            int row = -1;
+            int i = 0;
+            while (i < length) {
+                int gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = data[i++];
+                    gap |= (b & 0x7F) << shift;
+                    if (b >= 0) break;
+                }
+                row += gap;
+                out.set(row);
+            }
+        }
+    }
+}
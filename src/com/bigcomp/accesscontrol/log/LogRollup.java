@@ -0,0 +1,352 @@
+package com.bigcomp.accesscontrol.log;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Pre-aggregated counts for one day of access logs, stored next to the day CSV as
+ * YYYY-MM-DD.rollup. Counts by result are kept per minute, hour and day; counts by badge,
+ * resource, reader and group are kept per day, split by result. {@link CSVLogger} updates the
+ * rollup of the current day as it writes each record and saves it every log.rollup.saveMs and
+ * when the day closes. Like {@link LogIndex}, the rollup records how many bytes of the CSV it
+ * covers, and rows found beyond that are added from the CSV the next time it is read. Rows
+ * added from the CSV carry no group, which is only known when the access is decided.
+ * Rollups of days merged into a {@link LogArchive} stay in place.
+ */
+public final class LogRollup {
+    public enum Result { GRANTED, DENIED, OTHER }
+
+    public enum Dimension { BADGE, RESOURCE, READER, GROUP }
+
+    public enum Resolution {
+        MINUTE(1440), HOUR(24), DAY(1);
+
+        final int slots;
+
+        Resolution(int slots) { this.slots = slots; }
+
+        public int slots() { return slots; }
+    }
+
+    public static final String EXTENSION = ".rollup";
+
+    private static final int MAGIC = 0x4C52554C; // "LRUL"
+    private static final int RESULTS = Result.values().length;
+
+    private final File csv;
+    private long coveredLength;
+    // [slot * RESULTS + result]
+    private final long[] minutes = new long[Resolution.MINUTE.slots * RESULTS];
+    private final long[] hours = new long[Resolution.HOUR.slots * RESULTS];
+    private final long[] days = new long[RESULTS];
+    private final List<Map<String, long[]>> counts = new ArrayList<>();
+
+    private LogRollup(File csv) {
+        this.csv = csv;
+        for (int i = 0; i < Dimension.values().length; i++) counts.add(new HashMap<>());
+    }
+
+    /** An empty rollup to merge days into, see {@link #addAll}. */
+    public static LogRollup empty() {
+        return new LogRollup(null);
+    }
+
+    public static File sidecarFor(File csv) {
+        String name = csv.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(csv.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + EXTENSION);
+    }
+
+    /**
+     * Rollup for the day CSV, loaded from its sidecar and brought up to date with any rows
+     * appended since; the sidecar is rewritten when rows were added. If the CSV has been
+     * archived the sidecar is returned as it is.
+     */
+    public static LogRollup forFile(File csv) throws IOException {
+        LogRollup r = read(sidecarFor(csv), csv);
+        if (r == null) r = new LogRollup(csv);
+        if (r.catchUp()) r.write();
+        return r;
+    }
+
+    /**
+     * Rollups of the days in a month archive, by date, from the sidecars left next to it. A month
+     * archived before rollups existed has none; they are built from the archive and saved.
+     */
+    public static Map<LocalDate, LogRollup> forArchive(File archive) throws IOException {
+        Map<LocalDate, LogRollup> out = new TreeMap<>();
+        File dir = archive.getParentFile();
+        File[] sidecars = dir.listFiles((d, n) -> n.endsWith(EXTENSION));
+        if (sidecars != null && sidecars.length > 0) {
+            for (File f : sidecars) {
+                LocalDate date = dateOf(f);
+                File csv = new File(dir, date + ".csv");
+                if (date != null && !csv.exists()) {
+                    LogRollup r = read(f, csv);
+                    if (r != null) out.put(date, r);
+                }
+            }
+            return out;
+        }
+        LogScanner.forEachRow(archive, LogScanner.RowFilter.ALL, row -> {
+            LocalDate date = dateOf(row.get(0));
+            if (date != null) out.computeIfAbsent(date, d -> new LogRollup(new File(dir, d + ".csv"))).addRow(row, null);
+            return true;
+        }, () -> false);
+        for (LogRollup r : out.values()) r.write();
+        return out;
+    }
+
+    private static LocalDate dateOf(File sidecar) {
+        String name = sidecar.getName();
+        return dateOf(name.substring(0, name.length() - EXTENSION.length()));
+    }
+
+    private static LocalDate dateOf(String yyyyMMdd) {
+        try {
+            return LocalDate.parse(yyyyMMdd);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Updating
+
+    /** Counts one access; second is the second of the day. */
+    public synchronized void add(int second, String result, String badge, String resource, String reader, String group) {
+        if (second < 0 || second >= 86400) return;
+        int res = resultOf(result);
+        minutes[second / 60 * RESULTS + res]++;
+        hours[second / 3600 * RESULTS + res]++;
+        days[res]++;
+        count(Dimension.BADGE, badge, res);
+        count(Dimension.RESOURCE, resource, res);
+        count(Dimension.READER, reader, res);
+        count(Dimension.GROUP, group, res);
+    }
+
+    private void count(Dimension d, String key, int res) {
+        if (key == null) return;
+        counts.get(d.ordinal()).computeIfAbsent(key, k -> new long[RESULTS])[res]++;
+    }
+
+    private static int resultOf(String result) {
+        if ("GRANTED".equals(result)) return Result.GRANTED.ordinal();
+        if ("DENIED".equals(result)) return Result.DENIED.ordinal();
+        return Result.OTHER.ordinal();
+    }
+
+    /** Adds another rollup's counts, e.g. to sum the days of a report period. */
+    public synchronized void addAll(LogRollup other) {
+        synchronized (other) {
+            for (int i = 0; i < minutes.length; i++) minutes[i] += other.minutes[i];
+            for (int i = 0; i < hours.length; i++) hours[i] += other.hours[i];
+            for (int i = 0; i < days.length; i++) days[i] += other.days[i];
+            for (int d = 0; d < counts.size(); d++) {
+                Map<String, long[]> into = counts.get(d);
+                for (Map.Entry<String, long[]> e : other.counts.get(d).entrySet()) {
+                    long[] c = into.computeIfAbsent(e.getKey(), k -> new long[RESULTS]);
+                    for (int i = 0; i < RESULTS; i++) c[i] += e.getValue()[i];
+                }
+            }
+        }
+    }
+
+    /** A copy that is no longer tied to a CSV; safe to hand to another thread. */
+    public synchronized LogRollup copy() {
+        LogRollup r = empty();
+        r.addAll(this);
+        return r;
+    }
+
+    /** Records that the CSV is now this long and all its rows are counted, then saves. */
+    synchronized void save(long csvLength) throws IOException {
+        coveredLength = csvLength;
+        write();
+    }
+
+    // Reading
+
+    public synchronized long total() {
+        long n = 0;
+        for (long c : days) n += c;
+        return n;
+    }
+
+    public synchronized long total(Result result) {
+        return days[result.ordinal()];
+    }
+
+    /** Counts of the result in each minute, hour or day (one slot) of the day. */
+    public synchronized long[] series(Resolution resolution, Result result) {
+        long[] src = resolution == Resolution.MINUTE ? minutes : resolution == Resolution.HOUR ? hours : days;
+        long[] out = new long[resolution.slots];
+        for (int s = 0; s < out.length; s++) out[s] = src[s * RESULTS + result.ordinal()];
+        return out;
+    }
+
+    /** The keys of a dimension with their count of the result, or of all results if null. */
+    public synchronized Map<String, Long> counts(Dimension dimension, Result result) {
+        Map<String, Long> out = new HashMap<>();
+        for (Map.Entry<String, long[]> e : counts.get(dimension.ordinal()).entrySet()) {
+            out.put(e.getKey(), result == null ? sum(e.getValue()) : e.getValue()[result.ordinal()]);
+        }
+        return out;
+    }
+
+    /** The n keys with the most accesses, most first. */
+    public synchronized List<Map.Entry<String, Long>> top(Dimension dimension, Result result, int n) {
+        PriorityQueue<Map.Entry<String, Long>> heap = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Map.Entry<String, long[]> e : counts.get(dimension.ordinal()).entrySet()) {
+            long c = result == null ? sum(e.getValue()) : e.getValue()[result.ordinal()];
+            if (c == 0) continue;
+            heap.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), c));
+            if (heap.size() > n) heap.poll();
+        }
+        List<Map.Entry<String, Long>> out = new ArrayList<>(heap);
+        out.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return out;
+    }
+
+    private static long sum(long[] c) {
+        long n = 0;
+        for (long v : c) n += v;
+        return n;
+    }
+
+    // Building from the CSV
+
+    /** Counts rows appended to the CSV since the rollup was saved; true if it changed. */
+    private synchronized boolean catchUp() throws IOException {
+        if (csv == null || !csv.exists()) return false;
+        long length = csv.length();
+        boolean changed = false;
+        if (length < coveredLength) {
+            // file was replaced: start over
+            reset();
+            changed = true;
+        }
+        if (length == coveredLength) return changed;
+        if (length - coveredLength > Integer.MAX_VALUE) throw new IOException("Log file too large to roll up: " + csv);
+        MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(csv.toPath(), StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, coveredLength, length - coveredLength);
+        }
+        long base = coveredLength;
+        // a record still being written is left for the next call
+        int parsed = CsvParser.parse(buf, 0, buf.limit(), false, LogScanner.CSV_CHARSET, r -> {
+            if (!(base == 0 && r.start() == 0 && r.equalsAscii(0, "Date"))) addRow(r, null);
+            return true;
+        });
+        if (parsed > 0) {
+            coveredLength = base + parsed;
+            changed = true;
+        }
+        return changed;
+    }
+
+    private void reset() {
+        coveredLength = 0;
+        Arrays.fill(minutes, 0);
+        Arrays.fill(hours, 0);
+        Arrays.fill(days, 0);
+        for (Map<String, long[]> c : counts) c.clear();
+    }
+
+    private void addRow(LogRow r, String group) {
+        if (r.size() < 9) return;
+        add(secondOfDay(r.get(2)), r.get(8), r.get(3), r.get(5), r.get(4), group);
+    }
+
+    private static int secondOfDay(String hhmmss) {
+        if (hhmmss == null || hhmmss.length() < 8) return -1;
+        int h = (hhmmss.charAt(0) - '0') * 10 + hhmmss.charAt(1) - '0';
+        int m = (hhmmss.charAt(3) - '0') * 10 + hhmmss.charAt(4) - '0';
+        int s = (hhmmss.charAt(6) - '0') * 10 + hhmmss.charAt(7) - '0';
+        return h * 3600 + m * 60 + s;
+    }
+
+    // Sidecar file
+
+    /** Only the minute counts are stored; hours and the day are summed from them on load. */
+    private void write() throws IOException {
+        if (csv == null) return;
+        File file = sidecarFor(csv);
+        // unique temp name: the logger and a report may save the same day at once
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 14))) {
+                out.writeInt(MAGIC);
+                out.writeLong(coveredLength);
+                for (long c : minutes) writeVarLong(out, c);
+                out.writeInt(counts.size());
+                for (Map<String, long[]> d : counts) {
+                    out.writeInt(d.size());
+                    for (Map.Entry<String, long[]> e : d.entrySet()) {
+                        out.writeUTF(e.getKey());
+                        for (long c : e.getValue()) writeVarLong(out, c);
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /** Loads a sidecar; returns null if it is missing, unreadable or longer than its CSV. */
+    private static LogRollup read(File file, File csv) {
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 14))) {
+            if (in.readInt() != MAGIC) return null;
+            LogRollup r = new LogRollup(csv);
+            r.coveredLength = in.readLong();
+            if (csv.exists() && r.coveredLength > csv.length()) return null;
+            for (int i = 0; i < r.minutes.length; i++) {
+                long c = readVarLong(in);
+                r.minutes[i] = c;
+                int minute = i / RESULTS;
+                int res = i % RESULTS;
+                r.hours[minute / 60 * RESULTS + res] += c;
+                r.days[res] += c;
+            }
+            int dims = in.readInt();
+            for (int d = 0; d < dims && d < r.counts.size(); d++) {
+                Map<String, long[]> m = r.counts.get(d);
+                for (int n = in.readInt(); n > 0; n--) {
+                    String key = in.readUTF();
+                    long[] c = new long[RESULTS];
+                    for (int i = 0; i < RESULTS; i++) c[i] = readVarLong(in);
+                    m.put(key, c);
+                }
+            }
+            return r;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Rebuilding unreadable log rollup " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.bigcomp.accesscontrol.log;
+
+/**
+ * One access log row as read from a day CSV or a month archive, in CSV column order:
+ * Date, DayOfWeek, Time, BadgeCode, ReaderCode, ResourceId, UserId, UserName, Result.
+ * Implementations are reused between rows; copy values out with {@link #toArray()}.
+ */
+public interface LogRow {
+    int size();
+
+    /** Field value, or null if the row has fewer fields. */
+    String get(int field);
+
+    /** Position of the row inside its file, for reading it again with {@link LogScanner#forEachRef}. */
+    long ref();
+
+    default String[] toArray() {
+        String[] out = new String[size()];
+        for (int i = 0; i < out.length; i++) out[i] = get(i);
+        return out;
+    }
+}
@@ -0,0 +1,225 @@
+package com.bigcomp.accesscontrol.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+/**
+ * Scans day CSV files and month archives ({@link LogArchive}) in parallel. Each file is
+ * memory-mapped; CSVs are parsed with {@link CsvParser}, archives decoded block by block.
+ * Files are split across a fork-join pool, one task per file. Rows passing the filter are
+ * handed to the sink in batches as soon as they are parsed, so callers can show results while
+ * the scan is still running. Batches of one file arrive in file order; files interleave.
+ */
+public class LogScanner {
+    /** Decides on a row before it is copied out; fields are only decoded when read. */
+    public interface RowFilter {
+        RowFilter ALL = r -> true;
+
+        boolean accept(LogRow r);
+    }
+
+    /**
+     * Receives rows where they are decoded, without copying them. Called from pool threads, but
+     * each file is visited by one thread at a time; {@code k} counts the rows of that file handed
+     * out so far (for {@link #visitRefs}, the index into that file's refs).
+     */
+    public interface RowVisitor {
+        void visit(int file, int k, LogRow row);
+    }
+
+    /** Receives batches of matching rows; called from pool threads, so it must be thread-safe. */
+    public interface BatchSink {
+        void accept(File file, List<String[]> rows);
+    }
+
+    static final Charset CSV_CHARSET = Charset.defaultCharset(); // CSVLogger writes with FileWriter
+    private static final int BATCH = 4096;
+
+    private final ForkJoinPool pool;
+
+    public LogScanner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public LogScanner(int parallelism) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    /** Scans all files and returns the number of rows delivered. Blocks until done. */
+    public long scan(List<File> files, RowFilter filter, BatchSink sink) {
+        return scan(files, filter, sink, () -> false);
+    }
+
+    /** As {@link #scan(List, RowFilter, BatchSink)}, stopping early once {@code cancelled} turns true. */
+    public long scan(List<File> files, RowFilter filter, BatchSink sink, BooleanSupplier cancelled) {
+        LongAdder count = new LongAdder();
+        pool.invoke(new FilesTask(files.size(), cancelled, i -> count.add(scanFile(files.get(i), filter, sink, cancelled))));
+        return count.sum();
+    }
+
+    /** Hands every matching row to the visitor, files in parallel; returns the rows visited. */
+    public long visit(List<File> files, RowFilter filter, RowVisitor visitor, BooleanSupplier cancelled) {
+        return visit(files, filter, visitor, i -> {}, cancelled);
+    }
+
+    /**
+     * As {@link #visit(List, RowFilter, RowVisitor, BooleanSupplier)}, telling {@code fileDone}
+     * the index of each file whose rows have all been visited (not called for a cancelled file).
+     */
+    public long visit(List<File> files, RowFilter filter, RowVisitor visitor, IntConsumer fileDone, BooleanSupplier cancelled) {
+        LongAdder count = new LongAdder();
+        pool.invoke(new FilesTask(files.size(), cancelled, i -> {
+            int[] k = {0};
+            count.add(forEachRow(files.get(i), filter, r -> {
+                visitor.visit(i, k[0]++, r);
+                return (k[0] & 1023) != 0 || !cancelled.getAsBoolean(); // checked every 1024 rows
+            }, cancelled));
+            if (!cancelled.getAsBoolean()) fileDone.accept(i);
+        }));
+        return count.sum();
+    }
+
+    /** Reads back the rows at refs[file] of each file, files in parallel, in ref order within a file. */
+    public void visitRefs(List<File> files, long[][] refs, RowVisitor visitor, BooleanSupplier cancelled) {
+        pool.invoke(new FilesTask(files.size(), cancelled, i -> {
+            if (refs[i] == null || refs[i].length == 0) return;
+            int[] n = {0};
+            forEachRef(files.get(i), refs[i], 0, refs[i].length, (k, r) -> {
+                visitor.visit(i, k, r);
+                return (++n[0] & 1023) != 0 || !cancelled.getAsBoolean(); // checked every 1024 rows
+            });
+        }));
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /** Receives rows one at a time; return false to stop. The row is reused afterwards. */
+    public interface RowHandler {
+        boolean row(LogRow r);
+    }
+
+    /** As {@link RowHandler}, also told which ref the row was read from. */
+    public interface RefHandler {
+        boolean row(int ref, LogRow r);
+    }
+
+    /** Reads one file on the calling thread, batching rows for the sink; returns the rows delivered. */
+    public static long scanFile(File file, RowFilter filter, BatchSink sink, BooleanSupplier cancelled) throws IOException {
+        List<List<String[]>> batch = new ArrayList<>(1);
+        batch.add(new ArrayList<>());
+        long count = forEachRow(file, filter, r -> {
+            batch.get(0).add(r.toArray());
+            if (batch.get(0).size() >= BATCH) {
+                sink.accept(file, batch.get(0));
+                batch.set(0, new ArrayList<>());
+                return !cancelled.getAsBoolean();
+            }
+            return true;
+        }, cancelled);
+        if (!batch.get(0).isEmpty() && !cancelled.getAsBoolean()) sink.accept(file, batch.get(0));
+        return count;
+    }
+
+    /**
+     * Hands every row of a day CSV (header skipped) or month archive that passes the filter
+     * to the handler; returns how many were handed out.
+     */
+    static long forEachRow(File file, RowFilter filter, RowHandler handler, BooleanSupplier cancelled) throws IOException {
+        if (LogArchive.isArchive(file)) return LogArchive.scan(file, filter, handler, cancelled);
+        long size = file.length();
+        if (size == 0) return 0;
+        if (size > Integer.MAX_VALUE) throw new IOException("Log file too large to map: " + file);
+        MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        long[] count = new long[1];
+        CsvParser.parse(buf, 0, (int) size, true, CSV_CHARSET, r -> {
+            if (r.start() == 0 && r.equalsAscii(0, "Date")) return true; // header
+            if (!filter.accept(r)) return true;
+            count[0]++;
+            return handler.row(r);
+        });
+        return count[0];
+    }
+
+    /**
+     * Hands the rows at refs[from..to) of one file to the handler, in that order, with the index
+     * of each ref. Refs come from {@link LogRow#ref()} of an earlier scan of the same file; a ref
+     * past the end of a file that changed since is skipped.
+     */
+    public static void forEachRef(File file, long[] refs, int from, int to, RefHandler handler) throws IOException {
+        if (from >= to) return;
+        if (LogArchive.isArchive(file)) {
+            LogArchive.forEachRef(file, refs, from, to, handler);
+            return;
+        }
+        long size = file.length();
+        if (size > Integer.MAX_VALUE) throw new IOException("Log file too large to map: " + file);
+        MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        boolean[] more = {true};
+        for (int i = from; i < to && more[0]; i++) {
+            if (refs[i] >= size) continue;
+            int ref = i;
+            CsvParser.parse(buf, (int) refs[i], (int) size, true, CSV_CHARSET, r -> {
+                more[0] = handler.row(ref, r);
+                return false; // one record per ref
+            });
+        }
+    }
+
+    private interface FileJob {
+        void run(int file) throws IOException;
+    }
+
+    /** Splits file indexes [from, to) in halves until each task has one file. */
+    private static final class FilesTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final BooleanSupplier cancelled;
+        private final FileJob job;
+
+        FilesTask(int files, BooleanSupplier cancelled, FileJob job) {
+            this(0, files, cancelled, job);
+        }
+
+        private FilesTask(int from, int to, BooleanSupplier cancelled, FileJob job) {
+            this.from = from;
+            this.to = to;
+            this.cancelled = cancelled;
+            this.job = job;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled.getAsBoolean()) return;
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FilesTask(from, mid, cancelled, job), new FilesTask(mid, to, cancelled, job));
+                return;
+            }
+            if (from >= to) return;
+            try {
+                job.run(from);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@ public class AccessLog {
     private String denialReason; // Specific reason if DENIED (e.g., "EXPIRED", "NO_PERMISSION", "USAGE_LIMIT_EXCEEDED", "PRECEDENCE_VIOLATION")
     private String fromZoneId; // Zone the user is trying to exit from
     private String toZoneId;   // Zone the user is trying to enter
+    private String groupName;  // Resource group whose right granted (or was counted for) the access
 
     public LocalDateTime getTimestamp() { return timestamp; }
     public void setTimestamp(LocalDateTime timestamp) { this.timestamp = timestamp; }
@@ -34,4 +35,6 @@ public class AccessLog {
     public void setFromZoneId(String fromZoneId) { this.fromZoneId = fromZoneId; }
     public String getToZoneId() { return toZoneId; }
     public void setToZoneId(String toZoneId) { this.toZoneId = toZoneId; }
+    public String getGroupName() { return groupName; }
+    public void setGroupName(String groupName) { this.groupName = groupName; }
 }
\ No newline at end of file
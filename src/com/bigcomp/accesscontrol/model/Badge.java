@@ -34,4 +34,19 @@ public class Badge {
     public void setUpdateGracePeriodEnd(java.time.LocalDateTime updateGracePeriodEnd) { this.updateGracePeriodEnd = updateGracePeriodEnd; }
     public java.time.LocalDateTime getLastUpdateTime() { return lastUpdateTime; }
     public void setLastUpdateTime(java.time.LocalDateTime lastUpdateTime) { this.lastUpdateTime = lastUpdateTime; }
+
+    /** Field-by-field copy; badges in a published cache snapshot are changed through copies. */
+    public Badge copy() {
+        Badge c = new Badge();
+        c.badgeId = badgeId;
+        c.userId = userId;
+        c.expirationDate = expirationDate;
+        c.active = active;
+        c.currentZoneId = currentZoneId;
+        c.requiresUpdate = requiresUpdate;
+        c.updateDueDate = updateDueDate;
+        c.updateGracePeriodEnd = updateGracePeriodEnd;
+        c.lastUpdateTime = lastUpdateTime;
+        return c;
+    }
 }
\ No newline at end of file
@@ -8,32 +8,87 @@ import java.util.*;
  * 2025.July,August.Monday-Friday.8:00-12:00,14:00-17:00
  * 2026.EXCEPT June,July,August.EXCEPT Sunday.ALL
  * ALL.ALL.Monday-Friday.EXCEPT 12:00-14:00
+ *
+ * Rules are compiled at parse time into primitive masks (years, months, days of month,
+ * days of week and a minute-of-day bitmap), so matching is a handful of bit tests.
+ * Ranges whose end is before their start wrap around (November-February, 22:00-06:00).
  */
 public class TimeFilter {
-    private final ValueRule<Integer> years;
-    private final ValueRule<Integer> months;
-    private final ValueRule<Integer> daysOfMonth;
-    private final ValueRule<DayOfWeek> daysOfWeek;
-    private final HourRule hours;
-
-    public TimeFilter(ValueRule<Integer> years,
-                      ValueRule<Integer> months,
-                      ValueRule<Integer> daysOfMonth,
-                      ValueRule<DayOfWeek> daysOfWeek,
-                      HourRule hours) {
+    private static final int MIN_YEAR = 1900;
+    private static final int MAX_YEAR = 3000;
+    private static final int MINUTES_PER_DAY = 1440;
+    private static final int ALL_MONTHS = (1 << 12) - 1;
+    private static final int ALL_DAYS_OF_MONTH = (1 << 31) - 1;
+    private static final int ALL_DAYS_OF_WEEK = (1 << 7) - 1;
+    private static final String[] MONTH_NAMES = {"JANUARY","FEBRUARY","MARCH","APRIL","MAY","JUNE","JULY","AUGUST","SEPTEMBER","OCTOBER","NOVEMBER","DECEMBER"};
+
+    private final long[] years;        // bit (year - MIN_YEAR), null = every year
+    private final int months;          // bit 0 = January
+    private final int daysOfMonth;     // bit 0 = 1st
+    private final int daysOfWeek;      // bit 0 = Monday
+    private final long[] minutes;      // bit = minute of day, null = whole day
+    private final boolean anyDate;     // years, months and days of month unrestricted
+
+    private TimeFilter(long[] years, int months, int daysOfMonth, int daysOfWeek, long[] minutes) {
         this.years = years;
         this.months = months;
         this.daysOfMonth = daysOfMonth;
         this.daysOfWeek = daysOfWeek;
-        this.hours = hours;
+        this.minutes = minutes;
+        this.anyDate = years == null && months == ALL_MONTHS && daysOfMonth == ALL_DAYS_OF_MONTH;
     }
 
     public boolean matches(LocalDateTime dt) {
-        return years.test(dt.getYear()) &&
-               months.test(dt.getMonthValue()) &&
-               daysOfMonth.test(dt.getDayOfMonth()) &&
-               daysOfWeek.test(dt.getDayOfWeek()) &&
-               hours.test(dt.toLocalTime());
+        return matches(dt.getYear(), dt.getMonthValue(), dt.getDayOfMonth(),
+                dt.getDayOfWeek().getValue() - 1, dt.getHour() * 60 + dt.getMinute());
+    }
+
+    /**
+     * Matches a local date-time expressed as minutes since 1970-01-01T00:00 (see {@link #epochMinute}).
+     * Year, month and day are only derived when the filter restricts them.
+     */
+    public boolean matches(long epochMinute) {
+        long epochDay = Math.floorDiv(epochMinute, MINUTES_PER_DAY);
+        int minuteOfDay = (int) (epochMinute - epochDay * MINUTES_PER_DAY);
+        if (minutes != null && (minutes[minuteOfDay >>> 6] & (1L << minuteOfDay)) == 0) return false;
+        if ((daysOfWeek & (1 << (int) Math.floorMod(epochDay + 3, 7L))) == 0) return false; // 1970-01-01 was a Thursday
+        if (anyDate) return true;
+
+        // Civil date from epoch day (proleptic Gregorian, no allocation)
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+        return matchesDate(year, month, day);
+    }
+
+    private boolean matches(int year, int month, int day, int dayOfWeek, int minuteOfDay) {
+        if (minutes != null && (minutes[minuteOfDay >>> 6] & (1L << minuteOfDay)) == 0) return false;
+        if ((daysOfWeek & (1 << dayOfWeek)) == 0) return false;
+        return anyDate || matchesDate(year, month, day);
+    }
+
+    private boolean matchesDate(int year, int month, int day) {
+        if ((months & (1 << (month - 1))) == 0) return false;
+        if ((daysOfMonth & (1 << (day - 1))) == 0) return false;
+        if (years == null) return true;
+        int bit = year - MIN_YEAR;
+        return bit >= 0 && bit <= MAX_YEAR - MIN_YEAR && (years[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /** True if the filter places no restriction at all (e.g. ALL.ALL.ALL.ALL) */
+    public boolean acceptsAll() {
+        return anyDate && daysOfWeek == ALL_DAYS_OF_WEEK && minutes == null;
+    }
+
+    /** Minutes since 1970-01-01T00:00 of a local date-time, the unit used by {@link #matches(long)} */
+    public static long epochMinute(LocalDateTime dt) {
+        return dt.toLocalDate().toEpochDay() * MINUTES_PER_DAY + dt.getHour() * 60 + dt.getMinute();
     }
 
     public static TimeFilter parse(String expr) {
@@ -44,212 +99,173 @@ public class TimeFilter {
         String dayPart = parts.length > 2 ? parts[2] : "ALL";
         String hourPart = parts.length > 3 ? parts[3] : "ALL";
 
-        ValueRule<Integer> years = ValueRule.parseIntRule(yearPart);
-        ValueRule<Integer> months = ValueRule.parseMonthRule(monthPart);
-        ValueRule<Integer> daysOfMonth = ValueRule.parseDayOfMonthRule(dayPart);
-        ValueRule<DayOfWeek> daysOfWeek = ValueRule.parseDayOfWeekRule(dayPart);
-        HourRule hours = HourRule.parse(hourPart);
-        return new TimeFilter(years, months, daysOfMonth, daysOfWeek, hours);
+        long[] years = parseYears(yearPart);
+        int months = (int) parseMask(monthPart, 1, 12, true);
+        // The day part holds either weekday names or days of month
+        boolean weekdays = hasLetter(dayPart);
+        int daysOfMonth = weekdays ? ALL_DAYS_OF_MONTH : (int) parseMask(dayPart, 1, 31, false);
+        int daysOfWeek = weekdays ? parseDaysOfWeek(dayPart) : ALL_DAYS_OF_WEEK;
+        long[] minutes = parseMinutes(hourPart);
+        return new TimeFilter(years, months, daysOfMonth, daysOfWeek, minutes);
     }
 
-    /** Generic include/exclude rule */
-    public static class ValueRule<T> {
-        private final boolean allowAll;
-        private final Set<T> include;
-        private final Set<T> exclude;
-
-        public ValueRule(boolean allowAll, Set<T> include, Set<T> exclude) {
-            this.allowAll = allowAll;
-            this.include = include;
-            this.exclude = exclude;
-        }
-
-        public boolean test(T value) {
-            if (allowAll) {
-                return !exclude.contains(value);
-            }
-            boolean in = include.isEmpty() || include.contains(value);
-            if (!in) return false;
-            return !exclude.contains(value);
-        }
-
-        // Year: numbers or ranges
-        public static ValueRule<Integer> parseIntRule(String part) {
-            return parseIntRuleInternal(part, 1900, 3000);
-        }
-
-        // Months: names or numbers
-        public static ValueRule<Integer> parseMonthRule(String part) {
-            Map<String,Integer> map = monthMap();
-            return parseNumericWithNames(part, map, 1, 12);
-        }
-
-        // Days of month: 1-31
-        public static ValueRule<Integer> parseDayOfMonthRule(String part) {
-            if (part.matches(".*[A-Za-z].*")) {
-                // expression is probably day-of-week; accept all days-of-month
-                return new ValueRule<>(true, new HashSet<>(), new HashSet<>());
-            }
-            return parseNumericWithNames(part, Collections.emptyMap(), 1, 31);
-        }
+    // Include/exclude tokens: an empty include list means "everything not excluded"
 
-        // Days of week: Monday, Tue, etc.
-        public static ValueRule<DayOfWeek> parseDayOfWeekRule(String part) {
-            String p = part.trim();
-            if (p.equalsIgnoreCase("ALL")) return new ValueRule<>(true, new HashSet<>(), new HashSet<>());
-            Set<DayOfWeek> include = new HashSet<>();
-            Set<DayOfWeek> exclude = new HashSet<>();
-            for (String token : p.split(",")) {
-                String t = token.trim();
-                if (t.isEmpty()) continue;
-                boolean exc = t.toUpperCase().startsWith("EXCEPT ");
-                if (exc) t = t.substring(7).trim();
-                if (t.contains("-")) {
-                    String[] arr = t.split("-");
-                    DayOfWeek start = parseDayOfWeek(arr[0]);
-                    DayOfWeek end = parseDayOfWeek(arr[1]);
-                    for (DayOfWeek d = start; ; d = d.plus(1)) {
-                        (exc ? exclude : include).add(d);
-                        if (d == end) break;
-                    }
-                } else {
-                    DayOfWeek d = parseDayOfWeek(t);
-                    (exc ? exclude : include).add(d);
-                }
-            }
-            return new ValueRule<>(false, include, exclude);
+    private static long[] parseYears(String part) {
+        String p = part.trim();
+        if (p.equalsIgnoreCase("ALL")) return null;
+        int size = MAX_YEAR - MIN_YEAR + 1;
+        BitSet include = new BitSet(size);
+        BitSet exclude = new BitSet(size);
+        for (String token : p.split(",")) {
+            String t = token.trim();
+            if (t.isEmpty()) continue;
+            boolean exc = isExcept(t);
+            if (exc) t = t.substring(7).trim();
+            String[] arr = splitRange(t);
+            int start = toNumber(arr[0], false, MIN_YEAR, MAX_YEAR) - MIN_YEAR;
+            int end = toNumber(arr[1], false, MIN_YEAR, MAX_YEAR) - MIN_YEAR;
+            if (start > end) throw new IllegalArgumentException("Invalid year range: " + token);
+            (exc ? exclude : include).set(start, end + 1);
         }
+        if (include.isEmpty()) include.set(0, size);
+        include.andNot(exclude);
+        return Arrays.copyOf(include.toLongArray(), (size + 63) / 64);
+    }
 
-        private static ValueRule<Integer> parseNumericWithNames(String part, Map<String,Integer> nameMap, int min, int max) {
-            String p = part.trim();
-            if (p.equalsIgnoreCase("ALL")) return new ValueRule<>(true, new HashSet<>(), new HashSet<>());
-            Set<Integer> include = new HashSet<>();
-            Set<Integer> exclude = new HashSet<>();
-            for (String token : p.split(",")) {
-                String t = token.trim();
-                if (t.isEmpty()) continue;
-                boolean exc = t.toUpperCase().startsWith("EXCEPT ");
-                if (exc) t = t.substring(7).trim();
-                if (t.contains("-")) {
-                    String[] arr = t.split("-");
-                    int start = toNumber(arr[0], nameMap, min, max);
-                    int end = toNumber(arr[1], nameMap, min, max);
-                    for (int i = start; ; i++) {
-                        (exc ? exclude : include).add(i);
-                        if (i == end) break;
-                        if (i > max) break;
-                    }
-                } else {
-                    int v = toNumber(t, nameMap, min, max);
-                    (exc ? exclude : include).add(v);
-                }
+    private static long parseMask(String part, int min, int max, boolean monthNames) {
+        String p = part.trim();
+        long all = (1L << (max - min + 1)) - 1;
+        if (p.equalsIgnoreCase("ALL")) return all;
+        long include = 0, exclude = 0;
+        for (String token : p.split(",")) {
+            String t = token.trim();
+            if (t.isEmpty()) continue;
+            boolean exc = isExcept(t);
+            if (exc) t = t.substring(7).trim();
+            String[] arr = splitRange(t);
+            int start = toNumber(arr[0], monthNames, min, max);
+            int end = toNumber(arr[1], monthNames, min, max);
+            long bits = 0;
+            for (int i = start; ; i = i == max ? min : i + 1) {
+                bits |= 1L << (i - min);
+                if (i == end) break;
             }
-            return new ValueRule<>(false, include, exclude);
-        }
-
-        private static ValueRule<Integer> parseIntRuleInternal(String part, int min, int max) {
-            return parseNumericWithNames(part, Collections.emptyMap(), min, max);
+            if (exc) exclude |= bits; else include |= bits;
         }
+        if (include == 0) include = all;
+        return include & ~exclude;
+    }
 
-        private static int toNumber(String token, Map<String,Integer> map, int min, int max) {
+    private static int parseDaysOfWeek(String part) {
+        String p = part.trim();
+        if (p.equalsIgnoreCase("ALL")) return ALL_DAYS_OF_WEEK;
+        int include = 0, exclude = 0;
+        for (String token : p.split(",")) {
             String t = token.trim();
-            if (map.containsKey(t.toUpperCase())) return map.get(t.toUpperCase());
-            try {
-                int v = Integer.parseInt(t.replace(" ",""));
-                if (v < min || v > max) throw new IllegalArgumentException("Value out of range: " + v);
-                return v;
-            } catch (NumberFormatException ex) {
-                throw new IllegalArgumentException("Invalid number token: " + token);
+            if (t.isEmpty()) continue;
+            boolean exc = isExcept(t);
+            if (exc) t = t.substring(7).trim();
+            String[] arr = splitRange(t);
+            int start = parseDayOfWeek(arr[0]);
+            int end = parseDayOfWeek(arr[1]);
+            int bits = 0;
+            for (int d = start; ; d = (d + 1) % 7) {
+                bits |= 1 << d;
+                if (d == end) break;
             }
+            if (exc) exclude |= bits; else include |= bits;
         }
+        if (include == 0) include = ALL_DAYS_OF_WEEK;
+        return include & ~exclude;
+    }
 
-        private static DayOfWeek parseDayOfWeek(String token) {
-            String t = token.trim().toUpperCase();
-            if (t.startsWith("MON")) return DayOfWeek.MONDAY;
-            if (t.startsWith("TUE")) return DayOfWeek.TUESDAY;
-            if (t.startsWith("WED")) return DayOfWeek.WEDNESDAY;
-            if (t.startsWith("THU")) return DayOfWeek.THURSDAY;
-            if (t.startsWith("FRI")) return DayOfWeek.FRIDAY;
-            if (t.startsWith("SAT")) return DayOfWeek.SATURDAY;
-            if (t.startsWith("SUN")) return DayOfWeek.SUNDAY;
-            throw new IllegalArgumentException("Invalid day of week: " + token);
-        }
-
-        private static Map<String,Integer> monthMap() {
-            Map<String,Integer> m = new HashMap<>();
-            String[] names = {"JANUARY","FEBRUARY","MARCH","APRIL","MAY","JUNE","JULY","AUGUST","SEPTEMBER","OCTOBER","NOVEMBER","DECEMBER"};
-            for (int i=0;i<names.length;i++) {
-                m.put(names[i], i+1);
-                m.put(names[i].substring(0,3), i+1);
+    private static long[] parseMinutes(String part) {
+        String p = part.trim();
+        if (p.equalsIgnoreCase("ALL")) return null;
+        BitSet include = new BitSet(MINUTES_PER_DAY);
+        BitSet exclude = new BitSet(MINUTES_PER_DAY);
+        for (String token : p.split(",")) {
+            String t = token.trim();
+            if (t.isEmpty()) continue;
+            boolean exc = isExcept(t);
+            if (exc) t = t.substring(7).trim();
+            String[] arr = splitRange(t);
+            int start = parseMinuteOfDay(arr[0]);
+            int end = parseMinuteOfDay(arr[1]);
+            BitSet target = exc ? exclude : include;
+            if (start <= end) {
+                target.set(start, end + 1);
+            } else {
+                target.set(start, MINUTES_PER_DAY);
+                target.set(0, end + 1);
             }
-            return m;
         }
+        if (include.isEmpty()) include.set(0, MINUTES_PER_DAY);
+        include.andNot(exclude);
+        if (include.cardinality() == MINUTES_PER_DAY) return null;
+        return Arrays.copyOf(include.toLongArray(), (MINUTES_PER_DAY + 63) / 64);
     }
 
-    /** Hour ranges with allow/exclude semantics */
-    public static class HourRule {
-        private final boolean allowAll;
-        private final List<Range> include;
-        private final List<Range> exclude;
+    private static boolean isExcept(String token) {
+        return token.regionMatches(true, 0, "EXCEPT ", 0, 7);
+    }
 
-        public HourRule(boolean allowAll, List<Range> include, List<Range> exclude) {
-            this.allowAll = allowAll;
-            this.include = include;
-            this.exclude = exclude;
+    private static boolean hasLetter(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isLetter(s.charAt(i))) return true;
         }
+        return false;
+    }
 
-        public boolean test(LocalTime time) {
-            if (allowAll) {
-                return exclude.stream().noneMatch(r -> r.contains(time));
-            }
-            boolean inInclude = include.isEmpty() || include.stream().anyMatch(r -> r.contains(time));
-            if (!inInclude) return false;
-            return exclude.stream().noneMatch(r -> r.contains(time));
-        }
+    /** "a-b" -> {a, b}; "a" -> {a, a} */
+    private static String[] splitRange(String token) {
+        int dash = token.indexOf('-');
+        if (dash < 0) return new String[]{token, token};
+        return new String[]{token.substring(0, dash), token.substring(dash + 1)};
+    }
 
-        public static HourRule parse(String part) {
-            String p = part.trim();
-            if (p.equalsIgnoreCase("ALL")) return new HourRule(true, new ArrayList<>(), new ArrayList<>());
-            List<Range> inc = new ArrayList<>();
-            List<Range> exc = new ArrayList<>();
-            for (String token : p.split(",")) {
-                String t = token.trim();
-                if (t.isEmpty()) continue;
-                boolean isExc = t.toUpperCase().startsWith("EXCEPT ");
-                if (isExc) t = t.substring(7).trim();
-                Range r = parseRange(t);
-                (isExc ? exc : inc).add(r);
+    private static int toNumber(String token, boolean monthNames, int min, int max) {
+        String t = token.trim().toUpperCase();
+        if (monthNames) {
+            for (int i = 0; i < MONTH_NAMES.length; i++) {
+                if (t.equals(MONTH_NAMES[i]) || t.equals(MONTH_NAMES[i].substring(0, 3))) return i + 1;
             }
-            return new HourRule(false, inc, exc);
         }
-
-        private static Range parseRange(String token) {
-            if (!token.contains("-")) {
-                LocalTime t = parseTime(token);
-                return new Range(t, t);
-            }
-            String[] arr = token.split("-");
-            LocalTime start = parseTime(arr[0]);
-            LocalTime end = parseTime(arr[1]);
-            return new Range(start, end);
+        try {
+            int v = Integer.parseInt(t.replace(" ",""));
+            if (v < min || v > max) throw new IllegalArgumentException("Value out of range: " + v);
+            return v;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid number token: " + token);
         }
+    }
 
-        private static LocalTime parseTime(String t) {
-            String s = t.trim();
-            if (s.contains(":")) return LocalTime.parse(s.length() == 4 ? "0" + s : s);
-            int h = Integer.parseInt(s);
-            return LocalTime.of(h, 0);
-        }
+    /** Monday = 0 ... Sunday = 6 */
+    private static int parseDayOfWeek(String token) {
+        String t = token.trim().toUpperCase();
+        if (t.startsWith("MON")) return 0;
+        if (t.startsWith("TUE")) return 1;
+        if (t.startsWith("WED")) return 2;
+        if (t.startsWith("THU")) return 3;
+        if (t.startsWith("FRI")) return 4;
+        if (t.startsWith("SAT")) return 5;
+        if (t.startsWith("SUN")) return 6;
+        throw new IllegalArgumentException("Invalid day of week: " + token);
+    }
 
-        public static class Range {
-            private final LocalTime start;
-            private final LocalTime end;
-            public Range(LocalTime start, LocalTime end) {
-                this.start = start; this.end = end;
-            }
-            public boolean contains(LocalTime t) {
-                return !t.isBefore(start) && !t.isAfter(end);
-            }
+    /** "8", "8:30" or "08:30" -> minute of day; "24:00" is accepted as the last minute */
+    private static int parseMinuteOfDay(String token) {
+        String s = token.trim();
+        int colon = s.indexOf(':');
+        try {
+            int h = Integer.parseInt(colon < 0 ? s : s.substring(0, colon));
+            int m = colon < 0 ? 0 : Integer.parseInt(s.substring(colon + 1));
+            if (h == 24 && m == 0) return MINUTES_PER_DAY - 1;
+            if (h < 0 || h > 23 || m < 0 || m > 59) throw new IllegalArgumentException("Invalid time: " + token);
+            return h * 60 + m;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid time: " + token);
         }
     }
 }
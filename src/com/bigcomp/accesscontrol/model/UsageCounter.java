@@ -0,0 +1,29 @@
+package com.bigcomp.accesscontrol.model;
+
+import java.time.LocalDate;
+
+/** Row of the UsageCounters table: uses of a resource group by a badge on its last usage day */
+public class UsageCounter {
+    private String badgeId;
+    private String groupName;
+    private int usageCount;
+    private LocalDate lastUsageDate;
+
+    public UsageCounter() {}
+
+    public UsageCounter(String badgeId, String groupName, int usageCount, LocalDate lastUsageDate) {
+        this.badgeId = badgeId;
+        this.groupName = groupName;
+        this.usageCount = usageCount;
+        this.lastUsageDate = lastUsageDate;
+    }
+
+    public String getBadgeId() { return badgeId; }
+    public void setBadgeId(String badgeId) { this.badgeId = badgeId; }
+    public String getGroupName() { return groupName; }
+    public void setGroupName(String groupName) { this.groupName = groupName; }
+    public int getUsageCount() { return usageCount; }
+    public void setUsageCount(int usageCount) { this.usageCount = usageCount; }
+    public LocalDate getLastUsageDate() { return lastUsageDate; }
+    public void setLastUsageDate(LocalDate lastUsageDate) { this.lastUsageDate = lastUsageDate; }
+}
@@ -0,0 +1,18 @@
+package com.bigcomp.accesscontrol.model;
+
+/**
+ * Zone of the site. Zones nest through their parent (site -> building -> floor -> room);
+ * a zone without a parent is a root.
+ */
+public class Zone {
+    private String zoneId;
+    private String description;
+    private String parentZoneId;
+
+    public String getZoneId() { return zoneId; }
+    public void setZoneId(String zoneId) { this.zoneId = zoneId; }
+    public String getDescription() { return description; }
+    public void setDescription(String description) { this.description = description; }
+    public String getParentZoneId() { return parentZoneId; }
+    public void setParentZoneId(String parentZoneId) { this.parentZoneId = parentZoneId; }
+}
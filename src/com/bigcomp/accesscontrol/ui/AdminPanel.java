@@ -28,16 +28,19 @@ public class AdminPanel extends JPanel {
         // Control buttons
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         JButton revokeBtn = new JButton("Revoke Selected");
+        JButton reinstateBtn = new JButton("Reinstate Selected");
         JButton markUpdateBtn = new JButton("Mark For Update");
         JButton processUpdateBtn = new JButton("Process Update");
         JButton refreshBtn = new JButton("Refresh");
         
         revokeBtn.addActionListener(e -> onRevokeBadge());
+        reinstateBtn.addActionListener(e -> onReinstateBadge());
         markUpdateBtn.addActionListener(e -> onMarkForUpdate());
         processUpdateBtn.addActionListener(e -> onProcessUpdate());
         refreshBtn.addActionListener(e -> loadBadges());
         
         buttonPanel.add(revokeBtn);
+        buttonPanel.add(reinstateBtn);
         buttonPanel.add(markUpdateBtn);
         buttonPanel.add(processUpdateBtn);
         buttonPanel.add(refreshBtn);
@@ -76,6 +79,25 @@ public class AdminPanel extends JPanel {
         }
     }
 
+    private void onReinstateBadge() {
+        int row = table.getSelectedRow();
+        if (row < 0) {
+            JOptionPane.showMessageDialog(this, "Please select a badge");
+            return;
+        }
+
+        String badgeId = (String) tableModel.getValueAt(row, 0);
+        int confirm = JOptionPane.showConfirmDialog(this, "Reinstate badge " + badgeId + "?");
+        if (confirm == JOptionPane.YES_OPTION) {
+            if (db.reinstateBadge(badgeId)) {
+                JOptionPane.showMessageDialog(this, "Badge reinstated");
+                loadBadges();
+            } else {
+                JOptionPane.showMessageDialog(this, "Failed to reinstate badge");
+            }
+        }
+    }
+
     private void onMarkForUpdate() {
         int row = table.getSelectedRow();
         if (row < 0) {
@@ -86,7 +108,7 @@ public class AdminPanel extends JPanel {
         String badgeId = (String) tableModel.getValueAt(row, 0);
         Optional<Badge> obadge = db.findBadge(badgeId);
         if (obadge.isPresent()) {
-            Badge badge = obadge.get();
+            Badge badge = obadge.get().copy();
             badge.setRequiresUpdate(true);
             java.time.LocalDateTime now = java.time.LocalDateTime.now();
             badge.setUpdateDueDate(now.plusDays(1));
@@ -108,7 +130,7 @@ public class AdminPanel extends JPanel {
         String badgeId = (String) tableModel.getValueAt(row, 0);
         Optional<Badge> obadge = db.findBadge(badgeId);
         if (obadge.isPresent()) {
-            Badge badge = obadge.get();
+            Badge badge = obadge.get().copy();
             if (!badge.isRequiresUpdate()) {
                 JOptionPane.showMessageDialog(this, "Badge does not require update");
                 return;
@@ -1,6 +1,11 @@
 package com.bigcomp.accesscontrol.ui;
 
 import com.bigcomp.accesscontrol.log.CSVLogger;
+import com.bigcomp.accesscontrol.log.CsvParser;
+import com.bigcomp.accesscontrol.log.LogArchive;
+import com.bigcomp.accesscontrol.log.LogIndex;
+import com.bigcomp.accesscontrol.log.LogRollup;
+import com.bigcomp.accesscontrol.log.LogScanner;
 
 import javax.swing.*;
 import java.awt.*;
@@ -9,6 +14,7 @@ import java.nio.file.*;
 import java.time.YearMonth;
 import java.util.*;
 import java.util.List;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
 /**
@@ -17,38 +23,18 @@ import java.util.stream.Collectors;
 public class CSVReportsPanel extends JPanel {
     private CSVLogger csvLogger;
     private JTable logsTable;
-    private javax.swing.table.DefaultTableModel tableModel;
+    private LogTableModel tableModel;
     private JComboBox<String> yearBox, monthBox, dayBox;
     private JTextField badgeIdSearchField, resourceIdSearchField, userNameSearchField;
     private JComboBox<String> resultFilterBox;
     private JButton loadBtn, searchBtn, exportBtn, statsBtn;
-    private List<LogRecord> allLoadedRecords;
-
-    private static class LogRecord {
-        String date, dayOfWeek, time, badgeCode, readerCode, resourceId, userId, userName, result;
-
-        LogRecord(String[] parts) {
-            if (parts.length >= 9) {
-                date = parts[0];
-                dayOfWeek = parts[1];
-                time = parts[2];
-                badgeCode = parts[3];
-                readerCode = parts[4];
-                resourceId = parts[5];
-                userId = parts[6];
-                userName = parts[7];
-                result = parts[8];
-            }
-        }
-
-        Object[] toRow() {
-            return new Object[]{date, dayOfWeek, time, badgeCode, readerCode, resourceId, userId, userName, result};
-        }
-    }
+    private final TaskStatusBar status = new TaskStatusBar();
+    private final LogScanner scanner = new LogScanner();
+    private int sortColumn = -1;
+    private boolean sortAscending;
 
     public CSVReportsPanel(CSVLogger csvLogger) {
         this.csvLogger = csvLogger;
-        this.allLoadedRecords = new ArrayList<>();
         setLayout(new BorderLayout());
 
         // Top: Filter panel
@@ -131,153 +117,288 @@ public class CSVReportsPanel extends JPanel {
         add(filterPanel, BorderLayout.NORTH);
 
         // Middle: Table
-        String[] cols = {"日期", "周几", "时间", "徽章代码", "读卡器代码", "资源ID", "用户ID", "用户名", "结果"};
-        tableModel = new javax.swing.table.DefaultTableModel(cols, 0) {
+        // Rows stay on disk; the model reads the visible pages
+        tableModel = new LogTableModel();
+        logsTable = new JTable(tableModel);
+        logsTable.getTableHeader().addMouseListener(new java.awt.event.MouseAdapter() {
             @Override
-            public boolean isCellEditable(int row, int column) {
-                return false; // Read-only
+            public void mouseClicked(java.awt.event.MouseEvent e) {
+                int col = logsTable.convertColumnIndexToModel(logsTable.columnAtPoint(e.getPoint()));
+                if (col >= 0) sortBy(col);
             }
-        };
-        logsTable = new JTable(tableModel);
+        });
         logsTable.setDefaultRenderer(Object.class, new LogTableRenderer());
         add(new JScrollPane(logsTable), BorderLayout.CENTER);
+        add(status, BorderLayout.SOUTH);
+    }
+
+    /** Builds a result set; runs off the EDT. */
+    private interface ScanJob {
+        LogTableModel.Rows run(BooleanSupplier cancelled, LogTableModel.ScanProgress progress) throws IOException;
+    }
+
+    /** One progress report of a running scan. */
+    private static class ScanUpdate {
+        final LogTableModel.Rows leading;
+        final int filesDone;
+        final long bytesDone;
+
+        ScanUpdate(LogTableModel.Rows leading, int filesDone, long bytesDone) {
+            this.leading = leading;
+            this.filesDone = filesDone;
+            this.bytesDone = bytesDone;
+        }
+    }
+
+    /**
+     * Runs a scan in the background and streams rows of the files finished so far into the
+     * table, with progress and throughput in the status bar. Starting another task through the
+     * status bar cancels this one; the scanner stops within a block of rows.
+     */
+    private class ScanWorker extends SwingWorker<LogTableModel.Rows, ScanUpdate> {
+        private final String what;
+        private final List<File> files;
+        private final boolean stream;
+        private final ScanJob job;
+        private final java.util.function.Consumer<LogTableModel.Rows> onDone;
+        private final long started = System.nanoTime();
+        private volatile long totalBytes;
+
+        ScanWorker(String what, List<File> files, boolean stream, ScanJob job,
+                   java.util.function.Consumer<LogTableModel.Rows> onDone) {
+            this.what = what;
+            this.files = files;
+            this.stream = stream;
+            this.job = job;
+            this.onDone = onDone;
+        }
+
+        @Override
+        protected LogTableModel.Rows doInBackground() throws IOException {
+            long total = 0;
+            for (File f : files) total += f.length();
+            totalBytes = total;
+            return job.run(this::isCancelled, (leading, filesDone, bytesDone) ->
+                    publish(new ScanUpdate(leading, filesDone, bytesDone)));
+        }
+
+        @Override
+        protected void process(List<ScanUpdate> updates) {
+            if (!status.isCurrent(this)) return;
+            ScanUpdate u = updates.get(updates.size() - 1);
+            if (stream) tableModel.appendRows(u.leading);
+            double secs = Math.max(1e-3, (System.nanoTime() - started) / 1e9);
+            int percent = totalBytes == 0 ? -1 : (int) (u.bytesDone * 100 / totalBytes);
+            status.update(percent, String.format("%s中: %d/%d 个文件, %d 条记录, %.1f MB/s",
+                    what, u.filesDone, files.size(), u.leading.size(), u.bytesDone / 1e6 / secs));
+        }
+
+        @Override
+        protected void done() {
+            if (!status.isCurrent(this)) return;
+            try {
+                LogTableModel.Rows rows = get();
+                onDone.accept(rows);
+                status.finish(this, String.format("%s完成: %d 条记录 (%d ms)",
+                        what, rows.size(), (System.nanoTime() - started) / 1_000_000));
+            } catch (Exception e) {
+                Throwable cause = e instanceof java.util.concurrent.ExecutionException ? e.getCause() : e;
+                cause.printStackTrace();
+                status.finish(this, what + "错误: " + cause.getMessage());
+                JOptionPane.showMessageDialog(CSVReportsPanel.this, what + "错误: " + cause.getMessage());
+            }
+        }
     }
 
     private void loadCSVLogs() {
-        tableModel.setRowCount(0);
-        allLoadedRecords.clear();
+        List<File> csvFiles = selectedFiles();
+        if (csvFiles == null) return;
+        tableModel.clear();
+        sortColumn = -1;
+
+        // Files are scanned in parallel; only row refs are kept
+        LogScanner.RowFilter day = dayFilter();
+        ScanWorker worker = new ScanWorker("加载", csvFiles, true, (cancelled, progress) ->
+                LogTableModel.Rows.scan(scanner, csvFiles, Collections.emptyMap(),
+                        r -> r.size() >= 9 && day.accept(r), cancelled, progress),
+                tableModel::appendRows);
+        status.start(worker, "加载中...");
+    }
+
+    /** Sorts the shown rows by a column; clicking the same column again reverses the order. */
+    private void sortBy(int column) {
+        if (tableModel.getRowCount() == 0) return;
+        sortAscending = column != sortColumn || !sortAscending;
+        sortColumn = column;
+        LogTableModel.Rows rows = tableModel.getRows();
+        boolean ascending = sortAscending;
+        ScanWorker worker = new ScanWorker("排序", rows.files(), false,
+                (cancelled, progress) -> rows.sortedBy(scanner, column, ascending, cancelled),
+                tableModel::setRows);
+        status.start(worker, "排序中...");
+    }
 
+    /** Rows of the selected day only, for month archives which hold the whole month. */
+    private LogScanner.RowFilter dayFilter() {
+        String month = (String) monthBox.getSelectedItem();
+        String day = (String) dayBox.getSelectedItem();
+        if (day.equals("全部") || month.equals("全部")) return LogScanner.RowFilter.ALL;
+        String date = yearBox.getSelectedItem() + "-" + month + "-" + day;
+        return r -> date.equals(r.get(0));
+    }
+
+    /** Day CSVs and month archives matching the year/month/day selection; null (after telling the user) if the year has none. */
+    private List<File> selectedFiles() {
         String year = (String) yearBox.getSelectedItem();
         String month = (String) monthBox.getSelectedItem();
         String day = (String) dayBox.getSelectedItem();
 
-        String baseDir = csvLogger.getBaseDir();
-        try {
-            File yearDir = new File(baseDir, year);
-            if (!yearDir.exists()) {
-                JOptionPane.showMessageDialog(this, "未找到 " + year + " 的日志");
-                return;
-            }
+        File yearDir = new File(csvLogger.getBaseDir(), year);
+        if (!yearDir.exists()) {
+            JOptionPane.showMessageDialog(this, "未找到 " + year + " 的日志");
+            return null;
+        }
 
-            List<File> csvFiles = new ArrayList<>();
-            File[] monthDirs = yearDir.listFiles(File::isDirectory);
-            if (monthDirs != null) {
-                for (File monthDir : monthDirs) {
-                    String monthName = monthDir.getName();
-                    if (month.equals("全部") || monthName.startsWith(month + "_")) {
-                        File[] csvs = monthDir.listFiles((d) -> d.getName().endsWith(".csv"));
-                        if (csvs != null) {
-                            for (File f : csvs) {
-                                String fname = f.getName().replace(".csv", "");
-                                if (day.equals("全部") || fname.equals(year + "-" + month + "-" + day)) {
-                                    csvFiles.add(f);
-                                }
+        List<File> csvFiles = new ArrayList<>();
+        File[] monthDirs = yearDir.listFiles(File::isDirectory);
+        if (monthDirs != null) {
+            for (File monthDir : monthDirs) {
+                String monthName = monthDir.getName();
+                if (month.equals("全部") || monthName.startsWith(month + "_")) {
+                    File[] csvs = monthDir.listFiles((d) -> d.getName().endsWith(".csv") || LogArchive.isArchive(d));
+                    if (csvs != null) {
+                        for (File f : csvs) {
+                            String fname = f.getName().replace(".csv", "");
+                            // a month archive holds every day; dayFilter() picks the day out of it
+                            if (day.equals("全部") || LogArchive.isArchive(f) || fname.equals(year + "-" + month + "-" + day)) {
+                                csvFiles.add(f);
                             }
                         }
                     }
                 }
             }
-
-            for (File f : csvFiles) {
-                parseCSVFile(f);
-            }
-
-            JOptionPane.showMessageDialog(this, "加载完成: " + allLoadedRecords.size() + " 条记录");
-        } catch (Exception e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "加载错误: " + e.getMessage());
-        }
-    }
-
-    private void parseCSVFile(File f) {
-        try (BufferedReader br = new BufferedReader(new FileReader(f))) {
-            String line;
-            boolean first = true;
-            while ((line = br.readLine()) != null) {
-                if (first) {
-                    first = false;
-                    continue; // skip header
-                }
-                String[] parts = line.split(",");
-                if (parts.length >= 9) {
-                    LogRecord rec = new LogRecord(parts);
-                    allLoadedRecords.add(rec);
-                    tableModel.addRow(rec.toRow());
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        csvFiles.sort(Comparator.comparing(File::getName));
+        return csvFiles;
     }
 
+    /**
+     * Searches every day file of the selected period through its sidecar index: criteria are
+     * matched against the index dictionaries and only the matching rows are read from the CSV.
+     */
     private void performSearch() {
-        String badgeId = badgeIdSearchField.getText().trim().toLowerCase();
-        String resourceId = resourceIdSearchField.getText().trim().toLowerCase();
-        String userName = userNameSearchField.getText().trim().toLowerCase();
+        String badgeId = badgeIdSearchField.getText().trim();
+        String resourceId = resourceIdSearchField.getText().trim();
+        String userName = userNameSearchField.getText().trim();
         String result = (String) resultFilterBox.getSelectedItem();
 
-        tableModel.setRowCount(0);
-
-        for (LogRecord rec : allLoadedRecords) {
-            boolean matches = true;
-
-            if (!badgeId.isEmpty() && !rec.badgeCode.toLowerCase().contains(badgeId)) {
-                matches = false;
-            }
-            if (!resourceId.isEmpty() && !rec.resourceId.toLowerCase().contains(resourceId)) {
-                matches = false;
-            }
-            if (!userName.isEmpty() && !rec.userName.toLowerCase().contains(userName)) {
-                matches = false;
-            }
-            if (!"全部".equals(result) && !rec.result.equals(result)) {
-                matches = false;
-            }
-
-            if (matches) {
-                tableModel.addRow(rec.toRow());
+        List<File> csvFiles = selectedFiles();
+        if (csvFiles == null) return;
+        tableModel.clear();
+        sortColumn = -1;
+
+        LogScanner.RowFilter day = dayFilter();
+        String b = badgeId.toLowerCase();
+        String res = resourceId.toLowerCase();
+        String user = userName.toLowerCase();
+        ScanWorker worker = new ScanWorker("搜索", csvFiles, true, (cancelled, progress) -> {
+            // Day CSVs are answered from their sidecar index; month archives have none, so their
+            // dictionary-encoded columns are scanned with the same criteria instead
+            Map<File, long[]> indexed = new HashMap<>();
+            for (File f : csvFiles) {
+                if (cancelled.getAsBoolean()) break;
+                if (LogArchive.isArchive(f)) continue;
+                LogIndex index = LogIndex.forFile(f);
+                BitSet rows = index.allRows();
+                if (!badgeId.isEmpty()) rows.and(index.matchContains(LogIndex.Field.BADGE, badgeId));
+                if (!resourceId.isEmpty()) rows.and(index.matchContains(LogIndex.Field.RESOURCE, resourceId));
+                if (!userName.isEmpty()) rows.and(index.matchContains(LogIndex.Field.USER_NAME, userName));
+                if (!"全部".equals(result)) rows.and(index.matchExact(LogIndex.Field.RESULT, result));
+                indexed.put(f, index.offsetsOf(rows));
             }
-        }
-
-        JOptionPane.showMessageDialog(this, "搜索完成: " + tableModel.getRowCount() + " 条匹配记录");
+            return LogTableModel.Rows.scan(scanner, csvFiles, indexed, r -> r.size() >= 9 && day.accept(r)
+                    && (b.isEmpty() || r.get(3).toLowerCase().contains(b))
+                    && (res.isEmpty() || r.get(5).toLowerCase().contains(res))
+                    && (user.isEmpty() || r.get(7).toLowerCase().contains(user))
+                    && ("全部".equals(result) || result.equals(r.get(8))), cancelled, progress);
+        }, tableModel::appendRows);
+        status.start(worker, "搜索中...");
     }
 
+    /**
+     * Statistics of the selected period, summed from the day rollups that {@link CSVLogger}
+     * keeps as it writes; no log rows are read.
+     */
     private void showStatistics() {
-        if (allLoadedRecords.isEmpty()) {
-            JOptionPane.showMessageDialog(this, "请先加载日志");
-            return;
-        }
+        List<File> files = selectedFiles();
+        if (files == null) return;
+        String month = (String) monthBox.getSelectedItem();
+        String day = (String) dayBox.getSelectedItem();
+        String date = day.equals("全部") || month.equals("全部") ? null : yearBox.getSelectedItem() + "-" + month + "-" + day;
+
+        SwingWorker<LogRollup, Void> worker = new SwingWorker<LogRollup, Void>() {
+            @Override
+            protected LogRollup doInBackground() throws IOException {
+                LogRollup sum = LogRollup.empty();
+                for (File f : files) {
+                    if (isCancelled()) break;
+                    if (!LogArchive.isArchive(f)) {
+                        sum.addAll(csvLogger.rollupFor(f));
+                        continue;
+                    }
+                    for (Map.Entry<java.time.LocalDate, LogRollup> e : LogRollup.forArchive(f).entrySet()) {
+                        if (date == null || date.equals(e.getKey().toString())) sum.addAll(e.getValue());
+                    }
+                }
+                return sum;
+            }
 
-        // Count by result
-        long granted = allLoadedRecords.stream().filter(r -> "GRANTED".equals(r.result)).count();
-        long denied = allLoadedRecords.stream().filter(r -> "DENIED".equals(r.result)).count();
+            @Override
+            protected void done() {
+                if (!status.isCurrent(this)) return;
+                LogRollup st;
+                try {
+                    st = get();
+                } catch (Exception e) {
+                    Throwable cause = e instanceof java.util.concurrent.ExecutionException ? e.getCause() : e;
+                    cause.printStackTrace();
+                    status.finish(this, "统计错误: " + cause.getMessage());
+                    return;
+                }
+                status.finish(this, " ");
+                if (st.total() == 0) {
+                    JOptionPane.showMessageDialog(CSVReportsPanel.this, "所选时间段没有日志");
+                    return;
+                }
+                long[] hours = st.series(LogRollup.Resolution.HOUR, LogRollup.Result.GRANTED);
+                long[] denied = st.series(LogRollup.Resolution.HOUR, LogRollup.Result.DENIED);
+                int peak = 0;
+                for (int h = 1; h < hours.length; h++) {
+                    if (hours[h] + denied[h] > hours[peak] + denied[peak]) peak = h;
+                }
 
-        // Top badges
-        Map<String, Long> badgeCounts = allLoadedRecords.stream()
-            .collect(Collectors.groupingBy(r -> r.badgeCode, Collectors.counting()));
-        String topBadges = badgeCounts.entrySet().stream()
-            .sorted((a, b) -> Long.compare(b.getValue(), a.getValue()))
-            .limit(5)
-            .map(e -> e.getKey() + ": " + e.getValue())
-            .collect(Collectors.joining("\n"));
+                String stats = String.format(
+                    "总记录数: %d\n授予访问: %d\n拒绝访问: %d\n高峰时段: %02d:00 (%d)\n\n" +
+                    "访问最频繁的徽章:\n%s\n\n" +
+                    "访问最频繁的资源:\n%s\n\n" +
+                    "访问最频繁的读卡器:\n%s\n\n" +
+                    "授权最多的组:\n%s",
+                    st.total(), st.total(LogRollup.Result.GRANTED), st.total(LogRollup.Result.DENIED),
+                    peak, hours[peak] + denied[peak],
+                    top(st, LogRollup.Dimension.BADGE, null), top(st, LogRollup.Dimension.RESOURCE, null),
+                    top(st, LogRollup.Dimension.READER, null), top(st, LogRollup.Dimension.GROUP, LogRollup.Result.GRANTED)
+                );
+
+                JOptionPane.showMessageDialog(CSVReportsPanel.this, stats, "访问统计", JOptionPane.INFORMATION_MESSAGE);
+            }
+        };
+        status.start(worker, "统计中...");
+    }
 
-        // Top resources
-        Map<String, Long> resourceCounts = allLoadedRecords.stream()
-            .collect(Collectors.groupingBy(r -> r.resourceId, Collectors.counting()));
-        String topResources = resourceCounts.entrySet().stream()
-            .sorted((a, b) -> Long.compare(b.getValue(), a.getValue()))
-            .limit(5)
+    private static String top(LogRollup rollup, LogRollup.Dimension dimension, LogRollup.Result result) {
+        return rollup.top(dimension, result, 5).stream()
             .map(e -> e.getKey() + ": " + e.getValue())
             .collect(Collectors.joining("\n"));
-
-        String stats = String.format(
-            "总记录数: %d\n授予访问: %d\n拒绝访问: %d\n\n" +
-            "访问最频繁的徽章:\n%s\n\n" +
-            "访问最频繁的资源:\n%s",
-            allLoadedRecords.size(), granted, denied, topBadges, topResources
-        );
-
-        JOptionPane.showMessageDialog(this, stats, "访问统计", JOptionPane.INFORMATION_MESSAGE);
     }
 
     private void exportToCSV() {
@@ -290,25 +411,56 @@ public class CSVReportsPanel extends JPanel {
         fileChooser.setSelectedFile(new java.io.File("访问控制报表.csv"));
         if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            try (FileWriter fw = new FileWriter(file)) {
-                // Write header
-                String[] cols = {"日期", "周几", "时间", "徽章代码", "读卡器代码", "资源ID", "用户ID", "用户名", "结果"};
-                fw.write(String.join(",", cols) + "\n");
-
-                // Write data rows
-                for (int i = 0; i < tableModel.getRowCount(); i++) {
-                    String[] row = new String[cols.length];
-                    for (int j = 0; j < cols.length; j++) {
-                        Object val = tableModel.getValueAt(i, j);
-                        row[j] = val != null ? val.toString() : "";
+            LogTableModel.Rows rows = tableModel.getRows();
+            // Rows are read back from the log files page by page, off the EDT
+            SwingWorker<Void, Integer> worker = new SwingWorker<Void, Integer>() {
+                @Override
+                protected Void doInBackground() throws IOException {
+                    try (Writer fw = new BufferedWriter(new FileWriter(file))) {
+                        // Write header
+                        String[] cols = LogTableModel.COLUMNS;
+                        fw.write(String.join(",", cols) + "\n");
+
+                        // Write data rows, quoting values that contain commas or quotes
+                        StringBuilder sb = new StringBuilder();
+                        for (int from = 0; from < rows.size() && !isCancelled(); from += 4096) {
+                            for (String[] row : LogTableModel.readRows(rows, from, 4096)) {
+                                sb.setLength(0);
+                                for (int j = 0; j < cols.length; j++) {
+                                    String val = j < row.length ? row[j] : null;
+                                    if (j > 0) sb.append(',');
+                                    CsvParser.appendField(sb, val != null ? val : "");
+                                }
+                                fw.write(sb.append('\n').toString());
+                            }
+                            publish(Math.min(rows.size(), from + 4096));
+                        }
                     }
-                    fw.write(String.join(",", row) + "\n");
+                    return null;
                 }
 
-                JOptionPane.showMessageDialog(this, "导出成功: " + file.getAbsolutePath());
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, "导出失败: " + e.getMessage());
-            }
+                @Override
+                protected void process(List<Integer> written) {
+                    if (!status.isCurrent(this)) return;
+                    int n = written.get(written.size() - 1);
+                    status.update((int) (n * 100L / rows.size()), "导出中: " + n + "/" + rows.size());
+                }
+
+                @Override
+                protected void done() {
+                    if (!status.isCurrent(this)) return;
+                    try {
+                        get();
+                        status.finish(this, "导出成功: " + file.getAbsolutePath());
+                        JOptionPane.showMessageDialog(CSVReportsPanel.this, "导出成功: " + file.getAbsolutePath());
+                    } catch (Exception e) {
+                        Throwable cause = e instanceof java.util.concurrent.ExecutionException ? e.getCause() : e;
+                        status.finish(this, "导出失败: " + cause.getMessage());
+                        JOptionPane.showMessageDialog(CSVReportsPanel.this, "导出失败: " + cause.getMessage());
+                    }
+                }
+            };
+            status.start(worker, "导出中...");
         }
     }
 
@@ -2,6 +2,7 @@ package com.bigcomp.accesscontrol.ui;
 
 import com.bigcomp.accesscontrol.sim.Simulator;
 import com.bigcomp.accesscontrol.db.DB;
+import com.bigcomp.accesscontrol.db.RecentAccessWindow;
 
 import javax.swing.*;
 import java.awt.*;
@@ -11,6 +12,7 @@ public class ControlPanel extends JPanel {
     private JTextArea logArea = new JTextArea();
     private Simulator sim;
     private DB db;
+    private RecentAccessWindow recent;
 
     private JComboBox<String> badgeBox = new JComboBox<>();
     private JComboBox<String> readerBox = new JComboBox<>();
@@ -19,8 +21,8 @@ public class ControlPanel extends JPanel {
     private JSlider speedSlider = new JSlider(200,2000,1000);
     private JComboBox<String> groupBox = new JComboBox<>();
 
-    public ControlPanel(DB db, Simulator sim, MapPanel mapPanel) {
-        this.db = db; this.sim = sim;
+    public ControlPanel(DB db, Simulator sim, MapPanel mapPanel, RecentAccessWindow recent) {
+        this.db = db; this.sim = sim; this.recent = recent;
         setLayout(new BorderLayout());
         logArea.setEditable(false);
         add(new JScrollPane(logArea), BorderLayout.CENTER);
@@ -66,6 +68,22 @@ public class ControlPanel extends JPanel {
         manual.add(update);
         bottom.add(manual);
 
+        // Recent activity of the selected badge or reader, straight from the in-memory window
+        JPanel history = new JPanel();
+        JButton badgeHistory = new JButton("Badge History");
+        badgeHistory.addActionListener(e -> {
+            String b = (String) badgeBox.getSelectedItem();
+            if (b != null) showHistory("Badge " + b, recent.recentForBadge(b, HISTORY_LIMIT));
+        });
+        JButton readerHistory = new JButton("Reader History");
+        readerHistory.addActionListener(e -> {
+            String r = (String) readerBox.getSelectedItem();
+            if (r != null) showHistory("Reader " + r, recent.recentForReader(r, HISTORY_LIMIT));
+        });
+        history.add(badgeHistory);
+        history.add(readerHistory);
+        bottom.add(history);
+
         JPanel auto = new JPanel();
         auto.add(autoBtn);
         autoBtn.addActionListener(e -> {
@@ -92,6 +110,21 @@ public class ControlPanel extends JPanel {
         add(bottom, BorderLayout.SOUTH);
     }
 
+    private static final int HISTORY_LIMIT = 200;
+
+    private void showHistory(String title, java.util.List<com.bigcomp.accesscontrol.model.AccessLog> logs) {
+        var model = new javax.swing.table.DefaultTableModel(new String[]{"Time","Badge","Reader","Resource","Result","Message"}, 0) {
+            @Override public boolean isCellEditable(int r, int c) { return false; }
+        };
+        for (var l : logs) {
+            model.addRow(new Object[]{l.getTimestamp(), l.getBadgeId(), l.getReaderId(), l.getResourceId(), l.getResult(), l.getMessage()});
+        }
+        JScrollPane pane = new JScrollPane(new JTable(model));
+        pane.setPreferredSize(new Dimension(800, 300));
+        JOptionPane.showMessageDialog(this, pane, title + " since " + recent.getCoverageStart().withNano(0)
+                + " (" + logs.size() + ")", JOptionPane.PLAIN_MESSAGE);
+    }
+
     private void toggleGroup(boolean controlled) {
         String g = (String) groupBox.getSelectedItem();
         if (g == null) return;
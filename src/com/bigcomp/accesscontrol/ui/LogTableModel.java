@@ -0,0 +1,329 @@
+package com.bigcomp.accesscontrol.ui;
+
+import com.bigcomp.accesscontrol.log.LogRow;
+import com.bigcomp.accesscontrol.log.LogScanner;
+
+import javax.swing.table.AbstractTableModel;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Table model over access log rows that stay on disk. It holds only a file number and a row
+ * ref (CSV byte offset or archive block/row) per row, in primitive arrays; cell values are read
+ * a page at a time when the table asks for them and kept in a small LRU page cache.
+ * Filtering happens in the scan that builds the {@link Rows}; sorting runs through the scanner
+ * too, which reads the sort column of every row and orders the refs.
+ */
+public class LogTableModel extends AbstractTableModel {
+    public static final String[] COLUMNS = {"日期", "周几", "时间", "徽章代码", "读卡器代码", "资源ID", "用户ID", "用户名", "结果"};
+    private static final int PAGE_ROWS = 256;
+    private static final int MAX_PAGES = 64;
+
+    /** Refs of a result set, grouped by file in file order, plus an optional sorted view order. */
+    public static final class Rows {
+        static final Rows EMPTY = new Rows(Collections.emptyList(), new long[0][], null);
+
+        final List<File> files;
+        final long[][] refs;      // refs[file][k]
+        final int[] fileStart;    // first row number of each file
+        final int size;
+        final int[] order;        // view row -> row number; null keeps file order
+
+        Rows(List<File> files, long[][] refs, int[] order) {
+            this.files = files;
+            this.refs = refs;
+            this.fileStart = new int[refs.length + 1];
+            for (int i = 0; i < refs.length; i++) fileStart[i + 1] = fileStart[i] + (refs[i] == null ? 0 : refs[i].length);
+            this.size = fileStart[refs.length];
+            this.order = order;
+        }
+
+        public int size() { return size; }
+
+        public List<File> files() { return files; }
+
+        /**
+         * Scans the files and keeps the refs of rows passing the filter. Files with an entry in
+         * {@code known} (e.g. from a {@link com.bigcomp.accesscontrol.log.LogIndex}) use those
+         * refs as they are and are not scanned.
+         */
+        public static Rows scan(LogScanner scanner, List<File> files, Map<File, long[]> known,
+                                LogScanner.RowFilter filter, BooleanSupplier cancelled) {
+            return scan(scanner, files, known, filter, cancelled, null);
+        }
+
+        /**
+         * As {@link #scan(LogScanner, List, Map, LogScanner.RowFilter, BooleanSupplier)}, reporting
+         * to {@code progress} (from pool threads, one call at a time) each time a file finishes.
+         */
+        public static Rows scan(LogScanner scanner, List<File> files, Map<File, long[]> known,
+                                LogScanner.RowFilter filter, BooleanSupplier cancelled, ScanProgress progress) {
+            long[][] refs = new long[files.size()][];
+            List<File> toScan = new ArrayList<>();
+            List<Integer> slot = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                long[] k = known.get(files.get(i));
+                if (k != null) {
+                    refs[i] = k;
+                } else {
+                    toScan.add(files.get(i));
+                    slot.add(i);
+                }
+            }
+            ScanState state = new ScanState(files, refs, progress);
+            for (int i = 0; i < refs.length; i++) {
+                if (refs[i] != null) state.done(i, refs[i]);
+            }
+            LongList[] found = new LongList[toScan.size()];
+            for (int i = 0; i < found.length; i++) found[i] = new LongList();
+            scanner.visit(toScan, filter, (f, k, row) -> found[f].add(row.ref()),
+                    f -> state.done(slot.get(f), found[f].toArray()), cancelled);
+            synchronized (state) {
+                // files cut short by a cancel keep what they had found
+                for (int i = 0; i < found.length; i++) {
+                    if (refs[slot.get(i)] == null) refs[slot.get(i)] = found[i].toArray();
+                }
+            }
+            return new Rows(files, refs, null);
+        }
+
+        /**
+         * The same rows ordered by a column. Date, day and time sort by timestamp; other columns
+         * by their text. Rows with equal keys keep file order.
+         */
+        public Rows sortedBy(LogScanner scanner, int column, boolean ascending, BooleanSupplier cancelled) {
+            long[] keys = new long[size];
+            boolean byTime = column <= 2;
+            Map<String, Integer> ids = new ConcurrentHashMap<>();
+            AtomicInteger nextId = new AtomicInteger();
+            scanner.visitRefs(files, refs, (f, k, row) -> {
+                int n = fileStart[f] + k;
+                if (byTime) {
+                    keys[n] = timestamp(row);
+                } else {
+                    String v = row.get(column);
+                    keys[n] = ids.computeIfAbsent(v == null ? "" : v, x -> nextId.getAndIncrement());
+                }
+            }, cancelled);
+            if (!byTime) {
+                // dictionary ids -> rank of the text
+                String[] texts = new String[ids.size()];
+                for (Map.Entry<String, Integer> e : ids.entrySet()) texts[e.getValue()] = e.getKey();
+                Integer[] byText = new Integer[texts.length];
+                for (int i = 0; i < byText.length; i++) byText[i] = i;
+                Arrays.sort(byText, Comparator.comparing(i -> texts[i]));
+                long[] rank = new long[texts.length];
+                for (int r = 0; r < byText.length; r++) rank[byText[r]] = r;
+                for (int i = 0; i < size; i++) keys[i] = rank[(int) keys[i]];
+            }
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (long k : keys) {
+                min = Math.min(min, k);
+                max = Math.max(max, k);
+            }
+            // key in the high 32 bits, row number in the low 32: one primitive sort, stable by row
+            long[] packed = new long[size];
+            for (int i = 0; i < size; i++) {
+                long key = Math.min(ascending ? keys[i] - min : max - keys[i], Integer.MAX_VALUE);
+                packed[i] = key << 32 | i;
+            }
+            Arrays.parallelSort(packed);
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) order[i] = (int) packed[i];
+            return new Rows(files, refs, order);
+        }
+
+        private static long timestamp(LogRow row) {
+            try {
+                String d = row.get(0); // yyyy-MM-dd
+                String t = row.get(2); // HH:mm:ss
+                long day = LocalDate.of(digits(d, 0, 4), digits(d, 5, 7), digits(d, 8, 10)).toEpochDay();
+                return day * 86400L + digits(t, 0, 2) * 3600L + digits(t, 3, 5) * 60L + digits(t, 6, 8);
+            } catch (RuntimeException e) {
+                return 0;
+            }
+        }
+
+        private static int digits(String s, int from, int to) {
+            int v = 0;
+            for (int i = from; i < to; i++) {
+                int c = s.charAt(i) - '0';
+                if (c < 0 || c > 9) throw new NumberFormatException(s);
+                v = v * 10 + c;
+            }
+            return v;
+        }
+
+        int fileOf(int rowNumber) {
+            int i = Arrays.binarySearch(fileStart, rowNumber);
+            if (i < 0) return -i - 2;
+            while (i + 1 < fileStart.length && fileStart[i + 1] == rowNumber) i++; // skip empty files
+            return i;
+        }
+    }
+
+    /** How far a {@link Rows#scan} has got. */
+    public interface ScanProgress {
+        /**
+         * @param leading   the rows of the leading files that are finished, in file order; each
+         *                  call's rows extend the previous call's
+         * @param filesDone files finished so far, leading or not
+         * @param bytesDone size of those files
+         */
+        void update(Rows leading, int filesDone, long bytesDone);
+    }
+
+    /** Tracks finished files of a scan and reports the growing run of leading ones. */
+    private static final class ScanState {
+        private final List<File> files;
+        private final long[][] refs;
+        private final ScanProgress progress;
+        private final boolean[] done;
+        private int leading;
+        private int filesDone;
+        private long bytesDone;
+
+        ScanState(List<File> files, long[][] refs, ScanProgress progress) {
+            this.files = files;
+            this.refs = refs;
+            this.progress = progress;
+            this.done = new boolean[refs.length];
+        }
+
+        synchronized void done(int file, long[] fileRefs) {
+            refs[file] = fileRefs;
+            done[file] = true;
+            filesDone++;
+            bytesDone += files.get(file).length();
+            while (leading < done.length && done[leading]) leading++;
+            if (progress == null) return;
+            List<File> head = new ArrayList<>(files.subList(0, leading));
+            progress.update(new Rows(head, Arrays.copyOf(refs, leading), null), filesDone, bytesDone);
+        }
+    }
+
+    private Rows rows = Rows.EMPTY;
+    private final Map<Integer, String[][]> pages = new LinkedHashMap<Integer, String[][]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[][]> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+
+    public void setRows(Rows rows) {
+        this.rows = rows;
+        pages.clear();
+        fireTableDataChanged();
+    }
+
+    /**
+     * Shows rows that extend the current ones (same leading files, more of them), as a scan in
+     * progress delivers them. Rows already shown and their cached pages stay as they are.
+     */
+    public void appendRows(Rows more) {
+        int old = rows.size;
+        if (rows.order != null || more.order != null || more.size < old) {
+            setRows(more);
+            return;
+        }
+        rows = more;
+        pages.remove(old / PAGE_ROWS); // the last page may have been cut short
+        if (more.size > old) fireTableRowsInserted(old, more.size - 1);
+    }
+
+    public Rows getRows() { return rows; }
+
+    public void clear() {
+        setRows(Rows.EMPTY);
+    }
+
+    @Override
+    public int getRowCount() { return rows.size; }
+
+    @Override
+    public int getColumnCount() { return COLUMNS.length; }
+
+    @Override
+    public String getColumnName(int column) { return COLUMNS[column]; }
+
+    @Override
+    public boolean isCellEditable(int row, int column) { return false; }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        String[] r = getRow(row);
+        return r == null || column >= r.length ? null : r[column];
+    }
+
+    /** The fields of a view row, read from disk with the rest of its page if not cached. */
+    public String[] getRow(int row) {
+        if (row < 0 || row >= rows.size) return null;
+        int page = row / PAGE_ROWS;
+        String[][] p = pages.get(page);
+        if (p == null) {
+            p = loadPage(page);
+            pages.put(page, p);
+        }
+        return p[row - page * PAGE_ROWS];
+    }
+
+    private String[][] loadPage(int page) {
+        return readRows(rows, page * PAGE_ROWS, PAGE_ROWS);
+    }
+
+    /**
+     * Reads up to {@code count} view rows from {@code from} straight from disk, without the page
+     * cache; safe to call off the EDT, e.g. to export a result set.
+     */
+    public static String[][] readRows(Rows rs, int from, int count) {
+        int n = Math.max(0, Math.min(count, rs.size - from));
+        String[][] out = new String[n][];
+        // group the page's rows by file so each file is opened once
+        Map<Integer, List<Integer>> byFile = new TreeMap<>();
+        for (int i = 0; i < n; i++) {
+            int rowNumber = rs.order == null ? from + i : rs.order[from + i];
+            byFile.computeIfAbsent(rs.fileOf(rowNumber), k -> new ArrayList<>()).add(i);
+        }
+        for (Map.Entry<Integer, List<Integer>> e : byFile.entrySet()) {
+            int f = e.getKey();
+            List<Integer> slots = e.getValue();
+            long[] refs = new long[slots.size()];
+            for (int j = 0; j < refs.length; j++) {
+                int i = slots.get(j);
+                int rowNumber = rs.order == null ? from + i : rs.order[from + i];
+                refs[j] = rs.refs[f][rowNumber - rs.fileStart[f]];
+            }
+            try {
+                LogScanner.forEachRef(rs.files.get(f), refs, 0, refs.length, (j, r) -> {
+                    out[slots.get(j)] = r.toArray();
+                    return true;
+                });
+            } catch (IOException | RuntimeException ex) {
+                ex.printStackTrace(); // e.g. an archive rewritten since the scan
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (out[i] == null) out[i] = new String[COLUMNS.length]; // file gone since the scan
+        }
+        return out;
+    }
+
+    /** Growable long array, so refs are not boxed while a scan runs. */
+    static final class LongList {
+        private long[] a = new long[64];
+        private int n;
+
+        void add(long v) {
+            if (n == a.length) a = Arrays.copyOf(a, n * 2);
+            a[n++] = v;
+        }
+
+        long[] toArray() { return Arrays.copyOf(a, n); }
+    }
+}
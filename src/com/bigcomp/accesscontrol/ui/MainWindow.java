@@ -32,7 +32,7 @@ public class MainWindow extends JFrame implements AccessProcessor.AccessEventLis
         // Monitor tab
         JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT);
         mapPanel = new MapPanel(db);
-        controlPanel = new ControlPanel(db, sim, mapPanel);
+        controlPanel = new ControlPanel(db, sim, mapPanel, arp.getRecentWindow());
         split.setLeftComponent(controlPanel);
         split.setRightComponent(mapPanel);
         split.setDividerLocation(320);
@@ -44,6 +44,7 @@ public class MainWindow extends JFrame implements AccessProcessor.AccessEventLis
         tabs.addTab("编辑用户", new UserEditorPanel(db));
         tabs.addTab("档案编辑", new ProfileEditorPanel(db));
         tabs.addTab("访问报表", new CSVReportsPanel(csvLogger));
+        tabs.addTab("数据库报表", new ReportsPanel(db, arp.getRecentWindow()));
 
         this.getContentPane().add(tabs, BorderLayout.CENTER);
         this.setSize(1400, 900);
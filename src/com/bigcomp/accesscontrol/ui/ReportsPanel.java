@@ -1,27 +1,42 @@
 package com.bigcomp.accesscontrol.ui;
 
+import com.bigcomp.accesscontrol.db.AccessLogQuery;
 import com.bigcomp.accesscontrol.db.DB;
+import com.bigcomp.accesscontrol.db.RecentAccessWindow;
+import com.bigcomp.accesscontrol.util.AppConfig;
 
 import javax.swing.*;
 import java.awt.*;
-import java.sql.*;
 
 public class ReportsPanel extends JPanel {
     private DB db;
-    private java.util.List<com.bigcomp.accesscontrol.model.AccessLog> cached = new java.util.ArrayList<>();
+    private RecentAccessWindow recent;
     private JTextField badgeField = new JTextField(8);
     private JTextField readerField = new JTextField(8);
     private JTextField resourceField = new JTextField(8);
     private JTextField startField = new JTextField(12);
     private JTextField endField = new JTextField(12);
     private JComboBox<String> resultBox = new JComboBox<>(new String[]{"ALL","GRANTED","DENIED"});
+    private final TaskStatusBar status = new TaskStatusBar();
+    private final JTable table = new JTable();
+    private final JButton prevBtn = new JButton("上一页");
+    private final JButton nextBtn = new JButton("下一页");
+    private final JLabel pageLabel = new JLabel();
 
-    public ReportsPanel(DB db) {
+    // Keyset paging: the cursor each shown page was fetched after (null for the first page)
+    private AccessLogQuery query;
+    private boolean fromMemory; // query answered by the recent window instead of MySQL
+    private final java.util.Deque<AccessLogQuery.Cursor> pageStarts = new java.util.ArrayDeque<>();
+    private AccessLogQuery.Cursor pageStart;
+    private AccessLogQuery.Page page;
+
+    public ReportsPanel(DB db, RecentAccessWindow recent) {
         this.db = db;
+        this.recent = recent;
         setLayout(new BorderLayout());
         JButton load = new JButton("加载");
         JButton filter = new JButton("筛选");
-        JTable table = new JTable();
+        JButton lastHour = new JButton("最近1小时");
         add(new JScrollPane(table), BorderLayout.CENTER);
 
         JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT));
@@ -39,41 +54,121 @@ public class ReportsPanel extends JPanel {
         top.add(resultBox);
         top.add(load);
         top.add(filter);
+        top.add(lastHour);
         add(top, BorderLayout.NORTH);
 
-        load.addActionListener(e -> {
-            try {
-                cached = db.getRecentLogs(1000);
-                populateTable(table, cached);
-            } catch (Exception ex) { ex.printStackTrace(); JOptionPane.showMessageDialog(this, "Failed to load logs: " + ex.getMessage()); }
+        JPanel bottom = new JPanel(new BorderLayout());
+        JPanel paging = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        paging.add(pageLabel);
+        paging.add(prevBtn);
+        paging.add(nextBtn);
+        prevBtn.setEnabled(false);
+        nextBtn.setEnabled(false);
+        bottom.add(status, BorderLayout.CENTER);
+        bottom.add(paging, BorderLayout.EAST);
+        add(bottom, BorderLayout.SOUTH);
+
+        // Latest logs, unfiltered
+        load.addActionListener(e -> startQuery(newQuery()));
+
+        // Filters run in SQL on the whole table, not just the rows shown; ranges inside the
+        // recent window are answered from memory
+        filter.addActionListener(e -> startQuery(filteredQuery()));
+        lastHour.addActionListener(e -> {
+            AccessLogQuery q = filteredQuery();
+            q.setFrom(java.time.LocalDateTime.now().minusHours(1));
+            q.setTo(null);
+            startQuery(q);
         });
 
-        filter.addActionListener(e -> {
-            java.time.format.DateTimeFormatter fmt = java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
-            java.time.LocalDateTime start = null, end = null;
-            try { if (!startField.getText().trim().isEmpty()) start = java.time.LocalDateTime.parse(startField.getText().trim(), fmt); } catch (Exception ex) {}
-            try { if (!endField.getText().trim().isEmpty()) end = java.time.LocalDateTime.parse(endField.getText().trim(), fmt); } catch (Exception ex) {}
-
-            String badge = badgeField.getText().trim().toLowerCase();
-            String reader = readerField.getText().trim().toLowerCase();
-            String resource = resourceField.getText().trim().toLowerCase();
-            String result = (String) resultBox.getSelectedItem();
-
-            java.util.List<com.bigcomp.accesscontrol.model.AccessLog> filtered = new java.util.ArrayList<>();
-            for (var l : cached) {
-                if (start != null && l.getTimestamp().isBefore(start)) continue;
-                if (end != null && l.getTimestamp().isAfter(end)) continue;
-                if (!badge.isEmpty() && (l.getBadgeId()==null || !l.getBadgeId().toLowerCase().contains(badge))) continue;
-                if (!reader.isEmpty() && (l.getReaderId()==null || !l.getReaderId().toLowerCase().contains(reader))) continue;
-                if (!resource.isEmpty() && (l.getResourceId()==null || !l.getResourceId().toLowerCase().contains(resource))) continue;
-                if (!"ALL".equals(result) && !result.equalsIgnoreCase(l.getResult())) continue;
-                filtered.add(l);
-            }
-            populateTable(table, filtered);
+        nextBtn.addActionListener(e -> {
+            if (page == null || !page.hasNext()) return;
+            AccessLogQuery.Cursor current = pageStart;
+            fetchPage(page.getNext(), () -> pageStarts.push(current));
+        });
+        prevBtn.addActionListener(e -> {
+            if (pageStarts.isEmpty()) return;
+            fetchPage(pageStarts.peek(), pageStarts::pop);
         });
     }
 
-    private void populateTable(JTable table, java.util.List<com.bigcomp.accesscontrol.model.AccessLog> logs) {
+    private static AccessLogQuery newQuery() {
+        AccessLogQuery q = new AccessLogQuery();
+        q.setPageSize(Math.max(1, AppConfig.getInt("reports.pageSize", 500)));
+        return q;
+    }
+
+    private AccessLogQuery filteredQuery() {
+        java.time.format.DateTimeFormatter fmt = java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+        AccessLogQuery q = newQuery();
+        try { if (!startField.getText().trim().isEmpty()) q.setFrom(java.time.LocalDateTime.parse(startField.getText().trim(), fmt)); } catch (Exception ex) {}
+        try { if (!endField.getText().trim().isEmpty()) q.setTo(java.time.LocalDateTime.parse(endField.getText().trim(), fmt)); } catch (Exception ex) {}
+        q.setBadgeId(badgeField.getText());
+        q.setReaderId(readerField.getText());
+        q.setResourceId(resourceField.getText());
+        String result = (String) resultBox.getSelectedItem();
+        if (!"ALL".equals(result)) q.setResult(result);
+        return q;
+    }
+
+    private void startQuery(AccessLogQuery q) {
+        query = q;
+        fromMemory = recent != null && recent.covers(q);
+        fetchPage(null, pageStarts::clear);
+    }
+
+    /**
+     * Fetches the page after the cursor off the EDT and shows it, running onShown first; a new
+     * fetch cancels the one running.
+     */
+    private void fetchPage(AccessLogQuery.Cursor after, Runnable onShown) {
+        AccessLogQuery q = query;
+        boolean memory = fromMemory;
+        long started = System.nanoTime();
+        if (memory) {
+            // in memory: instant, no worker needed
+            AccessLogQuery.Page p = recent.query(q, after);
+            status.cancel();
+            page = p;
+            onShown.run();
+            pageStart = after;
+            showPage(String.format("%d rows from memory (%.1f ms)", p.getRows().size(), (System.nanoTime() - started) / 1e6));
+            return;
+        }
+        SwingWorker<AccessLogQuery.Page, Void> worker = new SwingWorker<>() {
+            @Override
+            protected AccessLogQuery.Page doInBackground() {
+                return db.queryAccessLogs(q, after);
+            }
+
+            @Override
+            protected void done() {
+                if (!status.isCurrent(this)) return;
+                try {
+                    page = get();
+                    onShown.run();
+                    pageStart = after;
+                    status.finish(this, "");
+                    showPage(String.format("%d rows (%d ms)", page.getRows().size(), (System.nanoTime() - started) / 1_000_000));
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    status.finish(this, "Failed to load logs");
+                    JOptionPane.showMessageDialog(ReportsPanel.this, "Failed to load logs: " + ex.getMessage());
+                }
+            }
+        };
+        status.start(worker, "Loading...");
+    }
+
+    private void showPage(String message) {
+        populateTable(page.getRows());
+        pageLabel.setText("第 " + (pageStarts.size() + 1) + " 页");
+        status.showMessage(message);
+        prevBtn.setEnabled(!pageStarts.isEmpty());
+        nextBtn.setEnabled(page.hasNext());
+    }
+
+    private void populateTable(java.util.List<com.bigcomp.accesscontrol.model.AccessLog> logs) {
         var model = new javax.swing.table.DefaultTableModel(new String[]{"Time","Badge","Reader","Resource","Result","Message"}, 0) {
             @Override public boolean isCellEditable(int r, int c) { return false; }
         };
@@ -82,4 +177,4 @@ public class ReportsPanel extends JPanel {
         }
         table.setModel(model);
     }
-}
\ No newline at end of file
+}
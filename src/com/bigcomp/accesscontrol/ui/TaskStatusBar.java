@@ -0,0 +1,71 @@
+package com.bigcomp.accesscontrol.ui;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Status line for a background task: a progress bar, a message and a cancel button.
+ * All methods must be called on the EDT.
+ */
+public class TaskStatusBar extends JPanel {
+    private final JProgressBar progress = new JProgressBar(0, 100);
+    private final JLabel message = new JLabel(" ");
+    private final JButton cancelBtn = new JButton("取消");
+    private SwingWorker<?, ?> task;
+
+    public TaskStatusBar() {
+        super(new BorderLayout(8, 0));
+        setBorder(BorderFactory.createEmptyBorder(2, 5, 2, 5));
+        progress.setStringPainted(true);
+        progress.setVisible(false);
+        cancelBtn.setEnabled(false);
+        cancelBtn.addActionListener(e -> cancel());
+        add(progress, BorderLayout.WEST);
+        add(message, BorderLayout.CENTER);
+        add(cancelBtn, BorderLayout.EAST);
+    }
+
+    /** Cancels the task in flight, if any, and starts this one. */
+    public void start(SwingWorker<?, ?> worker, String text) {
+        cancel();
+        task = worker;
+        progress.setIndeterminate(true);
+        progress.setValue(0);
+        progress.setVisible(true);
+        message.setText(text);
+        cancelBtn.setEnabled(true);
+        worker.execute();
+    }
+
+    /** True if the worker is the task this bar is showing, i.e. it has not been replaced or cancelled. */
+    public boolean isCurrent(SwingWorker<?, ?> worker) {
+        return task == worker && !worker.isCancelled();
+    }
+
+    /** Percent in [0, 100], or negative when the total is not known. */
+    public void update(int percent, String text) {
+        progress.setIndeterminate(percent < 0);
+        if (percent >= 0) progress.setValue(percent);
+        message.setText(text);
+    }
+
+    /** Shows a message while no task is running, e.g. the outcome of something done at once. */
+    public void showMessage(String text) {
+        message.setText(text);
+    }
+
+    public void finish(SwingWorker<?, ?> worker, String text) {
+        if (task != worker) return;
+        task = null;
+        progress.setVisible(false);
+        cancelBtn.setEnabled(false);
+        message.setText(text);
+    }
+
+    /** Asks the task to stop; workers check isCancelled() as they go. */
+    public void cancel() {
+        if (task == null) return;
+        task.cancel(false);
+        finish(task, "已取消");
+    }
+}
@@ -0,0 +1,47 @@
+package com.bigcomp.accesscontrol.util;
+
+import java.io.FileInputStream;
+import java.util.Properties;
+
+/**
+ * Read-only access to tuning keys in config.properties.
+ * Missing or invalid entries fall back to the supplied default.
+ */
+public final class AppConfig {
+    private static final Properties props = new Properties();
+
+    static {
+        try (FileInputStream fis = new FileInputStream("config.properties")) {
+            props.load(fis);
+        } catch (Exception e) {
+            // If config not found, every key uses its default
+        }
+    }
+
+    private AppConfig() {}
+
+    public static String getString(String key, String def) {
+        String val = props.getProperty(key);
+        return val == null || val.trim().isEmpty() ? def : val.trim();
+    }
+
+    public static int getInt(String key, int def) {
+        String val = props.getProperty(key);
+        if (val == null) return def;
+        try {
+            return Integer.parseInt(val.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public static long getLong(String key, long def) {
+        String val = props.getProperty(key);
+        if (val == null) return def;
+        try {
+            return Long.parseLong(val.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+}
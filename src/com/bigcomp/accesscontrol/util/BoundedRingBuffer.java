@@ -0,0 +1,76 @@
+package com.bigcomp.accesscontrol.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer/multi-consumer queue on a power-of-two ring
+ * (Vyukov's sequence-per-slot design). offer/poll never block and never allocate.
+ */
+public final class BoundedRingBuffer<T> {
+    private final int mask;
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong(); // next slot to consume
+    private final AtomicLong tail = new AtomicLong(); // next slot to produce
+
+    public BoundedRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) sequences.set(i, i);
+    }
+
+    /** @return false if the ring is full */
+    public boolean offer(T item) {
+        long pos = tail.get();
+        while (true) {
+            int idx = (int) (pos & mask);
+            long dif = sequences.get(idx) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.lazySet(idx, item);
+                    sequences.set(idx, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (dif < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /** @return the oldest item, or null if the ring is empty */
+    public T poll() {
+        long pos = head.get();
+        while (true) {
+            int idx = (int) (pos & mask);
+            long dif = sequences.get(idx) - (pos + 1);
+            if (dif == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    T item = slots.get(idx);
+                    slots.lazySet(idx, null);
+                    sequences.set(idx, pos + mask + 1);
+                    return item;
+                }
+                pos = head.get();
+            } else if (dif < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /** Approximate number of queued items */
+    public int size() {
+        long n = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(n, capacity()));
+    }
+
+    public int capacity() { return mask + 1; }
+}